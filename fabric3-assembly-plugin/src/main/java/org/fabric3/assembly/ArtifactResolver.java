@@ -0,0 +1,172 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.assembly;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.resolution.ArtifactRequest;
+import org.fabric3.plugins.common.BuildMetrics;
+import org.fabric3.plugins.common.ResolutionCache;
+import org.fabric3.plugins.common.VersionLock;
+
+/**
+ * Resolves a batch of artifacts in a single pass, or individual artifacts as they are needed.
+ *
+ * If configured with a single thread, the batch is handed to the repository system as one request so that downloads from the same repository can be grouped.
+ * Otherwise, artifacts are resolved concurrently on a bounded worker pool. Artifacts already resolved earlier in the build are taken from the
+ * {@link ResolutionCache}. If a {@link VersionLock} is configured, requests are resolved with their locked versions. Resolved files are checked against the
+ * lock by the caller once they are installed, so that checksums computed while installing are not computed again.
+ */
+public class ArtifactResolver {
+    private ResolutionCache cache;
+    private List<RemoteRepository> repositories;
+    private int threads;
+    private BuildMetrics metrics;
+    private VersionLock lock;
+
+    /**
+     * Constructor.
+     *
+     * @param repositorySystem the repository system
+     * @param session          the current repository session
+     * @param repositories     the remote repositories to resolve against
+     * @param threads          the maximum number of concurrent resolutions
+     * @param metrics          records resolution latency
+     * @param lock             the version lock or null
+     */
+    public ArtifactResolver(RepositorySystem repositorySystem,
+                            RepositorySystemSession session,
+                            List<RemoteRepository> repositories,
+                            int threads,
+                            BuildMetrics metrics,
+                            VersionLock lock) {
+        this.cache = new ResolutionCache(repositorySystem, session);
+        this.repositories = repositories;
+        this.threads = threads;
+        this.metrics = metrics;
+        this.lock = lock;
+    }
+
+    /**
+     * Resolves the artifacts.
+     *
+     * @param artifacts the artifacts to resolve
+     * @return the resolved files keyed by the requested artifact, in request order
+     * @throws MojoExecutionException if one or more artifacts cannot be resolved
+     */
+    public Map<Artifact, File> resolve(Collection<Artifact> artifacts) throws MojoExecutionException {
+        List<Artifact> requested = new ArrayList<>(artifacts);
+        List<ArtifactRequest> requests = new ArrayList<>();
+        for (Artifact artifact : requested) {
+            requests.add(createRequest(artifact));
+        }
+        List<File> files;
+        if (threads <= 1 || requests.size() <= 1) {
+            // latency is only known for the batch as a whole
+            BuildMetrics.Sample sample = metrics.start(BuildMetrics.Phase.RESOLVE, requests.size() + " artifacts");
+            try {
+                files = cache.resolve(requests);
+            } finally {
+                sample.entries(requests.size()).stop();
+            }
+        } else {
+            files = resolveConcurrently(requests);
+        }
+        Map<Artifact, File> resolved = new LinkedHashMap<>();
+        for (int i = 0; i < requested.size(); i++) {
+            resolved.put(requested.get(i), files.get(i));
+        }
+        return resolved;
+    }
+
+    /**
+     * Resolves a single artifact.
+     *
+     * @param artifact the artifact
+     * @return the resolved file
+     * @throws MojoExecutionException if the artifact cannot be resolved
+     */
+    public File resolve(Artifact artifact) throws MojoExecutionException {
+        return resolve(createRequest(artifact));
+    }
+
+    private ArtifactRequest createRequest(Artifact artifact) {
+        return new ArtifactRequest(lock != null ? lock.lock(artifact) : artifact, repositories, null);
+    }
+
+    private File resolve(ArtifactRequest request) throws MojoExecutionException {
+        BuildMetrics.Sample sample = metrics.start(BuildMetrics.Phase.RESOLVE, request.getArtifact().toString());
+        try {
+            return cache.resolve(request);
+        } finally {
+            sample.entries(1).stop();
+        }
+    }
+
+    /**
+     * Resolves the requests on a worker pool bounded by the configured number of threads.
+     *
+     * @param requests the requests
+     * @return the resolved files in request order
+     * @throws MojoExecutionException if a request cannot be resolved
+     */
+    private List<File> resolveConcurrently(List<ArtifactRequest> requests) throws MojoExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, requests.size()));
+        try {
+            List<Future<File>> futures = new ArrayList<>();
+            for (final ArtifactRequest request : requests) {
+                futures.add(executor.submit(new Callable<File>() {
+                    public File call() throws MojoExecutionException {
+                        return resolve(request);
+                    }
+                }));
+            }
+            List<File> files = new ArrayList<>();
+            for (Future<File> future : futures) {
+                files.add(future.get());
+            }
+            return files;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted resolving artifacts", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof MojoExecutionException) {
+                throw (MojoExecutionException) cause;
+            }
+            throw new MojoExecutionException(cause.getMessage(), cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
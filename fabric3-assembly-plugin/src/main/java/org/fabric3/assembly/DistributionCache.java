@@ -0,0 +1,464 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.assembly;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+import org.fabric3.plugins.common.ChecksumCache;
+import org.fabric3.plugins.common.ZipExtractor;
+
+/**
+ * A cache of extracted runtime and profile distributions that is shared across builds and processes.
+ *
+ * Each distribution is extracted once into a directory keyed by its coordinates and SHA-256 checksum, together with an index of its entries and their CRC-32
+ * values, sizes and modification times. Images are then populated from the extracted tree by copying or hard-linking files. The checksum is taken from the
+ * {@link ChecksumCache}, so each distribution archive is read in full once per build to find its entry.
+ *
+ * Files hard-linked into an image share their contents with the cache, so a file edited in place in an image, such as a configuration file or launcher
+ * script, also changes the cache entry. When an entry is reused, the size and modification time of each file are compared with the index, and a modified
+ * entry is extracted again. If a modified entry is being read by another build it cannot be replaced, and {@link #open(String, File)} returns null so that
+ * the caller extracts the archive itself.
+ *
+ * Creating and evicting entries is serialized across processes by an exclusive lock on a file in the cache directory. Builds reading from an entry hold a
+ * shared lock on the entry so that it is not evicted while in use. When the cache exceeds its maximum size, least recently used entries are evicted.
+ */
+public class DistributionCache {
+    private static final String LOCK_FILE = "cache.lock";
+    private static final String INDEX = "index";
+    private static final String FILES = "files";
+    private static final String ENTRY_LOCK = "lock";
+    private static final String SIZE_HEADER = "# size ";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // entries read by builds in this JVM; guarded by the class monitor
+    private static final Map<File, Reader> READERS = new HashMap<>();
+
+    private File root;
+    private long maxSize;
+    private ZipExtractor extractor;
+    private ChecksumCache checksums;
+
+    /**
+     * Constructor.
+     *
+     * @param root      the cache directory
+     * @param maxSize   the maximum cache size in bytes
+     * @param extractor the extractor used to populate new entries
+     * @param checksums the checksums of distribution archives
+     */
+    public DistributionCache(File root, long maxSize, ZipExtractor extractor, ChecksumCache checksums) {
+        this.root = root;
+        this.maxSize = maxSize;
+        this.extractor = extractor;
+        this.checksums = checksums;
+    }
+
+    /**
+     * Opens the extracted form of a distribution, extracting it into the cache if it is not present or has been modified. The returned distribution must
+     * be closed when the caller has finished reading from it.
+     *
+     * @param coordinates the distribution coordinates
+     * @param archive     the distribution archive
+     * @return the extracted distribution, or null if the cache entry has been modified and cannot be replaced because another build is reading it
+     * @throws IOException if there is an error extracting or opening the distribution
+     */
+    public Distribution open(String coordinates, File archive) throws IOException {
+        String checksum = checksums.compute(archive);
+        String key = coordinates.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + checksum.substring(0, 16);
+        File directory = new File(root, key);
+
+        synchronized (DistributionCache.class) {
+            FileLock lock = lockCache();
+            try {
+                if (new File(directory, INDEX).exists()) {
+                    Distribution existing = acquire(directory);
+                    if (!existing.modified) {
+                        return existing;
+                    }
+                    existing.close();
+                    if (!remove(directory)) {
+                        return null;
+                    }
+                }
+            } finally {
+                release(lock);
+            }
+        }
+
+        // extract outside the cache lock so that other builds are not blocked, then move the result into place
+        File staging = new File(root, key + ".tmp" + System.nanoTime());
+        try {
+            populate(archive, staging);
+            synchronized (DistributionCache.class) {
+                FileLock lock = lockCache();
+                try {
+                    if (!new File(directory, INDEX).exists()) {
+                        if (directory.exists()) {
+                            FileHelper.deleteDirectory(directory);
+                        }
+                        Files.move(staging.toPath(), directory.toPath());
+                    }
+                    Distribution distribution = acquire(directory);
+                    evict(directory);
+                    return distribution;
+                } finally {
+                    release(lock);
+                }
+            }
+        } finally {
+            if (staging.exists()) {
+                FileHelper.deleteDirectory(staging);
+            }
+        }
+    }
+
+    /**
+     * Extracts an archive into a staging directory and writes its index.
+     *
+     * @param archive the archive
+     * @param staging the staging directory
+     * @throws IOException if there is an error extracting the archive
+     */
+    private void populate(File archive, File staging) throws IOException {
+        final File files = new File(staging, FILES);
+        final List<Entry> entries = new ArrayList<>();
+        files.mkdirs();
+        extractor.extract(archive, files, new ZipExtractor.EntryFilter() {
+            public boolean include(ZipEntry entry) {
+                if (!entry.isDirectory()) {
+                    entries.add(new Entry(entry.getName(), entry.getCrc()));
+                }
+                return true;
+            }
+        });
+        final List<String> directories = new ArrayList<>();
+        final Path base = files.toPath();
+        Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(base)) {
+                    directories.add(base.relativize(dir).toString().replace(File.separatorChar, '/') + "/");
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        long size = 0;
+        for (Entry entry : entries) {
+            size += new File(files, entry.getName()).length();
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(staging, INDEX)), UTF8));
+        try {
+            writer.write(SIZE_HEADER + size + "\n");
+            for (String directory : directories) {
+                writer.write("D\t" + directory + "\n");
+            }
+            for (Entry entry : entries) {
+                File file = new File(files, entry.getName());
+                writer.write("F\t" + entry.getName() + "\t" + entry.getCrc() + "\t" + file.length() + "\t" + file.lastModified() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Marks an entry as used and registers this JVM as a reader. The files of the entry are compared with the sizes and modification times in its index to
+     * detect changes made through hard links. Must be called while holding the cache lock.
+     *
+     * @param directory the entry directory
+     * @return the distribution
+     * @throws IOException if there is an error reading the entry
+     */
+    private Distribution acquire(File directory) throws IOException {
+        File index = new File(directory, INDEX);
+        index.setLastModified(System.currentTimeMillis());
+        Reader reader = READERS.get(directory);
+        if (reader == null) {
+            FileChannel channel = new RandomAccessFile(new File(directory, ENTRY_LOCK), "rw").getChannel();
+            reader = new Reader(channel, channel.lock(0, Long.MAX_VALUE, true));
+            READERS.put(directory, reader);
+        }
+        reader.count++;
+        List<String> directories = new ArrayList<>();
+        List<Entry> entries = new ArrayList<>();
+        boolean modified = false;
+        File files = new File(directory, FILES);
+        BufferedReader indexReader = new BufferedReader(new InputStreamReader(new FileInputStream(index), UTF8));
+        try {
+            String line;
+            while ((line = indexReader.readLine()) != null) {
+                String[] tokens = line.split("\t");
+                if ("D".equals(tokens[0])) {
+                    directories.add(tokens[1]);
+                } else if ("F".equals(tokens[0])) {
+                    entries.add(new Entry(tokens[1], Long.parseLong(tokens[2])));
+                    if (!modified) {
+                        // entries written before sizes and times were recorded are treated as modified
+                        File file = new File(files, tokens[1]);
+                        modified = tokens.length < 5 || file.length() != Long.parseLong(tokens[3]) || file.lastModified() != Long.parseLong(tokens[4]);
+                    }
+                }
+            }
+        } catch (NumberFormatException e) {
+            modified = true;
+        } finally {
+            indexReader.close();
+        }
+        return new Distribution(directory, directories, entries, modified);
+    }
+
+    /**
+     * Evicts least recently used entries until the cache is within its maximum size. Entries read by this or another process are skipped. Must be called
+     * while holding the cache lock.
+     *
+     * @param current the entry being opened, which is never evicted
+     * @throws IOException if there is an error evicting an entry
+     */
+    private void evict(File current) throws IOException {
+        File[] candidates = root.listFiles();
+        if (candidates == null) {
+            return;
+        }
+        List<File> entries = new ArrayList<>();
+        final Map<File, Long> lastUsed = new HashMap<>();
+        long total = 0;
+        for (File candidate : candidates) {
+            File index = new File(candidate, INDEX);
+            if (candidate.isDirectory() && index.exists()) {
+                entries.add(candidate);
+                lastUsed.put(candidate, index.lastModified());
+                total += readSize(index);
+            }
+        }
+        Collections.sort(entries, new Comparator<File>() {
+            public int compare(File first, File second) {
+                return lastUsed.get(first).compareTo(lastUsed.get(second));
+            }
+        });
+        for (File entry : entries) {
+            if (total <= maxSize) {
+                break;
+            }
+            if (entry.equals(current)) {
+                continue;
+            }
+            long size = readSize(new File(entry, INDEX));
+            if (remove(entry)) {
+                total -= size;
+            }
+        }
+    }
+
+    /**
+     * Removes an entry unless it is read by this or another process. Must be called while holding the cache lock.
+     *
+     * @param entry the entry directory
+     * @return true if the entry was removed
+     * @throws IOException if there is an error removing the entry
+     */
+    private boolean remove(File entry) throws IOException {
+        if (READERS.containsKey(entry)) {
+            return false;
+        }
+        File evicted = new File(root, entry.getName() + ".evicted" + System.nanoTime());
+        RandomAccessFile file = new RandomAccessFile(new File(entry, ENTRY_LOCK), "rw");
+        try {
+            FileLock lock;
+            try {
+                lock = file.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                // in use by another build
+                return false;
+            }
+            try {
+                Files.move(entry.toPath(), evicted.toPath());
+            } finally {
+                lock.release();
+            }
+        } finally {
+            file.close();
+        }
+        FileHelper.deleteDirectory(evicted);
+        return true;
+    }
+
+    private long readSize(File index) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(index), UTF8));
+        try {
+            String line = reader.readLine();
+            if (line == null || !line.startsWith(SIZE_HEADER)) {
+                return 0;
+            }
+            return Long.parseLong(line.substring(SIZE_HEADER.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private FileLock lockCache() throws IOException {
+        root.mkdirs();
+        FileChannel channel = new RandomAccessFile(new File(root, LOCK_FILE), "rw").getChannel();
+        try {
+            return channel.lock();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void release(FileLock lock) throws IOException {
+        try {
+            lock.release();
+        } finally {
+            lock.channel().close();
+        }
+    }
+
+    /**
+     * An extracted distribution read from the cache.
+     */
+    public static class Distribution implements Closeable {
+        private File directory;
+        private List<String> directories;
+        private List<Entry> entries;
+        private boolean modified;
+        private boolean closed;
+
+        private Distribution(File directory, List<String> directories, List<Entry> entries, boolean modified) {
+            this.directory = directory;
+            this.directories = directories;
+            this.entries = entries;
+            this.modified = modified;
+        }
+
+        /**
+         * Returns the directory containing the extracted files.
+         *
+         * @return the directory
+         */
+        public File getRoot() {
+            return new File(directory, FILES);
+        }
+
+        /**
+         * Returns the directories in the distribution, including empty ones.
+         *
+         * @return the directory names, each ending in '/'
+         */
+        public List<String> getDirectories() {
+            return directories;
+        }
+
+        /**
+         * Returns the extracted file entries.
+         *
+         * @return the entries
+         */
+        public List<Entry> getEntries() {
+            return entries;
+        }
+
+        /**
+         * Releases the distribution so that it may be evicted.
+         *
+         * @throws IOException if there is an error releasing the entry lock
+         */
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            synchronized (DistributionCache.class) {
+                Reader reader = READERS.get(directory);
+                if (reader != null && --reader.count == 0) {
+                    READERS.remove(directory);
+                    try {
+                        reader.lock.release();
+                    } finally {
+                        reader.channel.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A file entry in an extracted distribution.
+     */
+    public static class Entry {
+        private String name;
+        private long crc;
+
+        public Entry(String name, long crc) {
+            this.name = name;
+            this.crc = crc;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+    }
+
+    /**
+     * The shared lock held on an entry while builds in this JVM read from it.
+     */
+    private static class Reader {
+        private FileChannel channel;
+        private FileLock lock;
+        private int count;
+
+        private Reader(FileChannel channel, FileLock lock) {
+            this.channel = channel;
+            this.lock = lock;
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.assembly;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides which distribution entries are written to a runtime image so that files the build would delete afterwards are never extracted.
+ *
+ * Paths are relative to the runtime root directory and use '/' as the separator. An entry is skipped if it is in a runtime configuration directory other than
+ * the one kept, if it is one of the removed paths, or if it matches an exclude pattern. If include patterns are given, only entries matching at least one of
+ * them are written. Patterns use the glob syntax of {@link java.nio.file.FileSystem#getPathMatcher(String)}.
+ */
+public class ExtractionFilter {
+    private static final String RUNTIMES = "runtimes/";
+
+    private Path root;
+    private String keptRuntime;
+    private Set<String> removed = new LinkedHashSet<>();
+    private Set<String> skipped = new HashSet<>();
+    private String[] includePatterns;
+    private String[] excludePatterns;
+    private List<PathMatcher> includes = new ArrayList<>();
+    private List<PathMatcher> excludes = new ArrayList<>();
+
+    /**
+     * Constructor.
+     *
+     * @param root     the runtime root directory
+     * @param includes the include patterns or null
+     * @param excludes the exclude patterns or null
+     */
+    public ExtractionFilter(File root, String[] includes, String[] excludes) {
+        this.root = root.toPath();
+        this.includePatterns = includes == null ? new String[0] : includes;
+        this.excludePatterns = excludes == null ? new String[0] : excludes;
+        for (String pattern : includePatterns) {
+            this.includes.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern));
+        }
+        for (String pattern : excludePatterns) {
+            this.excludes.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern));
+        }
+    }
+
+    /**
+     * Skips all runtime configuration directories under <code>runtimes/</code> except the given one.
+     *
+     * @param runtime the runtime configuration to keep
+     */
+    public void keepRuntime(String runtime) {
+        keptRuntime = runtime;
+    }
+
+    /**
+     * Skips a file.
+     *
+     * @param path the file path relative to the runtime root
+     */
+    public void remove(String path) {
+        removed.add(path);
+    }
+
+    /**
+     * Returns true if a distribution entry should be written.
+     *
+     * @param target    the file or directory the entry would be written to
+     * @param directory true if the entry is a directory
+     * @return true if the entry should be written
+     */
+    public boolean include(File target, boolean directory) {
+        Path absolute = target.toPath();
+        if (!absolute.startsWith(root)) {
+            // outside the runtime root, such as the Tomcat installation
+            return true;
+        }
+        String path = root.relativize(absolute).toString().replace(File.separatorChar, '/');
+        if (path.length() == 0) {
+            return true;
+        }
+        if (isSkippedRuntime(path) || (!directory && removed.contains(path)) || matches(excludes, path)) {
+            skipped.add(path);
+            return false;
+        }
+        if (!includes.isEmpty() && !matches(includes, path)) {
+            skipped.add(path);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the path was skipped by a call to {@link #include(File, boolean)}.
+     *
+     * @param path the path relative to the runtime root
+     * @return true if the path was skipped
+     */
+    public boolean isSkipped(String path) {
+        return skipped.contains(path);
+    }
+
+    /**
+     * Returns a string that changes whenever the filter configuration changes.
+     *
+     * @return the signature
+     */
+    public String getSignature() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("runtime=").append(keptRuntime == null ? "*" : keptRuntime);
+        builder.append(";removed=").append(removed);
+        builder.append(";includes=").append(join(includePatterns));
+        builder.append(";excludes=").append(join(excludePatterns));
+        return builder.toString();
+    }
+
+    private boolean isSkippedRuntime(String path) {
+        if (keptRuntime == null || !path.startsWith(RUNTIMES)) {
+            return false;
+        }
+        int end = path.indexOf('/', RUNTIMES.length());
+        String runtime = end < 0 ? path.substring(RUNTIMES.length()) : path.substring(RUNTIMES.length(), end);
+        return !runtime.equals(keptRuntime);
+    }
+
+    private boolean matches(List<PathMatcher> matchers, String path) {
+        Path candidate = Paths.get(path);
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String join(String[] values) {
+        StringBuilder builder = new StringBuilder();
+        for (String value : values) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+
+}
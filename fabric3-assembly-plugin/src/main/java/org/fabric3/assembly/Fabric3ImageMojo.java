@@ -0,0 +1,271 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.assembly;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.eclipse.aether.artifact.Artifact;
+import org.fabric3.plugins.common.OutputTimestamp;
+
+/**
+ * Plugin that writes a runtime image built by the <code>fabric3-assembly</code> goal as a layered OCI image tarball. No container daemon or registry access
+ * is needed unless a base image is configured, in which case it is read from a local OCI image layout directory.
+ *
+ * Files are placed in layers ordered by how often they change: the runtime distribution, profiles, extensions, datasource and jndi libraries, configuration
+ * files, and the contributions in the deploy directories. The source of each file is taken from the image manifest written by the assembly goal. Files the
+ * manifest does not record, such as a generated class data sharing archive, are placed in the configuration layer unless they are in a deploy or library
+ * directory. Files of a source the manifest records in an unknown form are placed by their location and reported. Layers are reproducible, so an unchanged
+ * layer keeps its digest and only changed layers need to be pushed and pulled.
+ *
+ * @goal fabric3-oci-image
+ * @phase package
+ * @threadSafe
+ */
+public class Fabric3ImageMojo extends AbstractMojo {
+    private static final String BLOB_DIRECTORY = "fabric3-image-blobs";
+    private static final Pattern DEPLOY_PATH = Pattern.compile("(.*/)?runtimes/[^/]+/deploy/.*");
+    private static final Pattern LIBRARY_PATH = Pattern.compile("(.*/)?extensions/(datasource|jndi)/.*");
+
+    /**
+     * The image layers in the order they are written.
+     */
+    private enum ImageLayer {
+        RUNTIME("runtime"), PROFILES("profiles"), EXTENSIONS("extensions"), LIBRARIES("datasource and jndi libraries"), CONFIGURATION("configuration"),
+        CONTRIBUTIONS("contributions");
+
+        private String description;
+
+        ImageLayer(String description) {
+            this.description = description;
+        }
+    }
+
+    /**
+     * Directory where the runtime image was built.
+     *
+     * @parameter property="project.build.directory"
+     * @required
+     */
+    public File buildDirectory;
+
+    /**
+     * The image tarball to write.
+     *
+     * @parameter default-value="${project.build.directory}/fabric3-image.tar"
+     */
+    public File imageArchive;
+
+    /**
+     * The image reference recorded in the tarball, such as <code>registry.example.com/fabric3/node:1.0</code>.
+     *
+     * @parameter property="fabric3.imageName"
+     */
+    public String imageName;
+
+    /**
+     * The directory in the container where the runtime image is placed.
+     *
+     * @parameter
+     */
+    public String imageDirectory = "/opt/fabric3";
+
+    /**
+     * An OCI image layout directory containing the base image, for example one exported with <code>skopeo copy docker://eclipse-temurin:8-jre
+     * oci:base</code>. If not set, the image only contains the runtime layers.
+     *
+     * @parameter property="fabric3.baseImage"
+     */
+    public File baseImage;
+
+    /**
+     * The image entry point. If not set, the entry point of the base image is kept.
+     *
+     * @parameter
+     */
+    public String[] entrypoint;
+
+    /**
+     * The default arguments of the image. If not set, the arguments of the base image are kept.
+     *
+     * @parameter
+     */
+    public String[] cmd;
+
+    /**
+     * Environment variables of the image, each as <code>NAME=value</code>.
+     *
+     * @parameter
+     */
+    public String[] environment;
+
+    /**
+     * The image operating system.
+     *
+     * @parameter
+     */
+    public String os = "linux";
+
+    /**
+     * The image architecture.
+     *
+     * @parameter
+     */
+    public String architecture = "amd64";
+
+    /**
+     * Timestamp used as the modification time of layer entries and the creation time of the image, as an ISO 8601 date-time such as
+     * <code>2015-01-01T00:00:00Z</code> or as seconds since the epoch. If not set, the epoch is used so that layers are reproducible.
+     *
+     * @parameter property="project.build.outputTimestamp"
+     */
+    public String outputTimestamp;
+
+    /**
+     * Number of threads used to compress layers. If not set, the number of available processors is used.
+     *
+     * @parameter
+     */
+    public int layerThreads;
+
+    private Set<String> unknownSources = new HashSet<>();
+
+    public void execute() throws MojoExecutionException {
+        File baseDirectory = new File(buildDirectory, "image");
+        File manifestFile = new File(buildDirectory, Fabric3RuntimeAssemblyMojo.IMAGE_MANIFEST);
+        if (!baseDirectory.isDirectory() || !manifestFile.isFile()) {
+            throw new MojoExecutionException("Runtime image not found, the fabric3-assembly goal must be run first: " + baseDirectory);
+        }
+        long timestamp = 0;
+        if (outputTimestamp != null && outputTimestamp.trim().length() > 0) {
+            try {
+                timestamp = OutputTimestamp.parse(outputTimestamp);
+            } catch (IllegalArgumentException e) {
+                throw new MojoExecutionException(e.getMessage());
+            }
+        }
+        String root = imageDirectory.replaceAll("^/+|/+$", "");
+        try {
+            ImageManifest manifest = ImageManifest.load(manifestFile, baseDirectory);
+            // blobs of earlier images are removed by the writer once they are no longer referenced
+            File blobDirectory = new File(buildDirectory, BLOB_DIRECTORY);
+            OciImageWriter writer = new OciImageWriter(blobDirectory, timestamp);
+            writer.setPlatform(os, architecture);
+            if (baseImage != null) {
+                getLog().info("Using base image: " + baseImage);
+                writer.setBaseImage(baseImage);
+            }
+            if (entrypoint != null) {
+                writer.setEntrypoint(Arrays.asList(entrypoint));
+            }
+            if (cmd != null) {
+                writer.setCmd(Arrays.asList(cmd));
+            }
+            if (environment != null) {
+                for (String variable : environment) {
+                    if (variable.indexOf('=') <= 0) {
+                        throw new MojoExecutionException("Invalid environment variable, expected NAME=value: " + variable);
+                    }
+                    writer.addEnvironment(variable);
+                }
+            }
+            writer.setWorkingDirectory("/" + root);
+
+            Map<ImageLayer, OciImageWriter.Layer> layers = new EnumMap<>(ImageLayer.class);
+            for (ImageLayer layer : ImageLayer.values()) {
+                layers.put(layer, writer.addLayer(layer.description));
+            }
+            addFiles(baseDirectory, "", root.length() > 0 ? root + "/" : "", manifest, layers);
+
+            writer.write(imageArchive, imageName, layerThreads < 1 ? Runtime.getRuntime().availableProcessors() : layerThreads);
+            for (OciImageWriter.Layer layer : layers.values()) {
+                if (layer.getFileCount() > 0) {
+                    getLog().info("Layer " + layer.getDescription() + ": " + layer.getDigest() + " (" + layer.getFileCount() + " files, "
+                                  + layer.getCompressedSize() / 1024 + " KB)");
+                }
+            }
+            getLog().info("Wrote image " + (imageName != null ? imageName + " " : "") + "to " + imageArchive);
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Adds the files in an image directory to their layers.
+     *
+     * @param directory the directory
+     * @param path      the path of the directory relative to the image, ending with a slash unless it is the image directory
+     * @param root      the image directory in the container, ending with a slash unless it is the container root
+     * @param manifest  the image manifest
+     * @param layers    the layers
+     */
+    private void addFiles(File directory, String path, String root, ImageManifest manifest, Map<ImageLayer, OciImageWriter.Layer> layers) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String filePath = path + file.getName();
+            if (file.isDirectory()) {
+                addFiles(file, filePath + "/", root, manifest, layers);
+            } else if (file.isFile()) {
+                layers.get(getLayer(filePath, manifest)).add(root + filePath, file);
+            }
+        }
+    }
+
+    /**
+     * Returns the layer for a file based on the source that installed it and its location in the image.
+     *
+     * @param path     the file path relative to the image
+     * @param manifest the image manifest
+     * @return the layer
+     */
+    private ImageLayer getLayer(String path, ImageManifest manifest) {
+        ImageManifest.FileRecord record = manifest.getFile(path);
+        String source = record != null ? record.getSource() : null;
+        if (source != null) {
+            try {
+                Artifact artifact = Fabric3RuntimeAssemblyMojo.parseSourceKey(source);
+                if (artifact == null) {
+                    return ImageLayer.CONFIGURATION;
+                } else if (Fabric3RuntimeAssemblyMojo.isDistribution(artifact)) {
+                    return artifact.getArtifactId().startsWith("runtime-") ? ImageLayer.RUNTIME : ImageLayer.PROFILES;
+                }
+            } catch (IllegalArgumentException e) {
+                if (unknownSources.add(source)) {
+                    getLog().warn("Unknown source in image manifest, placing its files by location: " + source);
+                }
+            }
+        }
+        if (DEPLOY_PATH.matcher(path).matches()) {
+            return ImageLayer.CONTRIBUTIONS;
+        } else if (LIBRARY_PATH.matcher(path).matches()) {
+            return ImageLayer.LIBRARIES;
+        }
+        return source != null ? ImageLayer.EXTENSIONS : ImageLayer.CONFIGURATION;
+    }
+
+}
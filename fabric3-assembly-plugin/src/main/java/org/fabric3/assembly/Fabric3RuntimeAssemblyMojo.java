@@ -16,19 +16,18 @@
  */
 package org.fabric3.assembly;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Enumeration;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 import org.apache.maven.model.Dependency;
 import org.apache.maven.plugin.AbstractMojo;
@@ -38,9 +37,11 @@ import org.eclipse.aether.RepositorySystemSession;
 import org.eclipse.aether.artifact.Artifact;
 import org.eclipse.aether.artifact.DefaultArtifact;
 import org.eclipse.aether.repository.RemoteRepository;
-import org.eclipse.aether.resolution.ArtifactRequest;
-import org.eclipse.aether.resolution.ArtifactResolutionException;
-import org.eclipse.aether.resolution.ArtifactResult;
+import org.fabric3.plugins.common.BuildMetrics;
+import org.fabric3.plugins.common.ChecksumCache;
+import org.fabric3.plugins.common.FileInstaller;
+import org.fabric3.plugins.common.VersionLock;
+import org.fabric3.plugins.common.ZipExtractor;
 
 /**
  * Plugin that builds a Fabric3 runtime image based on a set of profiles and/or extensions. Standalone and Tomcat runtime images are supported.
@@ -51,9 +52,17 @@ import org.eclipse.aether.resolution.ArtifactResult;
  */
 @SuppressWarnings("ResultOfMethodCallIgnored")
 public class Fabric3RuntimeAssemblyMojo extends AbstractMojo {
-    private static final int BUFFER = 2048;
     private static final String RUNTIME_STANDALONE = "standalone";
     private static final String RUNTIME_TOMCAT = "tomcat";
+    static final String IMAGE_MANIFEST = "image.manifest";
+    static final String DISTRIBUTION_CLASSIFIER = "bin";
+    static final String DISTRIBUTION_EXTENSION = "zip";
+    static final String CONFIG_SOURCE = "config:";
+    private static final String METRICS_REPORT = "fabric3-assembly-metrics.json";
+    private static final String CHECKSUM_MANIFEST = "image.checksums";
+    private static final String TRASH = "fabric3-trash";
+    private static final String FILTER_OPTION = "filter";
+    private static final String CDS_OPTION = "cds";
 
     /**
      * Runtime configuration where the contributions should be copied.
@@ -69,6 +78,30 @@ public class Fabric3RuntimeAssemblyMojo extends AbstractMojo {
      */
     public boolean clean;
 
+    /**
+     * True if runtime directories removed by <code>clean</code> should be moved to a trash directory in the build directory and deleted in the background
+     * while the build continues. The build waits for the deletes to complete before it finishes.
+     *
+     * @parameter
+     */
+    public boolean backgroundDelete;
+
+    /**
+     * Glob patterns, relative to the runtime directory, selecting the runtime and profile distribution entries to install. If not set, all entries are
+     * installed.
+     *
+     * @parameter
+     */
+    public String[] extractionIncludes;
+
+    /**
+     * Glob patterns, relative to the runtime directory, selecting runtime and profile distribution entries that are not installed. Entries in removed
+     * extensions and, if <code>clean</code> is set, in runtime configurations other than the contribution target are never installed.
+     *
+     * @parameter
+     */
+    public String[] extractionExcludes;
+
     /**
      * Directory where the runtime image is built.
      *
@@ -148,6 +181,147 @@ public class Fabric3RuntimeAssemblyMojo extends AbstractMojo {
      */
     public Dependency[] jndiDependencies = new Dependency[0];
 
+    /**
+     * Number of threads used to resolve runtime, profile, extension, datasource, jndi and contribution artifacts. If set to 1 and
+     * <code>pipelined</code> is false, all artifacts are resolved as a single batch.
+     *
+     * @parameter
+     */
+    public int resolutionThreads = 1;
+
+    /**
+     * True if artifacts should be installed as soon as they are resolved, so that resolution overlaps with extraction and copying. If false, all artifacts
+     * are resolved before installation starts.
+     *
+     * @parameter
+     */
+    public boolean pipelined = true;
+
+    /**
+     * Number of threads used to install extension, datasource, jndi and contribution artifacts once the runtime and profile distributions are installed.
+     *
+     * @parameter
+     */
+    public int installThreads = 4;
+
+    /**
+     * How resolved versions are locked: <code>none</code>, <code>lock</code> or <code>update</code>. In lock mode, the runtime, profiles, extensions,
+     * datasources, jndi dependencies and contributions are resolved with the versions recorded in the lock file and checked against the recorded
+     * SHA-256 checksums, so release and range versions do not require repository metadata lookups; artifacts not yet in the lock file are resolved as
+     * configured and added. In update mode, all artifacts are resolved as configured and the lock file is rewritten.
+     *
+     * @parameter property="fabric3.lockMode"
+     */
+    public String lockMode = "none";
+
+    /**
+     * The lock file used when <code>lockMode</code> is lock or update.
+     *
+     * @parameter property="fabric3.lockFile" default-value="${basedir}/fabric3.lock"
+     */
+    public File lockFile;
+
+    /**
+     * Number of threads used to extract runtime and profile distributions. If not set, the number of available processors is used.
+     *
+     * @parameter
+     */
+    public int extractionThreads;
+
+    /**
+     * How resolved artifacts are installed in the image: copy, hardlink or symlink. Hard links fall back to copying when the local repository and the image
+     * are on different file systems.
+     *
+     * @parameter
+     */
+    public String linkMode = "copy";
+
+    /**
+     * True if files that are unchanged since the previous build should not be reinstalled. Installed files are tracked in a manifest in the build
+     * directory, which is also used to remove files from the image that are no longer part of the configuration.
+     *
+     * @parameter
+     */
+    public boolean incremental = true;
+
+    /**
+     * Directory where extracted runtime and profile distributions are cached and shared across builds. If not set, distributions are extracted directly
+     * into the image. Cache entries are keyed by the SHA-256 checksum of the distribution archive, so each archive is read in full once per build to find
+     * its entry, in addition to reading the extracted files. When a cache entry is reused, the size and modification time of each of its files are checked
+     * so that files edited in an image through a hard link are extracted again.
+     *
+     * @parameter property="fabric3.distributionCache"
+     */
+    public File distributionCache;
+
+    /**
+     * Maximum size of the distribution cache in megabytes. Least recently used distributions are evicted when the cache grows beyond this size.
+     *
+     * @parameter
+     */
+    public long distributionCacheSize = 2048;
+
+    /**
+     * True if the jars installed in extensions, extensions/datasource, extensions/jndi and the deploy directory, and the jars embedded in deployed
+     * contributions, should be fingerprinted to report libraries that are installed more than once or in more than one version.
+     *
+     * @parameter property="fabric3.analyzeJars"
+     */
+    public boolean analyzeJars;
+
+    /**
+     * True if identical jars installed in more than one image directory should be hard-linked to a single copy. Implies <code>analyzeJars</code>. Jars
+     * embedded in contributions are not changed.
+     *
+     * @parameter
+     */
+    public boolean shareDuplicateJars;
+
+    /**
+     * True if a class data sharing archive for the boot classpath of a standalone image should be generated, together with a JDK argument file that
+     * enables it. Requires JDK 11 or later.
+     *
+     * @parameter property="fabric3.classDataSharing"
+     */
+    public boolean classDataSharing;
+
+    /**
+     * The JDK used to generate the class data sharing archive. The runtime must be started with the same JDK for the archive to be used. If not set, the
+     * JDK running the build is used.
+     *
+     * @parameter property="fabric3.cdsJavaHome"
+     */
+    public File cdsJavaHome;
+
+    /**
+     * Path of the runtime launcher jar relative to the runtime directory. If not set, the first jar in the bin directory with a Main-Class is used.
+     *
+     * @parameter
+     */
+    public String cdsLauncher;
+
+    /**
+     * True if the time spent resolving, extracting, copying and deleting files should be summarized at info level. The summary is otherwise only logged in
+     * debug mode.
+     *
+     * @parameter property="fabric3.metrics"
+     */
+    public boolean showMetrics;
+
+    /**
+     * True if build metrics for each phase and artifact should be written as JSON to fabric3-assembly-metrics.json in the build directory.
+     *
+     * @parameter property="fabric3.metricsReport"
+     */
+    public boolean metricsReport;
+
+    /**
+     * True if the checksums of all files installed in the image should be written to image.checksums in the build directory. Checksums are computed or
+     * checked as files are copied or extracted: SHA-256 for copied files and the CRC-32 recorded in the distribution for extracted entries.
+     *
+     * @parameter property="fabric3.checksumManifest"
+     */
+    public boolean checksumManifest;
 
     /**
      * @component
@@ -170,10 +344,65 @@ public class Fabric3RuntimeAssemblyMojo extends AbstractMojo {
      */
     private List<RemoteRepository> projectRepositories;
 
+    private ZipExtractor extractor;
+    private DistributionCache cache;
+    private FileInstaller installer;
+    private FileInstaller cacheInstaller;
+    private ImageManifest previous;
+    private ImageManifest manifest;
+    private boolean reuseSources;
+    private Boolean overlappingCurrent;
+    private boolean linked;
+    private BuildMetrics metrics;
+    private ExtractionFilter filter;
+    private ChecksumCache checksums;
+    private VersionLock lock;
+    private ArtifactResolver resolver;
+    private List<Future<?>> deletions = new ArrayList<>();
+
     public Fabric3RuntimeAssemblyMojo() {
     }
 
     public void execute() throws MojoExecutionException {
+        metrics = new BuildMetrics("fabric3-assembly");
+        try {
+            assemble();
+        } finally {
+            awaitDeletions();
+            reportMetrics();
+        }
+    }
+
+    /**
+     * Waits for runtime directories deleted in the background to be removed, since pool threads do not keep the JVM alive, and reports failures.
+     */
+    private void awaitDeletions() {
+        boolean interrupted = false;
+        for (Future<?> deletion : deletions) {
+            while (true) {
+                try {
+                    deletion.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    getLog().warn("Background delete failed: " + e.getCause().getMessage(), e.getCause());
+                    break;
+                }
+            }
+        }
+        deletions.clear();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Builds the runtime image.
+     *
+     * @throws MojoExecutionException if there is an error building the image
+     */
+    private void assemble() throws MojoExecutionException {
         String artifactId;
         File baseDirectory = new File(buildDirectory, "image");
         baseDirectory.mkdirs();
@@ -188,18 +417,308 @@ public class Fabric3RuntimeAssemblyMojo extends AbstractMojo {
         } else {
             throw new MojoExecutionException("Invalid runtime type specified: " + type);
         }
-        extractRuntime("org.fabric3", artifactId, baseDirectory);
-        installProfiles(rootDirectory);
-        installExtensions(rootDirectory);
-        installDatasources(rootDirectory);
-        installJndiDependencies(rootDirectory);
-        installContributions(rootDirectory);
+        FileInstaller.LinkMode mode;
+        try {
+            mode = FileInstaller.LinkMode.parse(linkMode);
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException("Invalid link mode specified: " + linkMode);
+        }
+        installer = new FileInstaller(mode);
+        linked = mode != FileInstaller.LinkMode.COPY;
+        // symbolic links would dangle once a cached distribution is evicted, so cached files are hard-linked unless copying is requested
+        cacheInstaller = new FileInstaller(mode == FileInstaller.LinkMode.COPY ? mode : FileInstaller.LinkMode.HARDLINK);
+        Artifact runtime = new DefaultArtifact("org.fabric3", artifactId, DISTRIBUTION_CLASSIFIER, DISTRIBUTION_EXTENSION, runtimeVersion);
+
+        filter = createFilter(rootDirectory);
+        File manifestFile = new File(buildDirectory, IMAGE_MANIFEST);
+        loadManifest(manifestFile, baseDirectory, runtime);
+
+        checksums = new ChecksumCache(session);
+        extractor = new ZipExtractor(extractionThreads);
+        if (distributionCache != null) {
+            cache = new DistributionCache(distributionCache, distributionCacheSize * 1024 * 1024, extractor, checksums);
+        }
+        try {
+            installArtifacts(runtime, baseDirectory, rootDirectory);
+        } finally {
+            extractor.shutdown();
+        }
         installConfiguration(rootDirectory);
         removeExtensions(rootDirectory);
 
         if (clean) {
             cleanRuntimes(rootDirectory);
         }
+        removeStaleFiles(baseDirectory);
+        if (analyzeJars || shareDuplicateJars) {
+            analyzeJars(baseDirectory, rootDirectory);
+        }
+        if (classDataSharing) {
+            generateSharedArchive(rootDirectory);
+        }
+        saveManifest(manifestFile);
+    }
+
+    /**
+     * Reports jars that are installed more than once or in conflicting versions and, if configured, links identical copies to a single file.
+     *
+     * @param baseDirectory the image directory
+     * @param rootDirectory the top-level runtime image directory
+     * @throws MojoExecutionException if there is an error reading or linking a jar
+     */
+    private void analyzeJars(File baseDirectory, File rootDirectory) throws MojoExecutionException {
+        // files copied into the image were hashed as they were copied, so the analyzer does not read them again
+        for (String path : manifest.getPaths()) {
+            String checksum = manifest.getChecksum(path);
+            if (checksum != null) {
+                checksums.put(new File(baseDirectory, path), checksum);
+            }
+        }
+        JarAnalyzer analyzer = new JarAnalyzer(baseDirectory, checksums);
+        File extensionsDirectory = new File(rootDirectory, "extensions");
+        try {
+            analyzer.addDirectory(extensionsDirectory);
+            analyzer.addDirectory(new File(extensionsDirectory, "datasource"));
+            analyzer.addDirectory(new File(extensionsDirectory, "jndi"));
+            analyzer.addDirectory(new File(rootDirectory, "runtimes" + File.separator + contributionTarget + File.separator + "deploy"));
+            long duplicateBytes = 0;
+            for (List<JarAnalyzer.Jar> group : analyzer.getDuplicates()) {
+                StringBuilder message = new StringBuilder("Duplicate jar " + analyzer.getName(group) + ":");
+                for (JarAnalyzer.Jar jar : group) {
+                    message.append("\n  ").append(jar.getPath());
+                }
+                getLog().warn(message);
+                duplicateBytes += group.get(0).getSize() * (group.size() - 1);
+            }
+            for (List<JarAnalyzer.Jar> group : analyzer.getConflicts()) {
+                StringBuilder message = new StringBuilder("Version conflict for " + analyzer.getName(group) + ":");
+                for (JarAnalyzer.Jar jar : group) {
+                    message.append("\n  ").append(jar.getVersion()).append(" in ").append(jar.getPath());
+                }
+                getLog().warn(message);
+            }
+            if (duplicateBytes > 0) {
+                getLog().info("Duplicate jars occupy " + duplicateBytes / 1024 + " KB");
+            }
+            if (shareDuplicateJars) {
+                for (String path : analyzer.share()) {
+                    getLog().debug("Linked duplicate: " + path);
+                    // the link has the modification time of the shared copy
+                    ImageManifest.FileRecord record = manifest.getFile(path);
+                    if (record != null) {
+                        manifest.addFile(path, record.getSource(), record.getHash());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Generates a class data sharing archive for the boot classpath of the image unless the classpath and JDK are unchanged since the previous build.
+     *
+     * @param rootDirectory the top-level runtime image directory
+     * @throws MojoExecutionException if there is an error generating the archive
+     */
+    private void generateSharedArchive(File rootDirectory) throws MojoExecutionException {
+        if (!RUNTIME_STANDALONE.equalsIgnoreCase(type)) {
+            getLog().warn("Class data sharing archives are only generated for standalone runtimes");
+            return;
+        }
+        File javaHome = cdsJavaHome != null ? cdsJavaHome : new File(System.getProperty("java.home"));
+        SharedArchiveGenerator generator = new SharedArchiveGenerator(javaHome, rootDirectory);
+        BuildMetrics.Sample sample = metrics.start(BuildMetrics.Phase.ARCHIVE, SharedArchiveGenerator.ARCHIVE);
+        try {
+            String launcher = cdsLauncher != null ? cdsLauncher : generator.findLauncher();
+            if (launcher == null || !new File(rootDirectory, launcher).isFile()) {
+                throw new MojoExecutionException("Runtime launcher jar not found for class data sharing");
+            }
+            List<String> classpath = generator.getClasspath(launcher);
+            String signature = generator.getSignature(classpath);
+            manifest.setOption(CDS_OPTION, signature);
+            if (incremental && generator.exists() && signature.equals(previous.getOption(CDS_OPTION))) {
+                getLog().debug("Unchanged: " + SharedArchiveGenerator.ARCHIVE);
+                return;
+            }
+            getLog().info("Generating class data sharing archive for " + classpath.size() + " boot jars");
+            sample.entries(generator.generate(classpath, getLog()));
+            sample.written(new File(rootDirectory, SharedArchiveGenerator.ARCHIVE).length());
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        } finally {
+            sample.stop();
+        }
+    }
+
+    /**
+     * Logs the build metrics and writes the metrics report if configured.
+     */
+    private void reportMetrics() {
+        metrics.log(getLog(), showMetrics);
+        if (metricsReport) {
+            File report = new File(buildDirectory, METRICS_REPORT);
+            try {
+                metrics.write(report);
+            } catch (IOException e) {
+                getLog().warn("Unable to write metrics report: " + report, e);
+            }
+        }
+    }
+
+    /**
+     * Loads the manifest written by the previous build and creates the manifest for this build.
+     *
+     * @param manifestFile  the manifest file
+     * @param baseDirectory the image directory
+     * @param runtime       the runtime distribution artifact
+     */
+    private void loadManifest(File manifestFile, File baseDirectory, Artifact runtime) {
+        manifest = new ImageManifest(baseDirectory);
+        try {
+            previous = ImageManifest.load(manifestFile, baseDirectory);
+        } catch (IOException e) {
+            getLog().warn("Ignoring unreadable image manifest: " + e.getMessage());
+            previous = new ImageManifest(baseDirectory);
+        }
+        // a removed source may have overwritten files installed from another source, in which case every source must be checked file by file
+        reuseSources = incremental && getSourceKeys(runtime).containsAll(previous.getSources());
+        // a changed filter selects different entries from unchanged distributions
+        String signature = filter.getSignature();
+        reuseSources = reuseSources && signature.equals(previous.getOption(FILTER_OPTION));
+        overlappingCurrent = null;
+        manifest.setOption(FILTER_OPTION, signature);
+    }
+
+    /**
+     * Creates the filter that selects the distribution entries to install.
+     *
+     * @param rootDirectory the top-level runtime image directory
+     * @return the filter
+     * @throws MojoExecutionException if a removed extension does not specify a version
+     */
+    private ExtractionFilter createFilter(File rootDirectory) throws MojoExecutionException {
+        ExtractionFilter filter = new ExtractionFilter(rootDirectory, extractionIncludes, extractionExcludes);
+        if (clean) {
+            filter.keepRuntime(contributionTarget);
+        }
+        for (Dependency extension : removeExtensions) {
+            filter.remove("extensions/" + getExtensionFileName(extension));
+        }
+        return filter;
+    }
+
+    private String getExtensionFileName(Dependency extension) throws MojoExecutionException {
+        String id = extension.getArtifactId();
+        String version = extension.getVersion();
+        if (version == null) {
+            throw new MojoExecutionException("Version not specified for: " + id);
+        }
+        return id + "-" + version + ".jar";
+    }
+
+    /**
+     * Returns the keys of all sources installed in the image.
+     *
+     * @param runtime the runtime distribution artifact
+     * @return the source keys
+     */
+    private Set<String> getSourceKeys(Artifact runtime) {
+        Set<String> keys = new HashSet<>();
+        keys.add(runtime.toString());
+        for (Dependency profile : profiles) {
+            keys.add(createProfileArtifact(profile).toString());
+        }
+        addSourceKeys(extensions, keys);
+        addSourceKeys(datasources, keys);
+        addSourceKeys(jndiDependencies, keys);
+        addSourceKeys(contributions, keys);
+        for (ConfigFile file : configurationFiles) {
+            keys.add(getConfigurationKey(file));
+        }
+        return keys;
+    }
+
+    private void addSourceKeys(Dependency[] dependencies, Set<String> keys) {
+        if (dependencies == null) {
+            return;
+        }
+        for (Dependency dependency : dependencies) {
+            keys.add(createArtifact(dependency).toString());
+        }
+    }
+
+    private String getConfigurationKey(ConfigFile file) {
+        return CONFIG_SOURCE + file.getSource();
+    }
+
+    private File getConfigurationFile(String source) {
+        // main directory is parent of the source directory
+        return new File(sourceDirectory.getParent(), source);
+    }
+
+    /**
+     * Returns the artifact an image manifest source key refers to. Artifact sources are keyed by {@link Artifact#toString()}, which has the form
+     * <code>groupId:artifactId:extension[:classifier]:version</code>, and configuration files by {@link #CONFIG_SOURCE} followed by their source.
+     *
+     * @param key the source key
+     * @return the artifact or null if the key is the key of a configuration file
+     * @throws IllegalArgumentException if the key is neither an artifact nor a configuration file key
+     */
+    static Artifact parseSourceKey(String key) {
+        if (key.startsWith(CONFIG_SOURCE)) {
+            return null;
+        }
+        return new DefaultArtifact(key);
+    }
+
+    /**
+     * Returns true if an artifact is a runtime or profile distribution, which is extracted rather than copied.
+     *
+     * @param artifact the artifact
+     * @return true if the artifact is a distribution
+     */
+    static boolean isDistribution(Artifact artifact) {
+        return DISTRIBUTION_EXTENSION.equals(artifact.getExtension()) && DISTRIBUTION_CLASSIFIER.equals(artifact.getClassifier());
+    }
+
+    /**
+     * Deletes files recorded by the previous build that were not installed by this build.
+     *
+     * @param baseDirectory the image directory
+     */
+    private void removeStaleFiles(File baseDirectory) {
+        BuildMetrics.Sample sample = metrics.start(BuildMetrics.Phase.DELETE, "stale files");
+        for (String path : previous.getPaths()) {
+            if (!manifest.contains(path)) {
+                File file = new File(baseDirectory, path);
+                if (file.isFile()) {
+                    getLog().debug("Removing " + path);
+                    if (file.delete()) {
+                        sample.entries(1);
+                    }
+                }
+            }
+        }
+        sample.stop();
+    }
+
+    /**
+     * Writes the manifest for this build.
+     *
+     * @param manifestFile the manifest file
+     * @throws MojoExecutionException if there is an error writing the manifest
+     */
+    private void saveManifest(File manifestFile) throws MojoExecutionException {
+        manifest.retainExisting();
+        try {
+            manifest.save(manifestFile);
+            if (checksumManifest) {
+                manifest.saveChecksums(new File(buildDirectory, CHECKSUM_MANIFEST));
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
     }
 
     /**
@@ -212,95 +731,193 @@ public class Fabric3RuntimeAssemblyMojo extends AbstractMojo {
         File runtimes = new File(rootDirectory, "runtimes");
         for (File file : runtimes.listFiles()) {
             if (file.isDirectory() && !contributionTarget.equals(file.getName())) {
+                BuildMetrics.Sample sample = metrics.start(BuildMetrics.Phase.DELETE, "runtimes/" + file.getName());
                 try {
-                    FileHelper.forceDelete(file);
+                    if (backgroundDelete) {
+                        deletions.add(FileHelper.deleteInBackground(file, new File(buildDirectory, TRASH)));
+                    } else {
+                        FileHelper.forceDelete(file);
+                    }
                 } catch (IOException e) {
                     getLog().error(e);
                     throw new MojoExecutionException(e.getMessage());
+                } finally {
+                    sample.stop();
                 }
             }
         }
     }
 
     /**
-     * Resolves and unzips the contents of a base runtime distribution to a directory.
+     * Resolves and installs the runtime distribution and all configured profiles, extensions, datasources, jndi dependencies and contributions.
      *
-     * @param groupId       the distribution group id
-     * @param artifactId    the distribution artifact id
-     * @param baseDirectory the extract directory
-     * @throws MojoExecutionException if there is an error extracting the distribution
+     * Distributions are installed in order since later profiles may overwrite files from the runtime or earlier profiles. The remaining artifacts are
+     * installed once all distributions are in place.
+     *
+     * @param runtime       the runtime distribution artifact
+     * @param baseDirectory the image directory
+     * @param rootDirectory the top-level runtime image directory
+     * @throws MojoExecutionException if there is an error resolving or installing an artifact
+     */
+    private void installArtifacts(Artifact runtime, File baseDirectory, File rootDirectory) throws MojoExecutionException {
+        List<InstallPipeline.Step> distributions = new ArrayList<>();
+        distributions.add(createRuntimeStep(runtime, baseDirectory));
+        addProfileSteps(rootDirectory, distributions);
+        List<InstallPipeline.Step> files = new ArrayList<>();
+        addExtensionSteps(rootDirectory, files);
+        addDatasourceSteps(rootDirectory, files);
+        addJndiSteps(rootDirectory, files);
+        addContributionSteps(rootDirectory, files);
+
+        getLog().info("Resolving " + (distributions.size() + files.size()) + " artifacts");
+        lock = createLock();
+        resolver = new ArtifactResolver(repositorySystem, session, projectRepositories, resolutionThreads, metrics, lock);
+        if (pipelined) {
+            new InstallPipeline(resolver, resolutionThreads, installThreads).run(distributions, files);
+        } else {
+            List<InstallPipeline.Step> steps = new ArrayList<>(distributions);
+            steps.addAll(files);
+            List<Artifact> artifacts = new ArrayList<>();
+            for (InstallPipeline.Step step : steps) {
+                artifacts.add(step.getArtifact());
+            }
+            Map<Artifact, File> resolved = resolver.resolve(artifacts);
+            for (InstallPipeline.Step step : steps) {
+                step.install(resolved.get(step.getArtifact()));
+            }
+        }
+        saveLock();
+    }
+
+    /**
+     * Creates the version lock for the configured lock mode.
+     *
+     * @return the lock or null if versions are not locked
+     * @throws MojoExecutionException if the lock mode is not valid or the lock file cannot be read
      */
-    private void extractRuntime(String groupId, String artifactId, File baseDirectory) throws MojoExecutionException {
-        Artifact artifact = new DefaultArtifact(groupId, artifactId, "bin", "zip", runtimeVersion);
+    private VersionLock createLock() throws MojoExecutionException {
+        if (lockMode == null || "none".equalsIgnoreCase(lockMode)) {
+            return null;
+        } else if (!"lock".equalsIgnoreCase(lockMode) && !"update".equalsIgnoreCase(lockMode)) {
+            throw new MojoExecutionException("Invalid lock mode specified: " + lockMode);
+        }
+        VersionLock versionLock = new VersionLock(lockFile, "update".equalsIgnoreCase(lockMode), session);
         try {
-            getLog().info("Installing the Fabric3 runtime");
-            ArtifactResult result = repositorySystem.resolveArtifact(session, new ArtifactRequest(artifact, projectRepositories, null));
-            File source = result.getArtifact().getFile();
-            extract(source, baseDirectory);
-        } catch (ArtifactResolutionException e) {
+            versionLock.load();
+        } catch (IOException e) {
             throw new MojoExecutionException(e.getMessage(), e);
         }
+        return versionLock;
     }
 
     /**
-     * Resolves and installs a set of configured profiles by extracting their contents to a runtime image repository
+     * Writes the lock file if versions are locked and entries were added or replaced.
      *
-     * @param rootDirectory the top-level runtime image directory
-     * @throws MojoExecutionException if there is an error during installation
+     * @throws MojoExecutionException if the lock file cannot be written
      */
-    private void installProfiles(File rootDirectory) throws MojoExecutionException {
-        for (Dependency profile : profiles) {
-            String groupId = profile.getGroupId();
-            String artifactId = profile.getArtifactId();
-            String version = profile.getVersion();
-            getLog().info("Installing profile: " + groupId + ":" + artifactId);
-            Artifact artifact = new DefaultArtifact(groupId, artifactId, "bin", "zip", version);
-            try {
-                ArtifactResult result = repositorySystem.resolveArtifact(session, new ArtifactRequest(artifact, projectRepositories, null));
-                File source = result.getArtifact().getFile();
-                extract(source, rootDirectory);
-            } catch (ArtifactResolutionException e) {
-                throw new MojoExecutionException(e.getMessage(), e);
+    private void saveLock() throws MojoExecutionException {
+        if (lock == null) {
+            return;
+        }
+        try {
+            if (lock.save()) {
+                getLog().info("Updated lock file: " + lockFile);
             }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to write lock file: " + lockFile, e);
         }
     }
 
     /**
-     * Resolves and installs a set of configured extensions by copying them to a runtime image repository
+     * Checks a resolved artifact against the version lock once it has been installed, so that a checksum computed while it was copied is reused.
      *
-     * @param rootDirectory the top-level runtime image directory
-     * @throws MojoExecutionException if there is an error during installation
+     * @param artifact the requested artifact
+     * @param file     the resolved file
+     * @throws MojoExecutionException if the file does not match the lock
      */
-    private void installExtensions(File rootDirectory) throws MojoExecutionException {
-        for (Dependency extension : extensions) {
-            String groupId = extension.getGroupId();
-            String artifactId = extension.getArtifactId();
-            String version = extension.getVersion();
-            String type = extension.getType();
-            String classifier = extension.getClassifier();
-            getLog().info("Installing extension: " + groupId + ":" + artifactId);
-            Artifact artifact = new DefaultArtifact(groupId, artifactId, classifier, type, version);
-            ArtifactResult result;
-            try {
-                result = repositorySystem.resolveArtifact(session, new ArtifactRequest(artifact, projectRepositories, null));
-            } catch (ArtifactResolutionException e) {
-                throw new MojoExecutionException(e.getMessage(), e);
-            }
-            File source = result.getArtifact().getFile();
-            InputStream sourceStream = null;
-            OutputStream targetStream = null;
-            try {
-                File repository = new File(rootDirectory, "extensions");
-                sourceStream = new BufferedInputStream(new FileInputStream(source));
-                File targetFile = new File(repository, source.getName());
-                targetStream = new BufferedOutputStream(new FileOutputStream(targetFile));
-                copy(sourceStream, targetStream);
-            } catch (IOException e) {
-                throw new MojoExecutionException(e.getMessage(), e);
-            } finally {
-                close(targetStream);
-                close(sourceStream);
+    private void verifyLock(Artifact artifact, File file) throws MojoExecutionException {
+        if (lock != null) {
+            lock.verify(artifact, file);
+        }
+    }
+
+    private Artifact createArtifact(Dependency dependency) {
+        String groupId = dependency.getGroupId();
+        String artifactId = dependency.getArtifactId();
+        String version = dependency.getVersion();
+        String type = dependency.getType();
+        String classifier = dependency.getClassifier();
+        return new DefaultArtifact(groupId, artifactId, classifier, type, version);
+    }
+
+    private Artifact createProfileArtifact(Dependency profile) {
+        return new DefaultArtifact(profile.getGroupId(), profile.getArtifactId(), DISTRIBUTION_CLASSIFIER, DISTRIBUTION_EXTENSION, profile.getVersion());
+    }
+
+    /**
+     * Creates the step that unzips the contents of a base runtime distribution to a directory.
+     *
+     * @param runtime       the distribution artifact
+     * @param baseDirectory the extract directory
+     * @return the step
+     */
+    private InstallPipeline.Step createRuntimeStep(final Artifact runtime, final File baseDirectory) {
+        return new InstallPipeline.Step(runtime) {
+            public void install(File file) throws MojoExecutionException {
+                getLog().info("Installing the Fabric3 runtime");
+                extract(runtime.toString(), file, baseDirectory);
+                verifyLock(runtime, file);
             }
+        };
+    }
+
+    /**
+     * Adds steps that install the configured profiles by extracting their contents to a runtime image repository
+     *
+     * @param rootDirectory the top-level runtime image directory
+     * @param steps         the steps to add to
+     */
+    private void addProfileSteps(final File rootDirectory, List<InstallPipeline.Step> steps) {
+        for (final Dependency profile : profiles) {
+            final Artifact artifact = createProfileArtifact(profile);
+            steps.add(new InstallPipeline.Step(artifact) {
+                public void install(File file) throws MojoExecutionException {
+                    getLog().info("Installing profile: " + profile.getGroupId() + ":" + profile.getArtifactId());
+                    extract(artifact.toString(), file, rootDirectory);
+                    verifyLock(artifact, file);
+                }
+            });
+        }
+    }
+
+    /**
+     * Adds steps that install the configured extensions by copying them to a runtime image repository
+     *
+     * @param rootDirectory the top-level runtime image directory
+     * @param steps         the steps to add to
+     */
+    private void addExtensionSteps(File rootDirectory, List<InstallPipeline.Step> steps) {
+        addCopySteps(extensions, "extension", new File(rootDirectory, "extensions"), steps);
+    }
+
+    /**
+     * Adds steps that copy resolved dependencies into a runtime image directory.
+     *
+     * @param dependencies the dependencies
+     * @param description  the kind of dependency, used for logging
+     * @param directory    the target directory
+     * @param steps        the steps to add to
+     */
+    private void addCopySteps(Dependency[] dependencies, final String description, final File directory, List<InstallPipeline.Step> steps) {
+        for (final Dependency dependency : dependencies) {
+            final Artifact artifact = createArtifact(dependency);
+            steps.add(new InstallPipeline.Step(artifact) {
+                public void install(File file) throws MojoExecutionException {
+                    getLog().info("Installing " + description + ": " + dependency.getGroupId() + ":" + dependency.getArtifactId());
+                    Fabric3RuntimeAssemblyMojo.this.install(artifact.toString(), file, directory);
+                    verifyLock(artifact, file);
+                }
+            });
         }
     }
 
@@ -312,156 +929,56 @@ public class Fabric3RuntimeAssemblyMojo extends AbstractMojo {
      */
     private void installConfiguration(File rootDirectory) throws MojoExecutionException {
         for (ConfigFile file : configurationFiles) {
-            InputStream sourceStream = null;
-            OutputStream targetStream = null;
-            try {
-                // main directory is parent of the source directory
-                File source = new File(sourceDirectory.getParent(), file.getSource());
-                File targetDirectory = new File(rootDirectory, file.getDestination());
-                targetDirectory.mkdirs();
-                sourceStream = new BufferedInputStream(new FileInputStream(source));
-                File targetFile = new File(targetDirectory, source.getName());
-                targetStream = new BufferedOutputStream(new FileOutputStream(targetFile));
-                copy(sourceStream, targetStream);
-            } catch (IOException e) {
-                throw new MojoExecutionException(e.getMessage(), e);
-            } finally {
-                close(targetStream);
-                close(sourceStream);
-            }
+            File source = getConfigurationFile(file.getSource());
+            File targetDirectory = new File(rootDirectory, file.getDestination());
+            targetDirectory.mkdirs();
+            // configuration files come from the project source tree and are always copied so the image never links back to them
+            installFile(getConfigurationKey(file), source, new File(targetDirectory, source.getName()), false);
         }
     }
 
     /**
-     * Installs contributions to the deploy directory.
+     * Adds steps that install contributions to the deploy directory.
      *
      * @param rootDirectory the top-level runtime image directory
-     * @throws MojoExecutionException if there is an error during installation
+     * @param steps         the steps to add to
      */
-    private void installContributions(File rootDirectory) throws MojoExecutionException {
-        for (Dependency contribution : contributions) {
-            String groupId = contribution.getGroupId();
-            String artifactId = contribution.getArtifactId();
-            String version = contribution.getVersion();
-            String type = contribution.getType();
-            String classifier = contribution.getClassifier();
-            getLog().info("Installing contribution: " + groupId + ":" + artifactId);
-            Artifact artifact = new DefaultArtifact(groupId, artifactId, classifier, type, version);
-            ArtifactResult result;
-            try {
-                result = repositorySystem.resolveArtifact(session, new ArtifactRequest(artifact, projectRepositories, null));
-            } catch (ArtifactResolutionException e) {
-                throw new MojoExecutionException(e.getMessage(), e);
-            }
-            File source = result.getArtifact().getFile();
-            InputStream sourceStream = null;
-            OutputStream targetStream = null;
-            try {
-                File repository = new File(rootDirectory, "runtimes" + File.separator + contributionTarget + File.separatorChar + "deploy");
-                repository.mkdirs();
-                sourceStream = new BufferedInputStream(new FileInputStream(source));
-                File targetFile = new File(repository, source.getName());
-                targetStream = new BufferedOutputStream(new FileOutputStream(targetFile));
-                copy(sourceStream, targetStream);
-            } catch (IOException e) {
-                throw new MojoExecutionException(e.getMessage(), e);
-            } finally {
-                close(targetStream);
-                close(sourceStream);
-            }
-        }
-
+    private void addContributionSteps(File rootDirectory, List<InstallPipeline.Step> steps) {
+        File deployDirectory = new File(rootDirectory, "runtimes" + File.separator + contributionTarget + File.separatorChar + "deploy");
+        deployDirectory.mkdirs();
+        addCopySteps(contributions, "contribution", deployDirectory, steps);
     }
 
     /**
-     * Resolves and installs a set of configured datasource dependencies.
+     * Adds steps that install the configured datasource dependencies.
      *
      * @param rootDirectory the top-level runtime image directory
-     * @throws MojoExecutionException if there is an error during installation
+     * @param steps         the steps to add to
      */
-    private void installDatasources(File rootDirectory) throws MojoExecutionException {
+    private void addDatasourceSteps(File rootDirectory, List<InstallPipeline.Step> steps) {
         if (datasources == null || datasources.length == 0) {
             return;
         }
         File repository = new File(rootDirectory, "extensions");
         File datasourceDir = new File(repository, "datasource");
         datasourceDir.mkdirs();
-        for (Dependency dependency : datasources) {
-            String groupId = dependency.getGroupId();
-            String artifactId = dependency.getArtifactId();
-            String version = dependency.getVersion();
-            String type = dependency.getType();
-            String classifier = dependency.getClassifier();
-            getLog().info("Installing datasource library: " + groupId + ":" + artifactId);
-            Artifact artifact = new DefaultArtifact(groupId, artifactId, classifier, type, version);
-            //            Artifact artifact = artifactFactory.createArtifactWithClassifier(groupId, artifactId, version, type, classifier);
-            ArtifactResult result;
-            try {
-                result = repositorySystem.resolveArtifact(session, new ArtifactRequest(artifact, projectRepositories, null));
-            } catch (ArtifactResolutionException e) {
-                throw new MojoExecutionException(e.getMessage(), e);
-            }
-
-            File source = result.getArtifact().getFile();
-            InputStream sourceStream = null;
-            OutputStream targetStream = null;
-            try {
-                sourceStream = new BufferedInputStream(new FileInputStream(source));
-                File targetFile = new File(datasourceDir, source.getName());
-                targetStream = new BufferedOutputStream(new FileOutputStream(targetFile));
-                copy(sourceStream, targetStream);
-            } catch (IOException e) {
-                throw new MojoExecutionException(e.getMessage(), e);
-            } finally {
-                close(targetStream);
-                close(sourceStream);
-            }
-        }
+        addCopySteps(datasources, "datasource library", datasourceDir, steps);
     }
 
     /**
-     * Resolves and installs a set of configured jndi dependencies.
+     * Adds steps that install the configured jndi dependencies.
      *
      * @param rootDirectory the top-level runtime image directory
-     * @throws MojoExecutionException if there is an error during installation
+     * @param steps         the steps to add to
      */
-    private void installJndiDependencies(File rootDirectory) throws MojoExecutionException {
+    private void addJndiSteps(File rootDirectory, List<InstallPipeline.Step> steps) {
         if (jndiDependencies == null || jndiDependencies.length == 0) {
             return;
         }
         File repository = new File(rootDirectory, "extensions");
         File jndiDir = new File(repository, "jndi");
         jndiDir.mkdirs();
-        for (Dependency dependency : jndiDependencies) {
-            String groupId = dependency.getGroupId();
-            String artifactId = dependency.getArtifactId();
-            String version = dependency.getVersion();
-            String type = dependency.getType();
-            String classifier = dependency.getClassifier();
-            getLog().info("Installing jndi library: " + groupId + ":" + artifactId);
-            Artifact artifact = new DefaultArtifact(groupId, artifactId, classifier, type, version);
-            ArtifactResult result;
-            try {
-                result = repositorySystem.resolveArtifact(session, new ArtifactRequest(artifact, projectRepositories, null));
-            } catch (ArtifactResolutionException e) {
-                throw new MojoExecutionException(e.getMessage(), e);
-            }
-
-            File source = result.getArtifact().getFile();
-            InputStream sourceStream = null;
-            OutputStream targetStream = null;
-            try {
-                sourceStream = new BufferedInputStream(new FileInputStream(source));
-                File targetFile = new File(jndiDir, source.getName());
-                targetStream = new BufferedOutputStream(new FileOutputStream(targetFile));
-                copy(sourceStream, targetStream);
-            } catch (IOException e) {
-                throw new MojoExecutionException(e.getMessage(), e);
-            } finally {
-                close(targetStream);
-                close(sourceStream);
-            }
-        }
+        addCopySteps(jndiDependencies, "jndi library", jndiDir, steps);
     }
 
     /**
@@ -472,81 +989,277 @@ public class Fabric3RuntimeAssemblyMojo extends AbstractMojo {
      */
     private void removeExtensions(File rootDirectory) throws MojoExecutionException {
         for (Dependency extension : removeExtensions) {
-            String id = extension.getArtifactId();
-            String version = extension.getVersion();
-            if (version == null) {
-                throw new MojoExecutionException("Version not specified for: " + id);
-            }
-            String fileName = id + "-" + version + ".jar";
+            String fileName = getExtensionFileName(extension);
             File extensionsDir = new File(rootDirectory, "extensions");
             File file = new File(extensionsDir, fileName);
+            String path = manifest.getPath(file);
+            BuildMetrics.Sample sample = metrics.start(BuildMetrics.Phase.DELETE, fileName);
             boolean result = file.delete();
-            if (!result) {
+            sample.entries(result ? 1 : 0).stop();
+            // the file is not present if it was skipped during extraction, or removed by the previous build and its distribution has not changed since
+            if (!result && (file.exists() || !(filter.isSkipped("extensions/" + fileName) || previous.isRemoved(path)))) {
                 throw new MojoExecutionException("Unable to exclude: " + file);
             }
+            manifest.markRemoved(path);
         }
     }
 
     /**
-     * Extracts the contents of a zip file to a target directory.
+     * Extracts the contents of a zip file to a target directory, skipping entries that are unchanged since the previous build.
      *
+     * @param key         the source key
      * @param source      the zip file
      * @param destination the target directory
      * @throws MojoExecutionException if there is an error during extraction
      */
-    private void extract(File source, File destination) throws MojoExecutionException {
-        ZipFile zipfile;
+    private void extract(String key, File source, File destination) throws MojoExecutionException {
+        BuildMetrics.Sample sample = metrics.start(BuildMetrics.Phase.EXTRACT, key);
+        if (isCurrent(key, source)) {
+            getLog().debug("Unchanged: " + key);
+            manifest.include(previous, key);
+            sample.stop();
+            return;
+        }
+        Map<String, String> extracted = new LinkedHashMap<>();
         try {
-            zipfile = new ZipFile(source);
+            if (cache != null) {
+                if (!extractCached(key, source, destination, extracted, sample)) {
+                    getLog().warn("Distribution cache entry for " + key + " has been modified and is in use by another build, extracting the archive");
+                    extractArchive(key, source, destination, extracted, sample);
+                }
+            } else {
+                extractArchive(key, source, destination, extracted, sample);
+            }
         } catch (IOException e) {
             throw new MojoExecutionException(e.getMessage(), e);
+        } finally {
+            sample.entries(extracted.size()).stop();
         }
-        Enumeration enumeration = zipfile.entries();
-        while (enumeration.hasMoreElements()) {
-            ZipEntry entry = (ZipEntry) enumeration.nextElement();
-            if (entry.isDirectory()) {
-                new File(destination, entry.getName()).mkdirs();
-            } else {
-                if (entry.getName().toUpperCase().endsWith(".MF")) {
-                    // ignore manifests
-                    continue;
+        for (Map.Entry<String, String> entry : extracted.entrySet()) {
+            manifest.addFile(entry.getKey(), key, entry.getValue());
+        }
+        manifest.addSource(key, source);
+    }
+
+    /**
+     * Extracts changed entries from a zip file.
+     *
+     * @param key         the source key
+     * @param source      the zip file
+     * @param destination the target directory
+     * @param extracted   receives the paths and hashes of extracted entries
+     * @param sample      the metrics sample for the distribution
+     * @throws IOException if there is an error during extraction
+     */
+    private void extractArchive(final String key,
+                                File source,
+                                final File destination,
+                                final Map<String, String> extracted,
+                                final BuildMetrics.Sample sample) throws IOException {
+        sample.read(source.length());
+        extractor.extract(source, destination, new ZipExtractor.EntryFilter() {
+            public boolean include(ZipEntry entry) {
+                File target = new File(destination, entry.getName());
+                if (!filter.include(target, entry.isDirectory())) {
+                    return false;
+                } else if (entry.isDirectory()) {
+                    return true;
                 }
-                InputStream sourceStream = null;
-                OutputStream targetStream = null;
-                try {
-                    sourceStream = new BufferedInputStream(zipfile.getInputStream(entry));
-                    FileOutputStream fos = new FileOutputStream(new File(destination, entry.getName()));
-                    targetStream = new BufferedOutputStream(fos, BUFFER);
-                    copy(sourceStream, targetStream);
-                    targetStream.flush();
-                } catch (IOException e) {
-                    throw new MojoExecutionException(e.getMessage(), e);
-                } finally {
-                    close(targetStream);
-                    close(sourceStream);
+                if (select(key, target, ImageManifest.hash(entry), extracted)) {
+                    sample.written(entry.getSize());
+                    return true;
+                }
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Installs changed entries of a distribution from the distribution cache.
+     *
+     * @param key         the source key
+     * @param source      the zip file
+     * @param destination the target directory
+     * @param extracted   receives the paths and hashes of installed entries
+     * @param sample      the metrics sample for the distribution
+     * @return false if the distribution could not be read from the cache
+     * @throws IOException if there is an error during installation
+     */
+    private boolean extractCached(String key, File source, File destination, Map<String, String> extracted, BuildMetrics.Sample sample)
+            throws IOException {
+        DistributionCache.Distribution distribution = cache.open(key, source);
+        if (distribution == null) {
+            return false;
+        }
+        try {
+            for (String directory : distribution.getDirectories()) {
+                File target = new File(destination, directory);
+                if (filter.include(target, true)) {
+                    target.mkdirs();
                 }
             }
+            for (DistributionCache.Entry entry : distribution.getEntries()) {
+                File target = new File(destination, entry.getName());
+                if (filter.include(target, false) && select(key, target, ImageManifest.hash(entry.getCrc()), extracted)) {
+                    target.getParentFile().mkdirs();
+                    File cached = cacheInstaller.install(new File(distribution.getRoot(), entry.getName()), target.getParentFile());
+                    if (!linked) {
+                        sample.written(cached.length());
+                    }
+                }
+            }
+            return true;
+        } finally {
+            distribution.close();
         }
     }
 
-    private int copy(InputStream input, OutputStream output) throws IOException {
-        byte[] buffer = new byte[BUFFER];
-        int count = 0;
-        int n;
-        while (-1 != (n = input.read(buffer))) {
-            output.write(buffer, 0, n);
-            count += n;
+    /**
+     * Determines if a distribution entry must be written to the image. Unchanged entries are recorded in the manifest; changed entries are added to the
+     * set of extracted entries.
+     *
+     * @param key       the source key
+     * @param target    the target file
+     * @param hash      the entry hash
+     * @param extracted the paths and hashes of entries to write
+     * @return true if the entry must be written
+     */
+    private boolean select(String key, File target, String hash, Map<String, String> extracted) {
+        String path = manifest.getPath(target);
+        if (isUnchanged(path, hash)) {
+            manifest.addFile(path, key, hash);
+            return false;
         }
-        return count;
+        extracted.put(path, hash);
+        return true;
     }
 
-    private void close(Closeable closeable) {
+    /**
+     * Installs a resolved artifact into a runtime image directory.
+     *
+     * @param key       the source key
+     * @param source    the resolved artifact file
+     * @param directory the target directory
+     * @throws MojoExecutionException if there is an error during installation
+     */
+    private void install(String key, File source, File directory) throws MojoExecutionException {
+        installFile(key, source, new File(directory, source.getName()), true);
+    }
+
+    /**
+     * Installs a file into the runtime image unless it is unchanged since the previous build.
+     *
+     * @param key    the source key
+     * @param source the source file
+     * @param target the target file
+     * @param link   true if the file may be linked according to the configured link mode, false if it must be copied
+     * @throws MojoExecutionException if there is an error during installation
+     */
+    private void installFile(String key, File source, File target, boolean link) throws MojoExecutionException {
+        BuildMetrics.Sample sample = metrics.start(BuildMetrics.Phase.COPY, key);
         try {
-            if (closeable != null) {
-                closeable.close();
+            if (isCurrent(key, source)) {
+                getLog().debug("Unchanged: " + key);
+                manifest.include(previous, key);
+                return;
             }
+            String path = manifest.getPath(target);
+            String checksum = checksums.get(source);
+            sample.read(source.length());
+            if (checksum == null && (!link || !linked) && isReplaced(path)) {
+                // the file is copied in any case, so its checksum is computed from the bytes as they are copied
+                MessageDigest digest = ChecksumCache.createDigest();
+                FileInstaller.copy(source, target, digest);
+                checksum = ChecksumCache.toHex(digest.digest());
+                checksums.put(source, checksum);
+                sample.written(source.length()).entries(1);
+            } else {
+                if (checksum == null) {
+                    checksum = checksums.compute(source);
+                }
+                if (!isUnchanged(path, ImageManifest.hash(checksum))) {
+                    if (link) {
+                        installer.install(source, target.getParentFile());
+                    } else {
+                        FileInstaller.copy(source, target);
+                    }
+                    if (!link || !linked) {
+                        sample.written(source.length());
+                    }
+                    sample.entries(1);
+                }
+            }
+            manifest.addFile(path, key, ImageManifest.hash(checksum));
+            manifest.addSource(key, source);
         } catch (IOException e) {
-            getLog().error(e);
+            throw new MojoExecutionException(e.getMessage(), e);
+        } finally {
+            sample.stop();
+        }
+    }
+
+    /**
+     * Returns true if a source and all files installed from it are unchanged since the previous build.
+     *
+     * @param key    the source key
+     * @param source the source file
+     * @return true if the source is unchanged
+     * @throws MojoExecutionException if an overlapping source cannot be resolved
+     */
+    private boolean isCurrent(String key, File source) throws MojoExecutionException {
+        if (!reuseSources || !previous.isCurrent(key, source)) {
+            return false;
+        }
+        return !previous.isOverlapping(key) || isOverlappingCurrent();
+    }
+
+    /**
+     * Returns true if all sources that installed a path another source also installed are unchanged since the previous build. Only the last writer of a
+     * path is recorded, so if one of them has changed and no longer installs the path, reusing the others would leave the file to be removed as stale
+     * rather than restored from an earlier writer. In that case all of them are installed again in order.
+     *
+     * @return true if the overlapping sources are unchanged
+     * @throws MojoExecutionException if an overlapping source cannot be resolved
+     */
+    private synchronized boolean isOverlappingCurrent() throws MojoExecutionException {
+        if (overlappingCurrent == null) {
+            overlappingCurrent = true;
+            for (String key : previous.getOverlappingSources()) {
+                Artifact artifact = parseSourceKey(key);
+                File file = artifact == null ? getConfigurationFile(key.substring(CONFIG_SOURCE.length())) : resolver.resolve(artifact);
+                if (!previous.isCurrent(key, file)) {
+                    getLog().debug("Reinstalling overlapping sources, changed: " + key);
+                    overlappingCurrent = false;
+                    break;
+                }
+            }
+        }
+        return overlappingCurrent;
+    }
+
+    /**
+     * Returns true if a file must be written to the image whatever its content hash, because the previous build did not install it or it has been changed
+     * since.
+     *
+     * @param path the path relative to the image directory
+     * @return true if the file must be written
+     */
+    private boolean isReplaced(String path) {
+        return !incremental || previous.getFile(path) == null || !previous.isIntact(path);
+    }
+
+    /**
+     * Returns true if an installed file is intact and has the same content hash as recorded by the previous build.
+     *
+     * @param path the path relative to the image directory
+     * @param hash the content hash of the file to install
+     * @return true if the installed file is unchanged
+     */
+    private boolean isUnchanged(String path, String hash) {
+        if (!incremental) {
+            return false;
         }
+        ImageManifest.FileRecord record = previous.getFile(path);
+        return record != null && hash.equals(record.getHash()) && previous.isIntact(path);
     }
 }
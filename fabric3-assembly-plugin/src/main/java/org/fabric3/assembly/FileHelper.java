@@ -19,11 +19,25 @@ package org.fabric3.assembly;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Helper methods for working with files.
+ *
+ * Directory trees are deleted on a shared fork-join pool, with each subdirectory handled as a separate task. Symbolic links are deleted, not followed.
  */
 public class FileHelper {
+    private static final ForkJoinPool POOL = new ForkJoinPool();
 
     protected FileHelper() {
     }
@@ -38,15 +52,17 @@ public class FileHelper {
      * @throws IOException in case deletion is unsuccessful
      */
     public static void forceDelete(File file) throws IOException {
-        if (file.isDirectory()) {
+        Path path = file.toPath();
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
             deleteDirectory(file);
         } else {
-            if (!file.exists()) {
+            if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
                 throw new FileNotFoundException("File does not exist: " + file);
             }
-            if (!file.delete()) {
-                String message = "Unable to delete file: " + file;
-                throw new IOException(message);
+            try {
+                Files.delete(path);
+            } catch (IOException e) {
+                throw new IOException("Unable to delete file: " + file, e);
             }
         }
     }
@@ -58,15 +74,13 @@ public class FileHelper {
      * @throws IOException in case deletion is unsuccessful
      */
     public static void deleteDirectory(File directory) throws IOException {
-        if (!directory.exists()) {
+        Path path = directory.toPath();
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
             return;
         }
-
-        cleanDirectory(directory);
-        if (!directory.delete()) {
-            String message = "Unable to delete directory " + directory + ".";
-            throw new IOException(message);
-        }
+        DeleteTask task = new DeleteTask(path, true);
+        POOL.invoke(task);
+        task.rethrow();
     }
 
     /**
@@ -89,22 +103,109 @@ public class FileHelper {
             throw new IllegalArgumentException(message);
         }
 
-        File[] files = directory.listFiles();
-        if (files == null) { // null if security restricted
-            throw new IOException("Failed to list contents of " + directory);
+        DeleteTask task = new DeleteTask(directory.toPath(), false);
+        POOL.invoke(task);
+        task.rethrow();
+    }
+
+    /**
+     * Moves a file or directory into a trash directory under a unique name and deletes it on a background thread so the caller is not blocked. Only the
+     * moved tree is deleted; other contents of the trash directory are left alone since they may belong to a concurrent build. If the file cannot be moved,
+     * for example because the trash directory is on a different file store, it is deleted before this method returns.
+     *
+     * Pool threads are daemons, so callers must wait on the returned future before the JVM exits. Its <code>get</code> method throws an
+     * <code>ExecutionException</code> wrapping an <code>IOException</code> if the background delete fails.
+     *
+     * @param file  the file or directory to delete
+     * @param trash the trash directory, which should be on the same file store as the file
+     * @return the background deletion
+     * @throws IOException if the file cannot be moved and deleting it fails
+     */
+    public static Future<?> deleteInBackground(File file, File trash) throws IOException {
+        final Path tombstone = trash.toPath().resolve(file.getName() + "." + System.nanoTime());
+        try {
+            Files.createDirectories(trash.toPath());
+            Files.move(file.toPath(), tombstone);
+        } catch (IOException e) {
+            // the tombstone does not exist, so the background task completes immediately
+            forceDelete(file);
         }
+        return POOL.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                DeleteTask task = new DeleteTask(tombstone, true);
+                task.invoke();
+                task.rethrow();
+                return null;
+            }
+        });
+    }
 
-        IOException exception = null;
-        for (File file : files) {
+    /**
+     * Deletes a file or directory tree, continuing past failures and reporting them once the tree has been processed.
+     */
+    private static class DeleteTask extends RecursiveAction {
+        private static final long serialVersionUID = -1563412598327541436L;
+
+        private Path path;
+        private boolean deleteRoot;
+        private IOException failure;
+
+        private DeleteTask(Path path, boolean deleteRoot) {
+            this.path = path;
+            this.deleteRoot = deleteRoot;
+        }
+
+        protected void compute() {
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                List<DeleteTask> subtasks = new ArrayList<>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                    for (Path child : stream) {
+                        if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                            subtasks.add(new DeleteTask(child, true));
+                        } else {
+                            delete(child);
+                        }
+                    }
+                } catch (NoSuchFileException e) {
+                    // deleted concurrently
+                    return;
+                } catch (IOException e) {
+                    fail(new IOException("Failed to list contents of " + path, e));
+                }
+                invokeAll(subtasks);
+                for (DeleteTask subtask : subtasks) {
+                    if (subtask.failure != null) {
+                        fail(subtask.failure);
+                    }
+                }
+            }
+            if (deleteRoot && failure == null) {
+                delete(path);
+            }
+        }
+
+        private void delete(Path file) {
             try {
-                forceDelete(file);
-            } catch (IOException ioe) {
-                exception = ioe;
+                Files.delete(file);
+            } catch (NoSuchFileException e) {
+                // deleted concurrently
+            } catch (IOException e) {
+                fail(new IOException("Unable to delete " + file, e));
+            }
+        }
+
+        private void fail(IOException e) {
+            if (failure == null) {
+                failure = e;
+            } else {
+                failure.addSuppressed(e);
             }
         }
 
-        if (null != exception) {
-            throw exception;
+        private void rethrow() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
         }
     }
 
@@ -0,0 +1,471 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.assembly;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+
+import org.fabric3.plugins.common.ChecksumCache;
+
+/**
+ * Records the files installed in a runtime image so that subsequent builds only write what has changed.
+ *
+ * For each source (a resolved artifact or configuration file), the manifest records the source file, size and modification time. For each installed file, it
+ * records the path relative to the image, the source that produced it, its size, modification time and a content hash. Extracted entries are hashed with the
+ * CRC-32 stored in the zip central directory, which is checked as they are extracted; copied files are hashed with SHA-256 as they are copied.
+ *
+ * The manifest also records named options, such as the extraction filter, that affect which files are installed, and the sources that installed a path
+ * another source also installed. Only the last writer of a path is recorded, so such overlapping sources can only be reused together.
+ *
+ * The manifest is stored as a tab-separated text file outside the image directory. Instances may be updated by concurrent install workers; collections
+ * returned by the accessors must only be used once installation is complete.
+ */
+public class ImageManifest {
+    private static final String HEADER = "# Fabric3 image manifest";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SHA256 = "sha256:";
+
+    private File baseDirectory;
+    private Map<String, SourceRecord> sources = new LinkedHashMap<>();
+    private Map<String, FileRecord> files = new LinkedHashMap<>();
+    private Set<String> removed = new LinkedHashSet<>();
+    private Set<String> overlapping = new LinkedHashSet<>();
+    private Map<String, String> options = new LinkedHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param baseDirectory the image directory paths are relative to
+     */
+    public ImageManifest(File baseDirectory) {
+        this.baseDirectory = baseDirectory;
+    }
+
+    /**
+     * Loads a manifest. If the manifest file does not exist, an empty manifest is returned.
+     *
+     * @param file          the manifest file
+     * @param baseDirectory the image directory paths are relative to
+     * @return the manifest
+     * @throws IOException if the manifest cannot be read
+     */
+    public static ImageManifest load(File file, File baseDirectory) throws IOException {
+        ImageManifest manifest = new ImageManifest(baseDirectory);
+        if (!file.exists()) {
+            return manifest;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] tokens = line.split("\t");
+                if ("S".equals(tokens[0]) && tokens.length == 5) {
+                    manifest.sources.put(tokens[1], new SourceRecord(tokens[2], Long.parseLong(tokens[3]), Long.parseLong(tokens[4])));
+                } else if ("F".equals(tokens[0]) && tokens.length == 6) {
+                    FileRecord record = new FileRecord(tokens[1], tokens[2], Long.parseLong(tokens[3]), Long.parseLong(tokens[4]), tokens[5]);
+                    manifest.files.put(record.getPath(), record);
+                } else if ("R".equals(tokens[0]) && tokens.length == 2) {
+                    manifest.removed.add(tokens[1]);
+                } else if ("X".equals(tokens[0]) && tokens.length == 2) {
+                    manifest.overlapping.add(tokens[1]);
+                } else if ("O".equals(tokens[0]) && tokens.length == 3) {
+                    manifest.options.put(tokens[1], tokens[2]);
+                } else {
+                    throw new IOException("Invalid image manifest entry: " + line);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid image manifest: " + file, e);
+        } finally {
+            reader.close();
+        }
+        return manifest;
+    }
+
+    /**
+     * Writes the manifest.
+     *
+     * @param file the manifest file
+     * @throws IOException if the manifest cannot be written
+     */
+    public synchronized void save(File file) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8));
+        try {
+            writer.write(HEADER);
+            writer.write('\n');
+            for (Map.Entry<String, String> entry : options.entrySet()) {
+                writer.write("O\t" + entry.getKey() + "\t" + entry.getValue() + "\n");
+            }
+            for (Map.Entry<String, SourceRecord> entry : sources.entrySet()) {
+                SourceRecord record = entry.getValue();
+                writer.write("S\t" + entry.getKey() + "\t" + record.file + "\t" + record.size + "\t" + record.lastModified + "\n");
+            }
+            for (FileRecord record : files.values()) {
+                writer.write("F\t" + record.path + "\t" + record.source + "\t" + record.size + "\t" + record.lastModified + "\t" + record.hash + "\n");
+            }
+            for (String path : removed) {
+                writer.write("R\t" + path + "\n");
+            }
+            for (String source : overlapping) {
+                writer.write("X\t" + source + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes the hashes of all recorded files as lines of the form <code>hash  path</code>, sorted by path. The hashes were computed or checked as the
+     * files were installed, so the image is not read again.
+     *
+     * @param file the checksum file
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void saveChecksums(File file) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8));
+        try {
+            for (FileRecord record : new TreeMap<>(files).values()) {
+                writer.write(record.hash + "  " + record.path + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Returns the value of an option.
+     *
+     * @param name the option name
+     * @return the value or null if the option is not set
+     */
+    public synchronized String getOption(String name) {
+        return options.get(name);
+    }
+
+    /**
+     * Sets an option. The value must not contain tabs or line breaks.
+     *
+     * @param name  the option name
+     * @param value the value
+     */
+    public synchronized void setOption(String name, String value) {
+        options.put(name, value);
+    }
+
+    /**
+     * Returns the path of a file relative to the image directory, using '/' as the separator.
+     *
+     * @param file the file
+     * @return the relative path
+     */
+    public String getPath(File file) {
+        return baseDirectory.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Returns true if the source file is unchanged since it was recorded and all files it produced are still intact in the image.
+     *
+     * @param source     the source key
+     * @param sourceFile the current source file
+     * @return true if the source and its installed files are unchanged
+     */
+    public synchronized boolean isCurrent(String source, File sourceFile) {
+        SourceRecord record = sources.get(source);
+        if (record == null || !record.matches(sourceFile)) {
+            return false;
+        }
+        for (FileRecord fileRecord : files.values()) {
+            if (source.equals(fileRecord.source) && !isIntact(fileRecord.path)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if a recorded file is present in the image with the recorded size and modification time.
+     *
+     * @param path the relative path
+     * @return true if the file is intact
+     */
+    public synchronized boolean isIntact(String path) {
+        FileRecord record = files.get(path);
+        if (record == null) {
+            return false;
+        }
+        File file = new File(baseDirectory, path);
+        return file.isFile() && file.length() == record.size && file.lastModified() == record.lastModified;
+    }
+
+    /**
+     * Copies the record for a source and all files it produced from another manifest.
+     *
+     * @param previous the manifest to copy from
+     * @param source   the source key
+     */
+    public synchronized void include(ImageManifest previous, String source) {
+        SourceRecord record = previous.sources.get(source);
+        if (record != null) {
+            sources.put(source, record);
+        }
+        for (FileRecord fileRecord : previous.files.values()) {
+            if (source.equals(fileRecord.source)) {
+                files.put(fileRecord.path, fileRecord);
+            }
+        }
+        if (previous.overlapping.contains(source)) {
+            overlapping.add(source);
+        }
+    }
+
+    /**
+     * Records a source file.
+     *
+     * @param source     the source key
+     * @param sourceFile the source file
+     */
+    public synchronized void addSource(String source, File sourceFile) {
+        sources.put(source, new SourceRecord(sourceFile.getAbsolutePath(), sourceFile.length(), sourceFile.lastModified()));
+    }
+
+    /**
+     * Records an installed file using its current size and modification time. If the path was installed from another source, both sources are recorded as
+     * overlapping.
+     *
+     * @param path   the path relative to the image directory
+     * @param source the source key
+     * @param hash   the content hash
+     */
+    public synchronized void addFile(String path, String source, String hash) {
+        File file = new File(baseDirectory, path);
+        FileRecord existing = files.put(path, new FileRecord(path, source, file.length(), file.lastModified(), hash));
+        if (existing != null && !existing.source.equals(source)) {
+            overlapping.add(existing.source);
+            overlapping.add(source);
+        }
+    }
+
+    /**
+     * Returns the record for an installed file.
+     *
+     * @param path the path relative to the image directory
+     * @return the record or null if the file is not recorded
+     */
+    public synchronized FileRecord getFile(String path) {
+        return files.get(path);
+    }
+
+    /**
+     * Returns the SHA-256 checksum of an installed file, which is recorded for files copied into the image.
+     *
+     * @param path the path relative to the image directory
+     * @return the checksum as lowercase hex or null if the file is not recorded, was extracted or is no longer intact
+     */
+    public synchronized String getChecksum(String path) {
+        FileRecord record = files.get(path);
+        if (record == null || !record.hash.startsWith(SHA256) || !isIntact(path)) {
+            return null;
+        }
+        return record.hash.substring(SHA256.length());
+    }
+
+    /**
+     * Returns the paths of all recorded files.
+     *
+     * @return the paths
+     */
+    public synchronized Collection<String> getPaths() {
+        return files.keySet();
+    }
+
+    /**
+     * Returns true if the path is recorded.
+     *
+     * @param path the path relative to the image directory
+     * @return true if the path is recorded
+     */
+    public synchronized boolean contains(String path) {
+        return files.containsKey(path);
+    }
+
+    /**
+     * Returns the keys of all recorded sources.
+     *
+     * @return the source keys
+     */
+    public synchronized Set<String> getSources() {
+        return sources.keySet();
+    }
+
+    /**
+     * Returns true if the source installed a path that another source also installed.
+     *
+     * @param source the source key
+     * @return true if the source overlaps with another source
+     */
+    public synchronized boolean isOverlapping(String source) {
+        return overlapping.contains(source);
+    }
+
+    /**
+     * Returns the keys of all sources that installed a path another source also installed.
+     *
+     * @return the source keys
+     */
+    public synchronized Set<String> getOverlappingSources() {
+        return new LinkedHashSet<>(overlapping);
+    }
+
+    /**
+     * Records a file that was deliberately removed from the image.
+     *
+     * @param path the path relative to the image directory
+     */
+    public synchronized void markRemoved(String path) {
+        removed.add(path);
+        files.remove(path);
+    }
+
+    /**
+     * Returns true if the file was deliberately removed from the image.
+     *
+     * @param path the path relative to the image directory
+     * @return true if the file was removed
+     */
+    public synchronized boolean isRemoved(String path) {
+        return removed.contains(path);
+    }
+
+    /**
+     * Drops records for files that no longer exist in the image.
+     */
+    public synchronized void retainExisting() {
+        for (Iterator<String> iterator = files.keySet().iterator(); iterator.hasNext(); ) {
+            if (!new File(baseDirectory, iterator.next()).isFile()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the hash for a zip entry based on the CRC-32 recorded in the archive.
+     *
+     * @param entry the entry
+     * @return the hash
+     */
+    public static String hash(ZipEntry entry) {
+        return hash(entry.getCrc());
+    }
+
+    /**
+     * Returns the hash for a CRC-32 value.
+     *
+     * @param crc the CRC-32 value
+     * @return the hash
+     */
+    public static String hash(long crc) {
+        return "crc32:" + Long.toHexString(crc);
+    }
+
+    /**
+     * Returns the hash for a SHA-256 checksum.
+     *
+     * @param checksum the checksum as lowercase hex, as returned by {@link ChecksumCache}
+     * @return the hash
+     */
+    public static String hash(String checksum) {
+        return SHA256 + checksum;
+    }
+
+    /**
+     * A file installed in the image.
+     */
+    public static class FileRecord {
+        private String path;
+        private String source;
+        private long size;
+        private long lastModified;
+        private String hash;
+
+        public FileRecord(String path, String source, long size, long lastModified, String hash) {
+            this.path = path;
+            this.source = source;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+    }
+
+    /**
+     * A source file an installed file was produced from.
+     */
+    private static class SourceRecord {
+        private String file;
+        private long size;
+        private long lastModified;
+
+        private SourceRecord(String file, long size, long lastModified) {
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        private boolean matches(File sourceFile) {
+            return file.equals(sourceFile.getAbsolutePath()) && size == sourceFile.length() && lastModified == sourceFile.lastModified();
+        }
+    }
+
+}
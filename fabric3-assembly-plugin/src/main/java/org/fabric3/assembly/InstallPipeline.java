@@ -0,0 +1,276 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.assembly;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.eclipse.aether.artifact.Artifact;
+
+/**
+ * Installs artifacts into a runtime image as soon as they are resolved, so that downloads and disk writes overlap.
+ *
+ * Resolution tasks run on a bounded worker pool. Ordered steps, such as distributions that may overwrite each other's files, are installed one at a time on
+ * the calling thread in the order given. Unordered steps are installed once all ordered steps are complete: their resolved artifacts are handed to install
+ * workers through a bounded queue, which holds back resolution when the workers fall behind. A failed step does not stop the others; all failures are
+ * reported together once the pipeline has drained.
+ */
+public class InstallPipeline {
+    private ArtifactResolver resolver;
+    private int resolutionThreads;
+    private int installThreads;
+
+    /**
+     * Installs a single resolved artifact.
+     */
+    public abstract static class Step {
+        private Artifact artifact;
+
+        /**
+         * Constructor.
+         *
+         * @param artifact the artifact to install
+         */
+        protected Step(Artifact artifact) {
+            this.artifact = artifact;
+        }
+
+        /**
+         * Returns the artifact to install.
+         *
+         * @return the artifact
+         */
+        public Artifact getArtifact() {
+            return artifact;
+        }
+
+        /**
+         * Installs the resolved artifact. Unordered steps are called concurrently.
+         *
+         * @param file the resolved artifact file
+         * @throws MojoExecutionException if there is an error during installation
+         */
+        public abstract void install(File file) throws MojoExecutionException;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param resolver          the artifact resolver
+     * @param resolutionThreads the maximum number of concurrent resolutions
+     * @param installThreads    the maximum number of concurrent unordered installs
+     */
+    public InstallPipeline(ArtifactResolver resolver, int resolutionThreads, int installThreads) {
+        this.resolver = resolver;
+        this.resolutionThreads = Math.max(1, resolutionThreads);
+        this.installThreads = Math.max(1, installThreads);
+    }
+
+    /**
+     * Resolves and installs the steps.
+     *
+     * @param ordered   the steps to install one at a time and in order
+     * @param unordered the steps to install concurrently after the ordered steps
+     * @throws MojoExecutionException if one or more steps fail, or the pipeline is interrupted
+     */
+    public void run(List<Step> ordered, List<Step> unordered) throws MojoExecutionException {
+        int total = ordered.size() + unordered.size();
+        if (total == 0) {
+            return;
+        }
+        ConcurrentLinkedQueue<MojoExecutionException> errors = new ConcurrentLinkedQueue<>();
+        ExecutorService resolvers = Executors.newFixedThreadPool(Math.min(resolutionThreads, total));
+        ExecutorService installers = null;
+        try {
+            // ordered steps are submitted first so resolver threads blocked on a full queue never hold them back
+            List<Future<File>> distributions = new ArrayList<>();
+            for (Step step : ordered) {
+                distributions.add(resolvers.submit(new Resolution(step)));
+            }
+            BlockingQueue<Resolved> queue = new ArrayBlockingQueue<>(installThreads * 2);
+            for (Step step : unordered) {
+                resolvers.submit(new QueuedResolution(step, queue));
+            }
+
+            for (int i = 0; i < ordered.size(); i++) {
+                Step step = ordered.get(i);
+                try {
+                    step.install(get(distributions.get(i)));
+                } catch (MojoExecutionException e) {
+                    errors.add(e);
+                }
+            }
+
+            if (!unordered.isEmpty()) {
+                int workers = Math.min(installThreads, unordered.size());
+                installers = Executors.newFixedThreadPool(workers);
+                AtomicInteger remaining = new AtomicInteger(unordered.size());
+                List<Future<Void>> futures = new ArrayList<>();
+                for (int i = 0; i < workers; i++) {
+                    futures.add(installers.submit(new Worker(queue, remaining, errors)));
+                }
+                for (Future<Void> future : futures) {
+                    get(future);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted installing artifacts", e);
+        } finally {
+            resolvers.shutdownNow();
+            if (installers != null) {
+                installers.shutdownNow();
+            }
+        }
+        report(errors);
+    }
+
+    private void report(ConcurrentLinkedQueue<MojoExecutionException> errors) throws MojoExecutionException {
+        if (errors.isEmpty()) {
+            return;
+        }
+        if (errors.size() == 1) {
+            throw errors.peek();
+        }
+        StringBuilder message = new StringBuilder(errors.size() + " artifacts could not be installed:");
+        for (MojoExecutionException error : errors) {
+            message.append("\n  ").append(error.getMessage());
+        }
+        MojoExecutionException exception = new MojoExecutionException(message.toString(), errors.peek());
+        for (MojoExecutionException error : errors) {
+            if (error != exception.getCause()) {
+                exception.addSuppressed(error);
+            }
+        }
+        throw exception;
+    }
+
+    private <T> T get(Future<T> future) throws MojoExecutionException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof MojoExecutionException) {
+                throw (MojoExecutionException) cause;
+            }
+            throw new MojoExecutionException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * A resolved artifact or the failure to resolve it.
+     */
+    private static class Resolved {
+        private Step step;
+        private File file;
+        private MojoExecutionException error;
+
+        private Resolved(Step step, File file, MojoExecutionException error) {
+            this.step = step;
+            this.file = file;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Resolves the artifact of an ordered step.
+     */
+    private class Resolution implements Callable<File> {
+        private Step step;
+
+        private Resolution(Step step) {
+            this.step = step;
+        }
+
+        public File call() throws MojoExecutionException {
+            return resolver.resolve(step.getArtifact());
+        }
+    }
+
+    /**
+     * Resolves the artifact of an unordered step and hands the result to the install workers.
+     */
+    private class QueuedResolution implements Callable<Void> {
+        private Step step;
+        private BlockingQueue<Resolved> queue;
+
+        private QueuedResolution(Step step, BlockingQueue<Resolved> queue) {
+            this.step = step;
+            this.queue = queue;
+        }
+
+        public Void call() throws InterruptedException {
+            Resolved resolved;
+            try {
+                resolved = new Resolved(step, resolver.resolve(step.getArtifact()), null);
+            } catch (MojoExecutionException e) {
+                resolved = new Resolved(step, null, e);
+            } catch (RuntimeException e) {
+                // every step must reach the queue, otherwise the workers wait forever
+                resolved = new Resolved(step, null, new MojoExecutionException(e.getMessage(), e));
+            }
+            queue.put(resolved);
+            return null;
+        }
+    }
+
+    /**
+     * Installs resolved artifacts until every unordered step has been taken from the queue.
+     */
+    private static class Worker implements Callable<Void> {
+        private BlockingQueue<Resolved> queue;
+        private AtomicInteger remaining;
+        private ConcurrentLinkedQueue<MojoExecutionException> errors;
+
+        private Worker(BlockingQueue<Resolved> queue, AtomicInteger remaining, ConcurrentLinkedQueue<MojoExecutionException> errors) {
+            this.queue = queue;
+            this.remaining = remaining;
+            this.errors = errors;
+        }
+
+        public Void call() throws InterruptedException {
+            // each worker claims a step before taking, so exactly one take is made per queued result
+            while (remaining.getAndDecrement() > 0) {
+                Resolved resolved = queue.take();
+                if (resolved.error != null) {
+                    errors.add(resolved.error);
+                    continue;
+                }
+                try {
+                    resolved.step.install(resolved.file);
+                } catch (MojoExecutionException e) {
+                    errors.add(e);
+                } catch (RuntimeException e) {
+                    errors.add(new MojoExecutionException(e.getMessage(), e));
+                }
+            }
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,363 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.assembly;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.fabric3.plugins.common.ChecksumCache;
+
+/**
+ * Fingerprints the jars in a runtime image to find libraries that are installed more than once.
+ *
+ * Jars are identified by their SHA-256 digest and by their Maven coordinates, which are read from the <code>pom.properties</code> file under
+ * <code>META-INF/maven</code> or, if the jar has none, derived from the file name. Jars embedded in the <code>META-INF/lib</code> directory of a
+ * contribution archive are fingerprinted as well. Jars with the same digest are duplicates; jars with the same coordinates and different versions are
+ * version conflicts.
+ *
+ * The digests of jar files are taken from a {@link ChecksumCache}, so jars whose checksums were computed as they were installed are not read again.
+ */
+public class JarAnalyzer {
+    private static final String LIB_PREFIX = "META-INF/lib/";
+    private static final String MAVEN_PREFIX = "META-INF/maven/";
+    private static final Pattern VERSIONED_NAME = Pattern.compile("(.+?)-(\\d[^/]*)\\.jar");
+    private static final int BUFFER = 64 * 1024;
+
+    private File baseDirectory;
+    private ChecksumCache checksums;
+    private List<Jar> jars = new ArrayList<>();
+
+    /**
+     * A fingerprinted jar.
+     */
+    public static class Jar {
+        private String path;
+        private File file;
+        private String hash;
+        private long size;
+        private String key;
+        private String version;
+
+        private Jar(String path, File file, String hash, long size, String key, String version) {
+            this.path = path;
+            this.file = file;
+            this.hash = hash;
+            this.size = size;
+            this.key = key;
+            this.version = version;
+        }
+
+        /**
+         * Returns the path relative to the image directory. Embedded jars are given as <code>&lt;archive&gt;!/META-INF/lib/&lt;jar&gt;</code>.
+         *
+         * @return the path
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Returns the file for a jar installed directly in the image.
+         *
+         * @return the file or null if the jar is embedded in a contribution
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Returns the size in bytes.
+         *
+         * @return the size
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns the version.
+         *
+         * @return the version or null if it is not known
+         */
+        public String getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param baseDirectory the image directory paths are reported relative to
+     * @param checksums     the checksums of files in the image
+     */
+    public JarAnalyzer(File baseDirectory, ChecksumCache checksums) {
+        this.baseDirectory = baseDirectory;
+        this.checksums = checksums;
+    }
+
+    /**
+     * Fingerprints the jar and zip files in a directory, including jars embedded in their <code>META-INF/lib</code> directory. Subdirectories are not
+     * scanned.
+     *
+     * @param directory the directory
+     * @throws IOException if a file cannot be read
+     */
+    public void addDirectory(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isFile() && (name.endsWith(".jar") || name.endsWith(".zip"))) {
+                add(file);
+            }
+        }
+    }
+
+    /**
+     * Returns the jars that are installed more than once, grouped by content.
+     *
+     * @return the groups of identical jars
+     */
+    public List<List<Jar>> getDuplicates() {
+        Map<String, List<Jar>> groups = new LinkedHashMap<>();
+        for (Jar jar : jars) {
+            add(groups, jar.hash, jar);
+        }
+        return select(groups, false);
+    }
+
+    /**
+     * Returns the libraries that are installed in more than one version, grouped by coordinates.
+     *
+     * @return the groups of jars with the same coordinates
+     */
+    public List<List<Jar>> getConflicts() {
+        Map<String, List<Jar>> groups = new LinkedHashMap<>();
+        for (Jar jar : jars) {
+            if (jar.version != null) {
+                add(groups, jar.key, jar);
+            }
+        }
+        return select(groups, true);
+    }
+
+    /**
+     * Replaces installed copies of a duplicate jar with hard links to the first copy so that its contents are stored once. Jars embedded in contributions
+     * and symbolic links are left in place.
+     *
+     * @return the paths of the files replaced with links
+     * @throws IOException if a file cannot be replaced
+     */
+    public List<String> share() throws IOException {
+        List<String> shared = new ArrayList<>();
+        for (List<Jar> group : getDuplicates()) {
+            Path first = null;
+            for (Jar jar : group) {
+                if (jar.file == null || Files.isSymbolicLink(jar.file.toPath())) {
+                    continue;
+                }
+                Path path = jar.file.toPath();
+                if (first == null) {
+                    first = path;
+                } else if (!Files.isSameFile(first, path) && link(first, path)) {
+                    shared.add(jar.path);
+                }
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Returns the display name of a group, the Maven coordinates of its first jar.
+     *
+     * @param group the group
+     * @return the name
+     */
+    public String getName(List<Jar> group) {
+        return group.get(0).key;
+    }
+
+    private boolean link(Path source, Path target) throws IOException {
+        Path temporary = target.resolveSibling(target.getFileName() + ".link");
+        try {
+            Files.deleteIfExists(temporary);
+            Files.createLink(temporary, source);
+        } catch (IOException | UnsupportedOperationException e) {
+            // different file stores or links not supported
+            Files.deleteIfExists(temporary);
+            return false;
+        }
+        // the link is created beside the target and moved over it so the jar is never missing from the image
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    private void add(File file) throws IOException {
+        String path = getPath(file);
+        ZipFile zipFile = new ZipFile(file);
+        try {
+            String[] coordinates = getCoordinates(zipFile, file.getName());
+            jars.add(new Jar(path, file, checksums.compute(file), file.length(), coordinates[0], coordinates[1]));
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (!entry.isDirectory() && name.startsWith(LIB_PREFIX) && name.endsWith(".jar")) {
+                    String jarName = name.substring(name.lastIndexOf('/') + 1);
+                    addEmbedded(path + "!/" + name, jarName, entry.getSize(), zipFile.getInputStream(entry));
+                }
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * Fingerprints an embedded jar in a single pass, reading its Maven coordinates while the digest is computed.
+     */
+    private void addEmbedded(String path, String name, long size, InputStream stream) throws IOException {
+        MessageDigest digest = ChecksumCache.createDigest();
+        DigestInputStream digestStream = new DigestInputStream(stream, digest);
+        String[] coordinates = null;
+        try {
+            ZipInputStream jarStream = new ZipInputStream(digestStream);
+            ZipEntry entry;
+            while ((entry = jarStream.getNextEntry()) != null) {
+                if (coordinates == null && isPomProperties(entry.getName())) {
+                    Properties properties = new Properties();
+                    properties.load(jarStream);
+                    coordinates = getCoordinates(properties);
+                }
+            }
+            // the central directory follows the last entry
+            drain(digestStream);
+        } finally {
+            stream.close();
+        }
+        if (coordinates == null) {
+            coordinates = getCoordinates(name);
+        }
+        jars.add(new Jar(path, null, ChecksumCache.toHex(digest.digest()), size, coordinates[0], coordinates[1]));
+    }
+
+    private void drain(InputStream stream) throws IOException {
+        byte[] buffer = new byte[BUFFER];
+        while (stream.read(buffer) != -1) {
+            // read to the end so the digest covers the whole jar
+        }
+    }
+
+    private String[] getCoordinates(ZipFile zipFile, String name) throws IOException {
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (isPomProperties(entry.getName())) {
+                Properties properties = new Properties();
+                InputStream stream = zipFile.getInputStream(entry);
+                try {
+                    properties.load(stream);
+                } finally {
+                    stream.close();
+                }
+                String[] coordinates = getCoordinates(properties);
+                if (coordinates != null) {
+                    return coordinates;
+                }
+            }
+        }
+        return getCoordinates(name);
+    }
+
+    private boolean isPomProperties(String name) {
+        return name.startsWith(MAVEN_PREFIX) && name.endsWith("/pom.properties");
+    }
+
+    private String[] getCoordinates(Properties properties) {
+        String groupId = properties.getProperty("groupId");
+        String artifactId = properties.getProperty("artifactId");
+        String version = properties.getProperty("version");
+        if (groupId == null || artifactId == null) {
+            return null;
+        }
+        return new String[]{groupId + ":" + artifactId, version};
+    }
+
+    private String[] getCoordinates(String name) {
+        Matcher matcher = VERSIONED_NAME.matcher(name);
+        if (matcher.matches()) {
+            return new String[]{matcher.group(1), matcher.group(2)};
+        }
+        return new String[]{name, null};
+    }
+
+    private List<List<Jar>> select(Map<String, List<Jar>> groups, boolean conflicts) {
+        List<List<Jar>> selected = new ArrayList<>();
+        for (List<Jar> group : groups.values()) {
+            if (group.size() < 2) {
+                continue;
+            }
+            if (conflicts) {
+                Set<String> versions = new LinkedHashSet<>();
+                for (Jar jar : group) {
+                    versions.add(jar.version);
+                }
+                if (versions.size() < 2) {
+                    continue;
+                }
+            }
+            selected.add(group);
+        }
+        return selected;
+    }
+
+    private void add(Map<String, List<Jar>> groups, String key, Jar jar) {
+        List<Jar> group = groups.get(key);
+        if (group == null) {
+            group = new ArrayList<>();
+            groups.put(key, group);
+        }
+        group.add(jar);
+    }
+
+    private String getPath(File file) {
+        return baseDirectory.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+}
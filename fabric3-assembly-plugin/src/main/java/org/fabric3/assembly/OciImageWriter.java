@@ -0,0 +1,675 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.assembly;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import org.fabric3.plugins.common.ChecksumCache;
+import org.fabric3.plugins.common.CountingOutputStream;
+import org.fabric3.plugins.common.Json;
+
+/**
+ * Writes a container image as an OCI image layout tarball without a container daemon.
+ *
+ * Each layer is a gzip-compressed tar of the files added to it, written in path order with the parent directories of each file, a fixed modification time
+ * and root ownership, so the same files always produce a layer with the same digest. Layers are compressed in parallel and stored in a blob directory under
+ * their digest. Blobs left in the blob directory by earlier images are kept while the new image references them and removed once it is written. The image
+ * may be based on an image in a local OCI image layout directory, whose layers are placed below the added layers.
+ *
+ * The tarball contains the <code>oci-layout</code>, <code>index.json</code> and blobs of an OCI image layout and a <code>manifest.json</code> so that it can
+ * also be loaded with <code>docker load</code>.
+ */
+public class OciImageWriter {
+    public static final String INDEX_MEDIA_TYPE = "application/vnd.oci.image.index.v1+json";
+    public static final String MANIFEST_MEDIA_TYPE = "application/vnd.oci.image.manifest.v1+json";
+    public static final String CONFIG_MEDIA_TYPE = "application/vnd.oci.image.config.v1+json";
+    public static final String LAYER_MEDIA_TYPE = "application/vnd.oci.image.layer.v1.tar+gzip";
+    private static final String DOCKER_LIST_MEDIA_TYPE = "application/vnd.docker.distribution.manifest.list.v2+json";
+    private static final String DOCKER_LAYER_MEDIA_TYPE = "application/vnd.docker.image.rootfs.diff.tar.gzip";
+    private static final String CREATED_BY = "fabric3-oci-image";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BLOCK = 512;
+    private static final int BUFFER = 64 * 1024;
+
+    private File blobDirectory;
+    private long timestamp;
+    private String os = "linux";
+    private String architecture = "amd64";
+    private List<Layer> layers = new ArrayList<>();
+    private List<Blob> baseLayers = new ArrayList<>();
+    private Map<String, Object> config = new LinkedHashMap<>();
+
+    /**
+     * A layer of the image.
+     */
+    public static class Layer {
+        private String description;
+        private Map<String, File> entries = new TreeMap<>();
+        private long size;
+        private Blob blob;
+        private String diffId;
+
+        private Layer(String description) {
+            this.description = description;
+        }
+
+        /**
+         * Adds a file. The parent directories of the path are added to the layer.
+         *
+         * @param path the absolute path in the image, without a leading slash
+         * @param file the file
+         */
+        public void add(String path, File file) {
+            String[] segments = path.split("/");
+            StringBuilder directory = new StringBuilder();
+            for (int i = 0; i < segments.length - 1; i++) {
+                directory.append(segments[i]).append('/');
+                entries.put(directory.toString(), null);
+            }
+            entries.put(path, file);
+            size += file.length();
+        }
+
+        /**
+         * Returns the layer description.
+         *
+         * @return the description
+         */
+        public String getDescription() {
+            return description;
+        }
+
+        /**
+         * Returns the number of files in the layer.
+         *
+         * @return the number of files
+         */
+        public int getFileCount() {
+            int count = 0;
+            for (File file : entries.values()) {
+                if (file != null) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Returns the total size of the files in the layer.
+         *
+         * @return the size in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns the digest of the compressed layer once the image has been written.
+         *
+         * @return the digest, such as <code>sha256:...</code>
+         */
+        public String getDigest() {
+            return blob.digest;
+        }
+
+        /**
+         * Returns the size of the compressed layer once the image has been written.
+         *
+         * @return the size in bytes
+         */
+        public long getCompressedSize() {
+            return blob.size;
+        }
+
+        private boolean isEmpty() {
+            return entries.isEmpty();
+        }
+    }
+
+    /**
+     * A content-addressed blob.
+     */
+    private static class Blob {
+        private String mediaType;
+        private String digest;
+        private long size;
+        private File file;
+
+        private Blob(String mediaType, String digest, long size, File file) {
+            this.mediaType = mediaType;
+            this.digest = digest;
+            this.size = size;
+            this.file = file;
+        }
+
+        private Map<String, Object> toDescriptor() {
+            Map<String, Object> descriptor = new LinkedHashMap<>();
+            descriptor.put("mediaType", mediaType);
+            descriptor.put("digest", digest);
+            descriptor.put("size", size);
+            return descriptor;
+        }
+
+        private String getPath() {
+            return "blobs/" + digest.replace(':', '/');
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param blobDirectory the directory where layer blobs are written
+     * @param timestamp     the modification time of layer entries and the image creation time, in milliseconds since the epoch
+     */
+    public OciImageWriter(File blobDirectory, long timestamp) {
+        this.blobDirectory = blobDirectory;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Sets the platform of the image, which is also used to select the base image from a multi-platform index.
+     *
+     * @param os           the operating system, such as <code>linux</code>
+     * @param architecture the architecture, such as <code>amd64</code>
+     */
+    public void setPlatform(String os, String architecture) {
+        this.os = os;
+        this.architecture = architecture;
+    }
+
+    /**
+     * Bases the image on an image in an OCI image layout directory. The base configuration, including its environment, entry point and history, is kept
+     * unless overridden.
+     *
+     * @param layoutDirectory the OCI image layout directory
+     * @throws IOException if the base image cannot be read
+     */
+    public void setBaseImage(File layoutDirectory) throws IOException {
+        Map<String, Object> index = readObject(new File(layoutDirectory, "index.json"));
+        Map<String, Object> manifest = selectManifest(layoutDirectory, index);
+        Map<String, Object> descriptor = getDescriptor(manifest.get("config"));
+        config = readObject(getBlobFile(layoutDirectory, (String) descriptor.get("digest")));
+        baseLayers.clear();
+        for (Object element : Json.getArray(manifest, "layers")) {
+            Map<String, Object> layer = getDescriptor(element);
+            String digest = (String) layer.get("digest");
+            String mediaType = (String) layer.get("mediaType");
+            if (DOCKER_LAYER_MEDIA_TYPE.equals(mediaType)) {
+                // the same content under the equivalent OCI media type
+                mediaType = LAYER_MEDIA_TYPE;
+            }
+            File file = getBlobFile(layoutDirectory, digest);
+            baseLayers.add(new Blob(mediaType, digest, file.length(), file));
+        }
+    }
+
+    /**
+     * Sets the entry point of the image.
+     *
+     * @param entrypoint the entry point
+     * @throws IOException if the base configuration is not valid
+     */
+    public void setEntrypoint(List<String> entrypoint) throws IOException {
+        Json.getObject(config, "config").put("Entrypoint", new ArrayList<Object>(entrypoint));
+    }
+
+    /**
+     * Sets the default arguments of the image.
+     *
+     * @param cmd the arguments
+     * @throws IOException if the base configuration is not valid
+     */
+    public void setCmd(List<String> cmd) throws IOException {
+        Json.getObject(config, "config").put("Cmd", new ArrayList<Object>(cmd));
+    }
+
+    /**
+     * Sets the working directory of the image.
+     *
+     * @param directory the absolute directory path
+     * @throws IOException if the base configuration is not valid
+     */
+    public void setWorkingDirectory(String directory) throws IOException {
+        Json.getObject(config, "config").put("WorkingDir", directory);
+    }
+
+    /**
+     * Adds an environment variable, replacing a variable of the same name set by the base image.
+     *
+     * @param variable the variable as <code>NAME=value</code>
+     * @throws IOException if the base configuration is not valid
+     */
+    public void addEnvironment(String variable) throws IOException {
+        List<Object> environment = Json.getArray(Json.getObject(config, "config"), "Env");
+        String prefix = variable.substring(0, variable.indexOf('=') + 1);
+        for (int i = 0; i < environment.size(); i++) {
+            if (String.valueOf(environment.get(i)).startsWith(prefix)) {
+                environment.set(i, variable);
+                return;
+            }
+        }
+        environment.add(variable);
+    }
+
+    /**
+     * Adds a layer above the base image and previously added layers.
+     *
+     * @param description the layer description, recorded in the image history
+     * @return the layer
+     */
+    public Layer addLayer(String description) {
+        Layer layer = new Layer(description);
+        layers.add(layer);
+        return layer;
+    }
+
+    /**
+     * Writes the image tarball. Empty layers are omitted. Blobs in the blob directory that the image does not reference are removed afterwards.
+     *
+     * @param archive   the tarball
+     * @param imageName the image reference, such as <code>registry/fabric3/node:1.0</code>, or null
+     * @param threads   the number of threads used to compress layers
+     * @throws IOException if there is an error writing the image
+     */
+    public void write(File archive, String imageName, int threads) throws IOException {
+        List<Layer> written = new ArrayList<>();
+        for (Layer layer : layers) {
+            if (!layer.isEmpty()) {
+                written.add(layer);
+            }
+        }
+        createLayers(written, threads);
+
+        String created = formatTime(timestamp);
+        config.put("created", created);
+        config.put("architecture", architecture);
+        config.put("os", os);
+        Map<String, Object> rootfs = Json.getObject(config, "rootfs");
+        rootfs.put("type", "layers");
+        List<Object> diffIds = Json.getArray(rootfs, "diff_ids");
+        List<Object> history = Json.getArray(config, "history");
+        for (Layer layer : written) {
+            diffIds.add(layer.diffId);
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("created", created);
+            entry.put("created_by", CREATED_BY);
+            entry.put("comment", layer.description);
+            history.add(entry);
+        }
+        Blob configBlob = createBlob(CONFIG_MEDIA_TYPE, Json.write(config).getBytes(UTF8));
+
+        List<Blob> imageLayers = new ArrayList<>(baseLayers);
+        for (Layer layer : written) {
+            imageLayers.add(layer.blob);
+        }
+        Map<String, Object> manifest = new LinkedHashMap<>();
+        manifest.put("schemaVersion", 2L);
+        manifest.put("mediaType", MANIFEST_MEDIA_TYPE);
+        manifest.put("config", configBlob.toDescriptor());
+        List<Object> layerDescriptors = new ArrayList<>();
+        for (Blob blob : imageLayers) {
+            layerDescriptors.add(blob.toDescriptor());
+        }
+        manifest.put("layers", layerDescriptors);
+        Blob manifestBlob = createBlob(MANIFEST_MEDIA_TYPE, Json.write(manifest).getBytes(UTF8));
+
+        Map<String, Object> manifestDescriptor = manifestBlob.toDescriptor();
+        Map<String, Object> platform = new LinkedHashMap<>();
+        platform.put("architecture", architecture);
+        platform.put("os", os);
+        manifestDescriptor.put("platform", platform);
+        if (imageName != null) {
+            Map<String, Object> annotations = new LinkedHashMap<>();
+            annotations.put("io.containerd.image.name", imageName);
+            annotations.put("org.opencontainers.image.ref.name", getTag(imageName));
+            manifestDescriptor.put("annotations", annotations);
+        }
+        Map<String, Object> index = new LinkedHashMap<>();
+        index.put("schemaVersion", 2L);
+        index.put("mediaType", INDEX_MEDIA_TYPE);
+        List<Object> manifests = new ArrayList<>();
+        manifests.add(manifestDescriptor);
+        index.put("manifests", manifests);
+
+        Map<String, Object> dockerManifest = new LinkedHashMap<>();
+        dockerManifest.put("Config", configBlob.getPath());
+        List<Object> repoTags = new ArrayList<>();
+        if (imageName != null) {
+            repoTags.add(imageName);
+        }
+        dockerManifest.put("RepoTags", repoTags);
+        List<Object> layerPaths = new ArrayList<>();
+        for (Blob blob : imageLayers) {
+            layerPaths.add(blob.getPath());
+        }
+        dockerManifest.put("Layers", layerPaths);
+        List<Object> dockerManifests = new ArrayList<>();
+        dockerManifests.add(dockerManifest);
+
+        List<Blob> blobs = new ArrayList<>();
+        blobs.add(manifestBlob);
+        blobs.add(configBlob);
+        blobs.addAll(imageLayers);
+        File temporary = new File(archive.getPath() + ".tmp");
+        OutputStream stream = new BufferedOutputStream(new FileOutputStream(temporary), BUFFER);
+        try {
+            writeEntry(stream, "oci-layout", "{\"imageLayoutVersion\":\"1.0.0\"}".getBytes(UTF8));
+            writeEntry(stream, "index.json", Json.write(index).getBytes(UTF8));
+            writeEntry(stream, "manifest.json", Json.write(dockerManifests).getBytes(UTF8));
+            writeHeader(stream, "blobs/", 0, 0755, '5');
+            writeHeader(stream, "blobs/sha256/", 0, 0755, '5');
+            List<String> writtenBlobs = new ArrayList<>();
+            for (Blob blob : blobs) {
+                if (!writtenBlobs.contains(blob.digest)) {
+                    writtenBlobs.add(blob.digest);
+                    writeFile(stream, blob.getPath(), blob.file, 0644);
+                }
+            }
+            // end of archive marker
+            stream.write(new byte[BLOCK * 2]);
+            stream.close();
+        } finally {
+            stream.close();
+        }
+        Files.move(temporary.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Set<File> referenced = new HashSet<>();
+        for (Blob blob : blobs) {
+            referenced.add(blob.file);
+        }
+        removeBlobs(referenced);
+    }
+
+    /**
+     * Deletes the files in the blob directory other than the referenced blobs, such as layers of earlier images whose contents have changed.
+     */
+    private void removeBlobs(Set<File> referenced) throws IOException {
+        File[] files = blobDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!referenced.contains(file)) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+    }
+
+    private void createLayers(List<Layer> written, int threads) throws IOException {
+        if (written.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, written.size())));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (final Layer layer : written) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        createLayer(layer);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while creating image layers");
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException("Error creating image layer", cause);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes a layer tarball, computing the digest of the compressed blob and the diff ID of the uncompressed tar in a single pass.
+     */
+    private void createLayer(Layer layer) throws IOException {
+        blobDirectory.mkdirs();
+        File temporary = File.createTempFile("layer", ".tmp", blobDirectory);
+        MessageDigest blobDigest = ChecksumCache.createDigest();
+        MessageDigest tarDigest = ChecksumCache.createDigest();
+        CountingOutputStream counter = new CountingOutputStream(new DigestOutputStream(new FileOutputStream(temporary), blobDigest));
+        OutputStream stream = new BufferedOutputStream(new DigestOutputStream(new GZIPOutputStream(counter, BUFFER), tarDigest), BUFFER);
+        try {
+            for (Map.Entry<String, File> entry : layer.entries.entrySet()) {
+                File file = entry.getValue();
+                if (file == null) {
+                    writeHeader(stream, entry.getKey(), 0, 0755, '5');
+                } else {
+                    writeFile(stream, entry.getKey(), file, file.canExecute() ? 0755 : 0644);
+                }
+            }
+            stream.write(new byte[BLOCK * 2]);
+            stream.close();
+        } catch (IOException e) {
+            stream.close();
+            temporary.delete();
+            throw e;
+        }
+        String digest = "sha256:" + ChecksumCache.toHex(blobDigest.digest());
+        File file = new File(blobDirectory, digest.substring(7));
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        layer.blob = new Blob(LAYER_MEDIA_TYPE, digest, counter.getCount(), file);
+        layer.diffId = "sha256:" + ChecksumCache.toHex(tarDigest.digest());
+    }
+
+    private Blob createBlob(String mediaType, byte[] contents) throws IOException {
+        String digest = "sha256:" + ChecksumCache.toHex(ChecksumCache.createDigest().digest(contents));
+        blobDirectory.mkdirs();
+        File file = new File(blobDirectory, digest.substring(7));
+        Files.write(file.toPath(), contents);
+        return new Blob(mediaType, digest, contents.length, file);
+    }
+
+    private Map<String, Object> selectManifest(File layoutDirectory, Map<String, Object> index) throws IOException {
+        for (Object element : Json.getArray(index, "manifests")) {
+            Map<String, Object> descriptor = getDescriptor(element);
+            Object platform = descriptor.get("platform");
+            if (platform instanceof Map) {
+                Map<?, ?> values = (Map<?, ?>) platform;
+                if (!os.equals(values.get("os")) || !architecture.equals(values.get("architecture"))) {
+                    continue;
+                }
+            }
+            File file = getBlobFile(layoutDirectory, (String) descriptor.get("digest"));
+            Map<String, Object> document = readObject(file);
+            String mediaType = (String) (descriptor.get("mediaType") != null ? descriptor.get("mediaType") : document.get("mediaType"));
+            if (INDEX_MEDIA_TYPE.equals(mediaType) || DOCKER_LIST_MEDIA_TYPE.equals(mediaType)) {
+                return selectManifest(layoutDirectory, document);
+            }
+            return document;
+        }
+        throw new IOException("No " + os + "/" + architecture + " image found in " + layoutDirectory);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> getDescriptor(Object element) throws IOException {
+        if (!(element instanceof Map) || !(((Map<?, ?>) element).get("digest") instanceof String)) {
+            throw new IOException("Invalid descriptor in base image: " + element);
+        }
+        return (Map<String, Object>) element;
+    }
+
+    private File getBlobFile(File layoutDirectory, String digest) throws IOException {
+        int separator = digest.indexOf(':');
+        File file = new File(layoutDirectory, "blobs" + File.separator + digest.substring(0, separator) + File.separator + digest.substring(separator + 1));
+        if (!file.isFile()) {
+            throw new IOException("Base image blob not found: " + file);
+        }
+        return file;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> readObject(File file) throws IOException {
+        Object value = Json.parse(new String(Files.readAllBytes(file.toPath()), UTF8));
+        if (!(value instanceof Map)) {
+            throw new IOException("Expected a JSON object in " + file);
+        }
+        return (Map<String, Object>) value;
+    }
+
+    private void writeEntry(OutputStream stream, String name, byte[] contents) throws IOException {
+        writeHeader(stream, name, contents.length, 0644, '0');
+        stream.write(contents);
+        pad(stream, contents.length);
+    }
+
+    private void writeFile(OutputStream stream, String name, File file, int mode) throws IOException {
+        long size = file.length();
+        writeHeader(stream, name, size, mode, '0');
+        InputStream input = new FileInputStream(file);
+        long copied = 0;
+        try {
+            byte[] buffer = new byte[BUFFER];
+            int n;
+            while (copied < size && -1 != (n = input.read(buffer, 0, (int) Math.min(buffer.length, size - copied)))) {
+                stream.write(buffer, 0, n);
+                copied += n;
+            }
+        } finally {
+            input.close();
+        }
+        if (copied != size) {
+            throw new IOException("File changed while it was added to the image: " + file);
+        }
+        pad(stream, size);
+    }
+
+    /**
+     * Writes a ustar header. Names that do not fit the name and prefix fields are written in a preceding PAX extended header.
+     */
+    private void writeHeader(OutputStream stream, String name, long size, int mode, char type) throws IOException {
+        byte[] nameBytes = name.getBytes(UTF8);
+        String prefix = "";
+        String shortName = name;
+        if (nameBytes.length > 100) {
+            int split = name.lastIndexOf('/', name.length() - 2);
+            while (split > 0 && (name.substring(0, split).getBytes(UTF8).length > 155 || name.substring(split + 1).getBytes(UTF8).length > 100)) {
+                split = name.lastIndexOf('/', split - 1);
+            }
+            if (split > 0) {
+                prefix = name.substring(0, split);
+                shortName = name.substring(split + 1);
+            } else {
+                byte[] record = paxRecord("path", name);
+                writeHeader(stream, "PaxHeaders/" + Integer.toHexString(name.hashCode()), record.length, 0644, 'x');
+                stream.write(record);
+                pad(stream, record.length);
+                shortName = name.substring(0, Math.min(name.length(), 99));
+            }
+        }
+        byte[] header = new byte[BLOCK];
+        putString(header, 0, 100, shortName);
+        putOctal(header, 100, 8, mode);
+        putOctal(header, 108, 8, 0);
+        putOctal(header, 116, 8, 0);
+        putOctal(header, 124, 12, size);
+        putOctal(header, 136, 12, timestamp / 1000);
+        header[156] = (byte) type;
+        putString(header, 257, 6, "ustar");
+        putString(header, 263, 2, "00");
+        putString(header, 345, 155, prefix);
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        putOctal(header, 148, 7, checksum);
+        stream.write(header);
+    }
+
+    private byte[] paxRecord(String key, String value) {
+        int length = (" " + key + "=" + value + "\n").getBytes(UTF8).length;
+        int total = length + String.valueOf(length).length();
+        // the length includes its own digits
+        if (String.valueOf(total).length() != String.valueOf(length).length()) {
+            total++;
+        }
+        return (total + " " + key + "=" + value + "\n").getBytes(UTF8);
+    }
+
+    private void putString(byte[] header, int offset, int length, String value) {
+        byte[] bytes = value.getBytes(UTF8);
+        System.arraycopy(bytes, 0, header, offset, Math.min(bytes.length, length));
+    }
+
+    private void putOctal(byte[] header, int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        StringBuilder field = new StringBuilder();
+        for (int i = octal.length(); i < length - 1; i++) {
+            field.append('0');
+        }
+        putString(header, offset, length - 1, field.append(octal).toString());
+    }
+
+    private void pad(OutputStream stream, long size) throws IOException {
+        int remainder = (int) (size % BLOCK);
+        if (remainder > 0) {
+            stream.write(new byte[BLOCK - remainder]);
+        }
+    }
+
+    private String getTag(String imageName) {
+        int slash = imageName.lastIndexOf('/');
+        int colon = imageName.lastIndexOf(':');
+        return colon > slash ? imageName.substring(colon + 1) : "latest";
+    }
+
+    private static String formatTime(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+
+}
@@ -0,0 +1,251 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.assembly;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Generates a class data sharing archive for the boot classpath of a standalone runtime image using the <code>java</code> launcher of a local JDK.
+ *
+ * The boot classpath is the launcher jar and the jars named in its <code>Class-Path</code> manifest attribute. Every class in those jars is written to a
+ * class list, which the JDK loads and dumps to the archive without starting the runtime. A JDK argument file is written next to the archive so that the
+ * runtime can be started from the image directory with <code>java @bin/fabric3-cds.args -jar &lt;launcher&gt;</code>.
+ *
+ * Extension classes are loaded by the runtime's own class loaders and cannot be stored in a static archive. Paths are relative to the image directory,
+ * since the JDK only uses an archive when the classpath matches the one it was dumped with; if it does not, the runtime starts without the archive.
+ */
+public class SharedArchiveGenerator {
+    public static final String ARCHIVE = "bin/fabric3.jsa";
+    public static final String CLASS_LIST = "bin/fabric3.classlist";
+    public static final String ARGUMENTS = "bin/fabric3-cds.args";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File javaHome;
+    private File rootDirectory;
+
+    /**
+     * Constructor.
+     *
+     * @param javaHome      the JDK used to dump the archive, which must be the JDK the runtime is started with
+     * @param rootDirectory the runtime image directory
+     */
+    public SharedArchiveGenerator(File javaHome, File rootDirectory) {
+        this.javaHome = javaHome;
+        this.rootDirectory = rootDirectory;
+    }
+
+    /**
+     * Returns the first jar in the image <code>bin</code> directory that declares a <code>Main-Class</code>.
+     *
+     * @return the launcher path relative to the image directory or null if there is no launcher jar
+     * @throws IOException if a jar cannot be read
+     */
+    public String findLauncher() throws IOException {
+        File[] files = new File(rootDirectory, "bin").listFiles();
+        if (files == null) {
+            return null;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isFile() && file.getName().endsWith(".jar")) {
+                Manifest manifest = getManifest(file);
+                if (manifest != null && manifest.getMainAttributes().getValue(Attributes.Name.MAIN_CLASS) != null) {
+                    return "bin/" + file.getName();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the boot classpath: the launcher and the existing jars named in its <code>Class-Path</code> manifest attribute.
+     *
+     * @param launcher the launcher path relative to the image directory
+     * @return the jar paths relative to the image directory
+     * @throws IOException if the launcher cannot be read
+     */
+    public List<String> getClasspath(String launcher) throws IOException {
+        Set<String> classpath = new LinkedHashSet<>();
+        classpath.add(launcher);
+        File launcherFile = new File(rootDirectory, launcher);
+        Manifest manifest = getManifest(launcherFile);
+        String value = manifest == null ? null : manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+        if (value != null) {
+            String base = launcher.lastIndexOf('/') < 0 ? "" : launcher.substring(0, launcher.lastIndexOf('/') + 1);
+            for (String entry : value.trim().split("\\s+")) {
+                String path = rootDirectory.toPath().relativize(new File(rootDirectory, base + entry).toPath().normalize()).toString();
+                path = path.replace(File.separatorChar, '/');
+                if (path.endsWith(".jar") && new File(rootDirectory, path).isFile()) {
+                    classpath.add(path);
+                }
+            }
+        }
+        return new ArrayList<>(classpath);
+    }
+
+    /**
+     * Returns a string that changes whenever the JDK or a jar on the classpath changes.
+     *
+     * @param classpath the classpath
+     * @return the signature
+     */
+    public String getSignature(List<String> classpath) {
+        StringBuilder builder = new StringBuilder(javaHome.getAbsolutePath());
+        for (String path : classpath) {
+            File file = new File(rootDirectory, path);
+            builder.append(';').append(path).append(':').append(file.length()).append(':').append(file.lastModified());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns true if the archive and argument file exist.
+     *
+     * @return true if the archive exists
+     */
+    public boolean exists() {
+        return new File(rootDirectory, ARCHIVE).isFile() && new File(rootDirectory, ARGUMENTS).isFile();
+    }
+
+    /**
+     * Writes the class list, dumps the archive and writes the argument file.
+     *
+     * @param classpath the classpath, starting with the launcher
+     * @param log       receives the JDK output at debug level
+     * @return the number of classes in the class list
+     * @throws IOException if there is an error generating the archive
+     */
+    public int generate(List<String> classpath, Log log) throws IOException {
+        File archive = new File(rootDirectory, ARCHIVE);
+        archive.delete();
+        int count = writeClassList(classpath);
+        dump(classpath.get(0), log);
+        if (!archive.isFile()) {
+            throw new IOException("The JDK did not create a class data sharing archive: " + archive);
+        }
+        writeArguments(classpath.get(0));
+        return count;
+    }
+
+    private int writeClassList(List<String> classpath) throws IOException {
+        int count = 0;
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(rootDirectory, CLASS_LIST)), UTF8));
+        try {
+            for (String path : classpath) {
+                JarFile jarFile = new JarFile(new File(rootDirectory, path));
+                try {
+                    Enumeration<? extends ZipEntry> entries = jarFile.entries();
+                    while (entries.hasMoreElements()) {
+                        String name = entries.nextElement().getName();
+                        if (name.endsWith(".class") && !name.startsWith("META-INF/") && !name.endsWith("module-info.class")
+                            && !name.endsWith("package-info.class")) {
+                            writer.write(name.substring(0, name.length() - ".class".length()));
+                            writer.write('\n');
+                            count++;
+                        }
+                    }
+                } finally {
+                    jarFile.close();
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        return count;
+    }
+
+    private void dump(String launcher, Log log) throws IOException {
+        String executable = File.separatorChar == '\\' ? "java.exe" : "java";
+        File java = new File(new File(javaHome, "bin"), executable);
+        if (!java.isFile()) {
+            throw new IOException("Java launcher not found: " + java);
+        }
+        ProcessBuilder builder = new ProcessBuilder(java.getAbsolutePath(),
+                                                   "-Xshare:dump",
+                                                   "-XX:SharedClassListFile=" + CLASS_LIST,
+                                                   "-XX:SharedArchiveFile=" + ARCHIVE,
+                                                   "-cp",
+                                                   launcher);
+        builder.directory(rootDirectory);
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        String last = null;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                log.debug(line);
+                last = line;
+            }
+        } finally {
+            reader.close();
+        }
+        int exitCode;
+        try {
+            exitCode = process.waitFor();
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted dumping class data sharing archive");
+        }
+        if (exitCode != 0) {
+            throw new IOException("Class data sharing dump failed with exit code " + exitCode + (last == null ? "" : ": " + last));
+        }
+    }
+
+    private void writeArguments(String launcher) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(new File(rootDirectory, ARGUMENTS)), UTF8);
+        try {
+            writer.write("# Start from the runtime directory with: java @" + ARGUMENTS + " -jar " + launcher + "\n");
+            writer.write("-XX:SharedArchiveFile=" + ARCHIVE + "\n");
+            writer.write("-Xshare:auto\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    private Manifest getManifest(File file) throws IOException {
+        JarFile jarFile = new JarFile(file);
+        try {
+            return jarFile.getManifest();
+        } finally {
+            jarFile.close();
+        }
+    }
+
+}
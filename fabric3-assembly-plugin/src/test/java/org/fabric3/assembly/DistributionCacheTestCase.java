@@ -0,0 +1,164 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.assembly;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+import org.eclipse.aether.DefaultRepositorySystemSession;
+import org.fabric3.plugins.common.ChecksumCache;
+import org.fabric3.plugins.common.ZipExtractor;
+
+/**
+ * Tests extracting distributions into the cache, evicting least recently used entries and replacing entries modified through hard links.
+ */
+public class DistributionCacheTestCase extends TestCase {
+    private static final int FILE_SIZE = 1000;
+
+    private File directory;
+    private File cacheDirectory;
+    private ZipExtractor extractor;
+    private DistributionCache cache;
+    private List<DistributionCache.Distribution> opened = new ArrayList<>();
+
+    public void testOpen() throws Exception {
+        DistributionCache.Distribution distribution = open("a");
+        assertEquals(1, distribution.getEntries().size());
+        DistributionCache.Entry entry = distribution.getEntries().get(0);
+        assertEquals("bin/a.txt", entry.getName());
+        assertEquals(Arrays.asList("bin/"), distribution.getDirectories());
+        assertTrue(Arrays.equals(createContents("a"), Files.readAllBytes(new File(distribution.getRoot(), "bin/a.txt").toPath())));
+        distribution.close();
+
+        // a second open reuses the extracted entry
+        File root = distribution.getRoot();
+        assertEquals(root, open("a").getRoot());
+    }
+
+    public void testEvictionSkipsEntryInUse() throws Exception {
+        DistributionCache.Distribution first = open("first");
+        DistributionCache.Distribution second = open("second");
+        second.close();
+        markUsed(first, 1000);
+        markUsed(second, 2000);
+
+        // the cache holds two distributions; the least recently used one is being read, so the second is evicted instead
+        DistributionCache.Distribution third = open("third");
+        assertTrue(first.getRoot().isDirectory());
+        assertTrue(Arrays.equals(createContents("first"), Files.readAllBytes(new File(first.getRoot(), "bin/first.txt").toPath())));
+        assertFalse(second.getRoot().exists());
+        assertTrue(third.getRoot().isDirectory());
+
+        // once released, the first distribution is evicted
+        first.close();
+        third.close();
+        markUsed(third, 3000);
+        DistributionCache.Distribution fourth = open("fourth");
+        assertFalse(first.getRoot().exists());
+        assertTrue(third.getRoot().isDirectory());
+        assertTrue(fourth.getRoot().isDirectory());
+    }
+
+    public void testModifiedEntryIsExtractedAgain() throws Exception {
+        DistributionCache.Distribution distribution = open("a");
+        File file = new File(distribution.getRoot(), "bin/a.txt");
+        distribution.close();
+        // simulates an edit made to a file hard-linked into an image
+        Files.write(file.toPath(), "edited".getBytes(), StandardOpenOption.APPEND);
+
+        distribution = open("a");
+        assertTrue(Arrays.equals(createContents("a"), Files.readAllBytes(new File(distribution.getRoot(), "bin/a.txt").toPath())));
+    }
+
+    public void testModifiedEntryInUse() throws Exception {
+        DistributionCache.Distribution distribution = open("a");
+        Files.write(new File(distribution.getRoot(), "bin/a.txt").toPath(), "edited".getBytes(), StandardOpenOption.APPEND);
+        // the modified entry cannot be replaced while it is read
+        assertNull(cache.open("org.fabric3:a:zip:bin:1.0", new File(directory, "a.zip")));
+        distribution.close();
+        assertNotNull(open("a"));
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = Files.createTempDirectory("distributioncache").toFile();
+        cacheDirectory = new File(directory, "cache");
+        extractor = new ZipExtractor(1);
+        ChecksumCache checksums = new ChecksumCache(new DefaultRepositorySystemSession());
+        // room for two distributions
+        cache = new DistributionCache(cacheDirectory, 2 * FILE_SIZE + FILE_SIZE / 2, extractor, checksums);
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        // readers are tracked per JVM, so all distributions are released before the next test
+        for (DistributionCache.Distribution distribution : opened) {
+            distribution.close();
+        }
+        extractor.shutdown();
+        FileHelper.forceDelete(directory);
+    }
+
+    /**
+     * Opens a distribution containing a single file, creating its archive if needed.
+     */
+    private DistributionCache.Distribution open(String name) throws IOException {
+        File archive = new File(directory, name + ".zip");
+        if (!archive.exists()) {
+            ZipOutputStream stream = new ZipOutputStream(new FileOutputStream(archive));
+            try {
+                stream.putNextEntry(new ZipEntry("bin/"));
+                stream.closeEntry();
+                stream.putNextEntry(new ZipEntry("bin/" + name + ".txt"));
+                stream.write(createContents(name));
+                stream.closeEntry();
+            } finally {
+                stream.close();
+            }
+        }
+        DistributionCache.Distribution distribution = cache.open("org.fabric3:" + name + ":zip:bin:1.0", archive);
+        assertNotNull(distribution);
+        opened.add(distribution);
+        return distribution;
+    }
+
+    /**
+     * Sets the time an entry was last used, which is recorded as the modification time of its index, so that the eviction order does not depend on the
+     * resolution of file times.
+     */
+    private void markUsed(DistributionCache.Distribution distribution, long time) {
+        assertTrue(new File(distribution.getRoot().getParentFile(), "index").setLastModified(time));
+    }
+
+    private byte[] createContents(String name) {
+        byte[] contents = new byte[FILE_SIZE];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = (byte) name.charAt(i % name.length());
+        }
+        return contents;
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.assembly;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests writing and reading image manifests and detecting changed sources and installed files.
+ */
+public class ImageManifestTestCase extends TestCase {
+    private static final String SOURCE = "org.fabric3:extension:jar:1.0";
+
+    private File directory;
+    private File image;
+    private File manifestFile;
+    private File source;
+
+    public void testSaveAndLoad() throws Exception {
+        ImageManifest manifest = createManifest();
+        manifest.setOption("filter", "exclude=**/*.txt");
+        manifest.markRemoved("extensions/removed.jar");
+        manifest.save(manifestFile);
+
+        ImageManifest loaded = ImageManifest.load(manifestFile, image);
+        assertTrue(loaded.getSources().contains(SOURCE));
+        assertTrue(loaded.contains("extensions/extension.jar"));
+        ImageManifest.FileRecord record = loaded.getFile("extensions/extension.jar");
+        assertEquals(SOURCE, record.getSource());
+        assertEquals(ImageManifest.hash(0x1234L), record.getHash());
+        assertEquals(new File(image, "extensions/extension.jar").length(), record.getSize());
+        assertEquals("exclude=**/*.txt", loaded.getOption("filter"));
+        assertTrue(loaded.isRemoved("extensions/removed.jar"));
+        assertTrue(loaded.isCurrent(SOURCE, source));
+    }
+
+    public void testLoadMissingFile() throws Exception {
+        ImageManifest manifest = ImageManifest.load(manifestFile, image);
+        assertTrue(manifest.getSources().isEmpty());
+        assertTrue(manifest.getPaths().isEmpty());
+    }
+
+    public void testLoadInvalidEntry() throws Exception {
+        Files.write(manifestFile.toPath(), "F\textensions/extension.jar\tnot a number\n".getBytes(StandardCharsets.UTF_8));
+        try {
+            ImageManifest.load(manifestFile, image);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testSourceChanged() throws Exception {
+        ImageManifest manifest = createManifest();
+        assertTrue(manifest.isCurrent(SOURCE, source));
+        source.setLastModified(source.lastModified() + 2000);
+        assertFalse(manifest.isCurrent(SOURCE, source));
+        assertFalse(manifest.isCurrent("org.fabric3:unknown:jar:1.0", source));
+    }
+
+    public void testInstalledFileChanged() throws Exception {
+        ImageManifest manifest = createManifest();
+        File installed = new File(image, "extensions/extension.jar");
+        Files.write(installed.toPath(), "modified contents".getBytes(StandardCharsets.UTF_8));
+        assertFalse(manifest.isIntact("extensions/extension.jar"));
+        assertFalse(manifest.isCurrent(SOURCE, source));
+    }
+
+    public void testInstalledFileDeleted() throws Exception {
+        ImageManifest manifest = createManifest();
+        Files.delete(new File(image, "extensions/extension.jar").toPath());
+        assertFalse(manifest.isCurrent(SOURCE, source));
+        manifest.retainExisting();
+        assertFalse(manifest.contains("extensions/extension.jar"));
+    }
+
+    public void testInclude() throws Exception {
+        ImageManifest previous = createManifest();
+        ImageManifest manifest = new ImageManifest(image);
+        manifest.include(previous, SOURCE);
+        assertTrue(manifest.getSources().contains(SOURCE));
+        assertTrue(manifest.contains("extensions/extension.jar"));
+        assertTrue(manifest.isCurrent(SOURCE, source));
+    }
+
+    public void testOverwrittenFile() throws Exception {
+        String runtime = "org.fabric3:runtime-standalone:zip:bin:1.0";
+        String profile = "org.fabric3:profile-web:zip:bin:1.0";
+        new File(image, "config").mkdirs();
+        Files.write(new File(image, "config/x").toPath(), "runtime".getBytes(StandardCharsets.UTF_8));
+        ImageManifest manifest = createManifest();
+        manifest.addFile("config/x", runtime, ImageManifest.hash(0x1L));
+        manifest.addSource(runtime, source);
+        Files.write(new File(image, "config/x").toPath(), "profile".getBytes(StandardCharsets.UTF_8));
+        manifest.addFile("config/x", profile, ImageManifest.hash(0x2L));
+        manifest.addSource(profile, source);
+        assertTrue(manifest.isOverlapping(runtime));
+        assertTrue(manifest.isOverlapping(profile));
+        assertFalse(manifest.isOverlapping(SOURCE));
+        manifest.save(manifestFile);
+
+        ImageManifest loaded = ImageManifest.load(manifestFile, image);
+        assertEquals(2, loaded.getOverlappingSources().size());
+        assertEquals(profile, loaded.getFile("config/x").getSource());
+        ImageManifest next = new ImageManifest(image);
+        next.include(loaded, runtime);
+        // the overwritten file is recorded only under the last writer, so it is not carried over with the runtime
+        assertFalse(next.contains("config/x"));
+        assertTrue(next.isOverlapping(runtime));
+        assertFalse(next.isOverlapping(profile));
+    }
+
+    public void testGetChecksum() throws Exception {
+        ImageManifest manifest = createManifest();
+        Files.write(new File(image, "config.xml").toPath(), "<config/>".getBytes(StandardCharsets.UTF_8));
+        manifest.addFile("config.xml", "config:config.xml", ImageManifest.hash("abcd"));
+        assertEquals("abcd", manifest.getChecksum("config.xml"));
+        // extracted files are recorded with their CRC-32
+        assertNull(manifest.getChecksum("extensions/extension.jar"));
+        Files.write(new File(image, "config.xml").toPath(), "<modified/>".getBytes(StandardCharsets.UTF_8));
+        assertNull(manifest.getChecksum("config.xml"));
+    }
+
+    public void testSaveChecksums() throws Exception {
+        ImageManifest manifest = createManifest();
+        Files.write(new File(image, "config.xml").toPath(), "<config/>".getBytes(StandardCharsets.UTF_8));
+        manifest.addFile("config.xml", "config:config.xml", ImageManifest.hash("abcd"));
+        File checksums = new File(directory, "image.checksums");
+        manifest.saveChecksums(checksums);
+        List<String> lines = Files.readAllLines(checksums.toPath(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertEquals("sha256:abcd  config.xml", lines.get(0));
+        assertEquals("crc32:1234  extensions/extension.jar", lines.get(1));
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = Files.createTempDirectory("imagemanifest").toFile();
+        image = new File(directory, "image");
+        new File(image, "extensions").mkdirs();
+        manifestFile = new File(directory, "image.manifest");
+        source = new File(directory, "extension-1.0.jar");
+        Files.write(source.toPath(), "extension contents".getBytes(StandardCharsets.UTF_8));
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        delete(directory);
+    }
+
+    /**
+     * Creates a manifest recording an extension installed from the source file.
+     */
+    private ImageManifest createManifest() throws IOException {
+        File installed = new File(image, "extensions/extension.jar");
+        Files.copy(source.toPath(), installed.toPath());
+        ImageManifest manifest = new ImageManifest(image);
+        manifest.addFile("extensions/extension.jar", SOURCE, ImageManifest.hash(0x1234L));
+        manifest.addSource(SOURCE, source);
+        return manifest;
+    }
+
+    private void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+}
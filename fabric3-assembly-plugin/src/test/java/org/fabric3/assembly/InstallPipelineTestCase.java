@@ -0,0 +1,122 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.assembly;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.eclipse.aether.DefaultRepositorySystemSession;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.fabric3.plugins.common.BuildMetrics;
+
+/**
+ * Tests ordered and concurrent installation and failure aggregation in {@link InstallPipeline}.
+ */
+public class InstallPipelineTestCase extends TestCase {
+    private List<String> installed = Collections.synchronizedList(new ArrayList<String>());
+    private ArtifactResolver resolver;
+
+    public void testOrderedStepsInstalledFirst() throws Exception {
+        // the first distribution resolves last, so ordering depends on the pipeline rather than resolution speed
+        List<InstallPipeline.Step> ordered = Arrays.asList(createStep("runtime-30"), createStep("profile-20"), createStep("profile-0"));
+        List<InstallPipeline.Step> unordered = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            unordered.add(createStep("extension" + i + "-0"));
+        }
+        new InstallPipeline(resolver, 4, 2).run(ordered, unordered);
+
+        assertEquals(13, installed.size());
+        assertEquals(Arrays.asList("runtime-30", "profile-20", "profile-0"), installed.subList(0, 3));
+        assertEquals(10, new HashSet<>(installed.subList(3, 13)).size());
+    }
+
+    public void testResolutionOutpacesInstallation() throws Exception {
+        List<InstallPipeline.Step> unordered = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            unordered.add(createStep("extension" + i + "-0"));
+        }
+        // a single install worker has a queue of two resolved artifacts, so resolver threads wait for it
+        new InstallPipeline(resolver, 8, 1).run(Collections.<InstallPipeline.Step>emptyList(), unordered);
+        assertEquals(50, new HashSet<>(installed).size());
+    }
+
+    public void testFailuresReportedTogether() throws Exception {
+        List<InstallPipeline.Step> ordered = Arrays.asList(createStep("runtime-0"), createStep("failing-0"));
+        List<InstallPipeline.Step> unordered = Arrays.asList(createStep("missing-0"), createStep("extension-0"), createStep("failing2-0"));
+        try {
+            new InstallPipeline(resolver, 2, 2).run(ordered, unordered);
+            fail();
+        } catch (MojoExecutionException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("3 artifacts could not be installed:"));
+            assertEquals(2, e.getSuppressed().length);
+        }
+        // a failed step does not stop the others
+        assertEquals(new HashSet<>(Arrays.asList("runtime-0", "extension-0")), new HashSet<>(installed));
+    }
+
+    public void testSingleFailure() throws Exception {
+        List<InstallPipeline.Step> unordered = Arrays.asList(createStep("missing-0"), createStep("extension-0"));
+        try {
+            new InstallPipeline(resolver, 2, 2).run(Collections.<InstallPipeline.Step>emptyList(), unordered);
+            fail();
+        } catch (MojoExecutionException e) {
+            assertEquals("Unable to resolve missing", e.getMessage());
+        }
+        assertEquals(Arrays.asList("extension-0"), installed);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        resolver = new ArtifactResolver(null, new DefaultRepositorySystemSession(), null, 1, new BuildMetrics("test"), null) {
+            public File resolve(Artifact artifact) throws MojoExecutionException {
+                String artifactId = artifact.getArtifactId();
+                if (artifactId.startsWith("missing")) {
+                    throw new MojoExecutionException("Unable to resolve missing");
+                }
+                // the suffix is the resolution delay in milliseconds
+                long delay = Long.parseLong(artifactId.substring(artifactId.lastIndexOf('-') + 1));
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MojoExecutionException("Interrupted", e);
+                }
+                return new File(artifactId + ".jar");
+            }
+        };
+    }
+
+    private InstallPipeline.Step createStep(String artifactId) {
+        return new InstallPipeline.Step(new DefaultArtifact("org.fabric3", artifactId, "jar", "1.0")) {
+            public void install(File file) throws MojoExecutionException {
+                String name = file.getName().substring(0, file.getName().length() - 4);
+                if (name.startsWith("failing")) {
+                    throw new MojoExecutionException("Unable to install " + name);
+                }
+                installed.add(name);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.contribution;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.fabric3.plugins.common.OutputTimestamp;
+
+/**
+ * Rewrites an archive so that identical inputs produce identical bytes.
+ *
+ * Entries are ordered with the manifest first and the remainder sorted by name, all entry times are set to a fixed timestamp, and the generated comment line
+ * is removed from Maven pom.properties files. Entries keep their original compression method. Extra fields and file permissions are not carried over.
+ */
+public class ArchiveNormalizer {
+    private static final String META_INF = "META-INF/";
+    private static final String MANIFEST = "META-INF/MANIFEST.MF";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER = 64 * 1024;
+
+    protected ArchiveNormalizer() {
+    }
+
+    /**
+     * Normalizes an archive in place.
+     *
+     * @param archive   the archive
+     * @param timestamp the entry timestamp in milliseconds since the epoch
+     * @throws IOException if there is an error rewriting the archive
+     */
+    public static void normalize(File archive, long timestamp) throws IOException {
+        File normalized = new File(archive.getPath() + ".tmp");
+        long time = OutputTimestamp.toZipTime(timestamp);
+        byte[] buffer = new byte[BUFFER];
+        ZipFile zipFile = new ZipFile(archive);
+        ZipOutputStream zipStream = null;
+        try {
+            List<ZipEntry> entries = new ArrayList<>();
+            Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
+            while (enumeration.hasMoreElements()) {
+                entries.add(enumeration.nextElement());
+            }
+            Collections.sort(entries, new Comparator<ZipEntry>() {
+                public int compare(ZipEntry first, ZipEntry second) {
+                    int rank = rank(first.getName()) - rank(second.getName());
+                    return rank != 0 ? rank : first.getName().compareTo(second.getName());
+                }
+            });
+            zipStream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(normalized), BUFFER));
+            for (ZipEntry entry : entries) {
+                String name = entry.getName();
+                ZipEntry target = new ZipEntry(name);
+                target.setTime(time);
+                if (entry.isDirectory()) {
+                    target.setMethod(ZipEntry.STORED);
+                    target.setSize(0);
+                    target.setCrc(0);
+                    zipStream.putNextEntry(target);
+                } else if (isPomProperties(name)) {
+                    byte[] contents = stripComments(zipFile.getInputStream(entry));
+                    if (entry.getMethod() == ZipEntry.STORED) {
+                        CRC32 crc = new CRC32();
+                        crc.update(contents);
+                        target.setMethod(ZipEntry.STORED);
+                        target.setSize(contents.length);
+                        target.setCrc(crc.getValue());
+                    }
+                    zipStream.putNextEntry(target);
+                    zipStream.write(contents);
+                } else {
+                    if (entry.getMethod() == ZipEntry.STORED) {
+                        target.setMethod(ZipEntry.STORED);
+                        target.setSize(entry.getSize());
+                        target.setCrc(entry.getCrc());
+                    }
+                    zipStream.putNextEntry(target);
+                    copy(zipFile.getInputStream(entry), zipStream, buffer);
+                }
+                zipStream.closeEntry();
+            }
+            zipStream.close();
+        } finally {
+            close(zipStream);
+            close(zipFile);
+        }
+        Files.move(normalized.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static int rank(String name) {
+        if (META_INF.equals(name)) {
+            return 0;
+        } else if (MANIFEST.equalsIgnoreCase(name)) {
+            return 1;
+        }
+        return 2;
+    }
+
+    private static boolean isPomProperties(String name) {
+        return name.startsWith(META_INF + "maven/") && name.endsWith("/pom.properties");
+    }
+
+    private static byte[] stripComments(InputStream stream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream, UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("#")) {
+                    bytes.write((line + "\n").getBytes(UTF8));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void copy(InputStream stream, OutputStream outputStream, byte[] buffer) throws IOException {
+        try {
+            int n;
+            while (-1 != (n = stream.read(buffer))) {
+                outputStream.write(buffer, 0, n);
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+}
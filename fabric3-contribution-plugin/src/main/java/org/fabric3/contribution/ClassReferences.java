@@ -0,0 +1,98 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.contribution;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the names of the classes a class file refers to from its {@link ConstantPool}.
+ *
+ * Every class entry is a reference, including superclasses, interfaces, nested classes and the owners of referenced fields and methods. Class names are
+ * also taken from the type descriptors and generic signatures stored as UTF-8 entries, which cover field, parameter, return and annotation types. String
+ * constants that look like class names are included so that classes named in <code>Class.forName</code> calls are found. The result may contain names of
+ * classes that do not exist; callers only use those they can resolve.
+ */
+public class ClassReferences {
+    private static final Pattern DESCRIPTOR_TYPE = Pattern.compile("L([\\w/$]+)[;<]");
+    private static final Pattern CLASS_NAME = Pattern.compile("[A-Za-z_$][\\w$]*(?:[./][A-Za-z_$][\\w$]*)+");
+
+    protected ClassReferences() {
+    }
+
+    /**
+     * Adds the internal names of the classes referred to by a class file.
+     *
+     * @param classFile  the class file contents
+     * @param references receives the internal names, such as <code>java/lang/String</code>
+     * @throws IOException if the class file is malformed
+     */
+    public static void read(byte[] classFile, Collection<String> references) throws IOException {
+        ConstantPool pool = ConstantPool.read(new DataInputStream(new ByteArrayInputStream(classFile)));
+        for (int i = 1; i < pool.size(); i++) {
+            switch (pool.getTag(i)) {
+                case ConstantPool.CLASS:
+                    String name = pool.getClassName(i);
+                    if (name.startsWith("[")) {
+                        addDescriptorTypes(name, references);
+                    } else {
+                        references.add(name);
+                    }
+                    break;
+                case ConstantPool.UTF8:
+                    String value = pool.getUtf8(i);
+                    if (value.indexOf('L') >= 0) {
+                        addDescriptorTypes(value, references);
+                    }
+                    break;
+                case ConstantPool.STRING:
+                    String constant = pool.getString(i);
+                    if (CLASS_NAME.matcher(constant).matches()) {
+                        references.add(constant.replace('.', '/'));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Adds the internal names of classes that appear as fully qualified names in text, such as a composite or Spring configuration file.
+     *
+     * @param text       the text
+     * @param references receives the internal names
+     */
+    public static void readText(CharSequence text, Collection<String> references) {
+        Matcher matcher = CLASS_NAME.matcher(text);
+        while (matcher.find()) {
+            references.add(matcher.group().replace('.', '/'));
+        }
+    }
+
+    private static void addDescriptorTypes(String value, Collection<String> references) {
+        Matcher matcher = DESCRIPTOR_TYPE.matcher(value);
+        while (matcher.find()) {
+            references.add(matcher.group(1));
+        }
+    }
+
+}
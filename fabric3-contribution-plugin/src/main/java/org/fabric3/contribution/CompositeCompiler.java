@@ -0,0 +1,290 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.contribution;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Validates the composite files in a contribution and writes a pre-parsed binary form of each next to it, so that the runtime can load a composite without
+ * parsing its XML. The XML file is kept and remains the fallback if the binary form is missing, has an unknown version or does not match the XML.
+ *
+ * A composite is valid if it is well-formed, does not use a DTD and its root element is a named <code>composite</code> element in the SCA namespace.
+ *
+ * The binary form is written to the composite path with {@link #SUFFIX} appended. It starts with a header followed by a string table and the document
+ * events. Integers marked as var are unsigned and written seven bits at a time, low bits first, with the high bit set on all but the last byte:
+ * <pre>
+ * int    magic, 'F3CB'
+ * short  version
+ * int    size of the composite XML
+ * int    CRC-32 of the composite XML
+ * var    string count, followed by each string as a var UTF-8 length and bytes; string 0 is the empty string
+ * events, each starting with a type byte:
+ *   1  start element: var line, var namespace, var prefix, var local name, var namespace declaration count followed by a var prefix and var namespace
+ *      for each, var attribute count followed by a var namespace, var prefix, var local name and var value for each
+ *   2  end element
+ *   3  text: var text
+ *   0  end of document
+ * </pre>
+ * Strings in events are string table indexes. Comments, processing instructions and text consisting only of whitespace are not recorded, and adjacent
+ * text, including CDATA sections, is merged.
+ */
+public class CompositeCompiler {
+    public static final String SUFFIX = ".bin";
+    public static final String SCA_NAMESPACE = "http://docs.oasis-open.org/ns/opencsa/sca/200912";
+
+    private static final String COMPOSITE_SUFFIX = ".composite";
+    private static final int MAGIC = 0x46334342;
+    private static final int VERSION = 1;
+    private static final int START_ELEMENT = 1;
+    private static final int END_ELEMENT = 2;
+    private static final int TEXT = 3;
+    private static final int END_DOCUMENT = 0;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private XMLInputFactory factory;
+    private int compiled;
+
+    /**
+     * Constructor.
+     */
+    public CompositeCompiler() {
+        factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /**
+     * Compiles the composite files in a contribution classes directory. The <code>META-INF/lib</code> directory is skipped.
+     *
+     * @param directory the classes directory
+     * @throws IOException if a composite is not valid or cannot be read, or a binary form cannot be written
+     */
+    public void compile(File directory) throws IOException {
+        compile(directory, new File(directory, "META-INF" + File.separator + "lib"));
+    }
+
+    /**
+     * Returns the number of compiled composites.
+     *
+     * @return the number of composites
+     */
+    public int getCompiledCount() {
+        return compiled;
+    }
+
+    /**
+     * Compiles a composite file, writing its binary form next to it. An unchanged binary form is not rewritten.
+     *
+     * @param composite the composite file
+     * @return the binary form
+     * @throws IOException if the composite is not valid or cannot be read, or the binary form cannot be written
+     */
+    public File compileComposite(File composite) throws IOException {
+        byte[] xml = Files.readAllBytes(composite.toPath());
+        byte[] contents;
+        try {
+            contents = compile(xml);
+        } catch (XMLStreamException e) {
+            // the message includes the location
+            throw new IOException("Invalid composite " + composite + ": " + e.getMessage(), e);
+        }
+        File file = new File(composite.getPath() + SUFFIX);
+        if (!file.isFile() || !Arrays.equals(contents, Files.readAllBytes(file.toPath()))) {
+            Files.write(file.toPath(), contents);
+        }
+        compiled++;
+        return file;
+    }
+
+    private void compile(File directory, File excluded) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                if (!file.equals(excluded)) {
+                    compile(file, excluded);
+                }
+            } else if (file.getName().endsWith(COMPOSITE_SUFFIX)) {
+                compileComposite(file);
+            }
+        }
+    }
+
+    private byte[] compile(byte[] xml) throws XMLStreamException, IOException {
+        Strings strings = new Strings();
+        ByteArrayOutputStream events = new ByteArrayOutputStream(xml.length / 2);
+        XMLStreamReader reader = factory.createXMLStreamReader(new ByteArrayInputStream(xml));
+        try {
+            StringBuilder text = new StringBuilder();
+            int depth = 0;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                switch (event) {
+                    case XMLStreamReader.START_ELEMENT:
+                        if (depth == 0) {
+                            validateRoot(reader);
+                        }
+                        depth++;
+                        writeText(text, events, strings);
+                        writeStart(reader, events, strings);
+                        break;
+                    case XMLStreamReader.END_ELEMENT:
+                        depth--;
+                        writeText(text, events, strings);
+                        events.write(END_ELEMENT);
+                        break;
+                    case XMLStreamReader.CHARACTERS:
+                    case XMLStreamReader.CDATA:
+                    case XMLStreamReader.SPACE:
+                        if (depth > 0) {
+                            text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        }
+                        break;
+                    case XMLStreamReader.DTD:
+                        throw new XMLStreamException("DTDs are not supported", reader.getLocation());
+                    default:
+                        // comments and processing instructions are not recorded
+                        break;
+                }
+            }
+            events.write(END_DOCUMENT);
+        } finally {
+            reader.close();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(xml);
+        ByteArrayOutputStream contents = new ByteArrayOutputStream(events.size() + xml.length / 4);
+        DataOutputStream stream = new DataOutputStream(contents);
+        stream.writeInt(MAGIC);
+        stream.writeShort(VERSION);
+        stream.writeInt(xml.length);
+        stream.writeInt((int) crc.getValue());
+        strings.write(stream);
+        events.writeTo(stream);
+        stream.flush();
+        return contents.toByteArray();
+    }
+
+    private void validateRoot(XMLStreamReader reader) throws XMLStreamException {
+        if (!"composite".equals(reader.getLocalName()) || !SCA_NAMESPACE.equals(reader.getNamespaceURI())) {
+            throw new XMLStreamException("Root element must be composite in the " + SCA_NAMESPACE + " namespace", reader.getLocation());
+        }
+        String name = reader.getAttributeValue(null, "name");
+        if (name == null || name.trim().length() == 0) {
+            throw new XMLStreamException("Composite name not specified", reader.getLocation());
+        }
+    }
+
+    private void writeStart(XMLStreamReader reader, ByteArrayOutputStream events, Strings strings) {
+        events.write(START_ELEMENT);
+        writeVar(Math.max(reader.getLocation().getLineNumber(), 0), events);
+        writeVar(strings.get(reader.getNamespaceURI()), events);
+        writeVar(strings.get(reader.getPrefix()), events);
+        writeVar(strings.get(reader.getLocalName()), events);
+        int namespaces = reader.getNamespaceCount();
+        writeVar(namespaces, events);
+        for (int i = 0; i < namespaces; i++) {
+            writeVar(strings.get(reader.getNamespacePrefix(i)), events);
+            writeVar(strings.get(reader.getNamespaceURI(i)), events);
+        }
+        int attributes = reader.getAttributeCount();
+        writeVar(attributes, events);
+        for (int i = 0; i < attributes; i++) {
+            writeVar(strings.get(reader.getAttributeNamespace(i)), events);
+            writeVar(strings.get(reader.getAttributePrefix(i)), events);
+            writeVar(strings.get(reader.getAttributeLocalName(i)), events);
+            writeVar(strings.get(reader.getAttributeValue(i)), events);
+        }
+    }
+
+    private void writeText(StringBuilder text, ByteArrayOutputStream events, Strings strings) {
+        if (text.length() == 0) {
+            return;
+        }
+        String value = text.toString();
+        text.setLength(0);
+        if (value.trim().length() == 0) {
+            return;
+        }
+        events.write(TEXT);
+        writeVar(strings.get(value), events);
+    }
+
+    private static void writeVar(int value, ByteArrayOutputStream stream) {
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            stream.write((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        stream.write(remaining);
+    }
+
+    /**
+     * The string table of a binary composite, in the order strings are first used.
+     */
+    private static class Strings {
+        private Map<String, Integer> indexes = new HashMap<>();
+        private List<String> values = new ArrayList<>();
+
+        private Strings() {
+            get("");
+        }
+
+        private int get(String value) {
+            String key = value == null ? "" : value;
+            Integer index = indexes.get(key);
+            if (index == null) {
+                index = values.size();
+                indexes.put(key, index);
+                values.add(key);
+            }
+            return index;
+        }
+
+        private void write(DataOutputStream stream) throws IOException {
+            ByteArrayOutputStream table = new ByteArrayOutputStream();
+            writeVar(values.size(), table);
+            for (String value : values) {
+                byte[] bytes = value.getBytes(UTF8);
+                writeVar(bytes.length, table);
+                table.write(bytes);
+            }
+            table.writeTo(stream);
+        }
+    }
+
+}
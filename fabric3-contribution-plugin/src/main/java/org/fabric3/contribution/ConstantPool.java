@@ -0,0 +1,186 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.contribution;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Reads the header and constant pool of a class file for {@link ClassReferences} and {@link ContributionIndex}, which read the rest of the class file
+ * from the same stream as they need.
+ *
+ * UTF-8 entries are held as strings and numeric constants as boxed values. Class, string, method type, module and package entries hold the index of the
+ * UTF-8 entry they refer to; other entries are skipped.
+ */
+public class ConstantPool {
+    public static final int UTF8 = 1;
+    public static final int INTEGER = 3;
+    public static final int FLOAT = 4;
+    public static final int LONG = 5;
+    public static final int DOUBLE = 6;
+    public static final int CLASS = 7;
+    public static final int STRING = 8;
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private int[] tags;
+    private Object[] values;
+
+    private ConstantPool(int count) {
+        tags = new int[count];
+        values = new Object[count];
+    }
+
+    /**
+     * Reads the header and constant pool of a class file. The stream is left positioned at the access flags of the class.
+     *
+     * @param stream the class file stream
+     * @return the constant pool
+     * @throws IOException if the class file is malformed
+     */
+    public static ConstantPool read(DataInputStream stream) throws IOException {
+        if (stream.readInt() != MAGIC) {
+            throw new IOException("Not a class file");
+        }
+        stream.readUnsignedShort();
+        stream.readUnsignedShort();
+        ConstantPool pool = new ConstantPool(stream.readUnsignedShort());
+        for (int i = 1; i < pool.tags.length; i++) {
+            int tag = stream.readUnsignedByte();
+            pool.tags[i] = tag;
+            switch (tag) {
+                case UTF8:
+                    pool.values[i] = stream.readUTF();
+                    break;
+                case INTEGER:
+                    pool.values[i] = stream.readInt();
+                    break;
+                case FLOAT:
+                    pool.values[i] = stream.readFloat();
+                    break;
+                case LONG:
+                    // eight-byte constants occupy two entries
+                    pool.values[i++] = stream.readLong();
+                    break;
+                case DOUBLE:
+                    pool.values[i++] = stream.readDouble();
+                    break;
+                case CLASS:
+                case STRING:
+                case 16:
+                case 19:
+                case 20:
+                    // the index of the name or value, resolved on use
+                    pool.values[i] = stream.readUnsignedShort();
+                    break;
+                case 15:
+                    stream.readUnsignedByte();
+                    stream.readUnsignedShort();
+                    break;
+                case 9:
+                case 10:
+                case 11:
+                case 12:
+                case 17:
+                case 18:
+                    stream.readInt();
+                    break;
+                default:
+                    throw new IOException("Invalid constant pool tag: " + tag);
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Returns the number of entries, including the unused entry 0 and the second entries of eight-byte constants.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return tags.length;
+    }
+
+    /**
+     * Returns the tag of an entry.
+     *
+     * @param index the entry index
+     * @return the tag or 0 for an unused entry
+     */
+    public int getTag(int index) {
+        return tags[index];
+    }
+
+    /**
+     * Returns the value of a UTF-8 or numeric constant.
+     *
+     * @param index the entry index
+     * @return the string or boxed number
+     * @throws IOException if the entry is not a UTF-8 or numeric constant
+     */
+    public Object getValue(int index) throws IOException {
+        int tag = index > 0 && index < tags.length ? tags[index] : 0;
+        if (tag < UTF8 || tag > DOUBLE) {
+            throw new IOException("Invalid constant pool reference: " + index);
+        }
+        return values[index];
+    }
+
+    /**
+     * Returns the value of a UTF-8 entry.
+     *
+     * @param index the entry index
+     * @return the value
+     * @throws IOException if the entry is not a UTF-8 entry
+     */
+    public String getUtf8(int index) throws IOException {
+        if (index <= 0 || index >= tags.length || tags[index] != UTF8) {
+            throw new IOException("Invalid constant pool reference: " + index);
+        }
+        return (String) values[index];
+    }
+
+    /**
+     * Returns the internal name of a class entry.
+     *
+     * @param index the entry index
+     * @return the internal name, or the descriptor for an array class
+     * @throws IOException if the entry is not a class entry
+     */
+    public String getClassName(int index) throws IOException {
+        return getReference(index, CLASS);
+    }
+
+    /**
+     * Returns the value of a string constant.
+     *
+     * @param index the entry index
+     * @return the value
+     * @throws IOException if the entry is not a string constant
+     */
+    public String getString(int index) throws IOException {
+        return getReference(index, STRING);
+    }
+
+    private String getReference(int index, int tag) throws IOException {
+        if (index <= 0 || index >= tags.length || tags[index] != tag) {
+            throw new IOException("Invalid constant pool reference: " + index);
+        }
+        return getUtf8((Integer) values[index]);
+    }
+
+}
@@ -0,0 +1,373 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.contribution;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Builds an index of the annotated classes and composite files in a contribution so that the runtime does not need to introspect every class at deployment.
+ *
+ * Class files are read with a bytecode reader and are not loaded. A class is indexed if it, one of its fields or methods, or a method parameter carries a
+ * runtime-visible annotation, or if it is named as a Java implementation in a composite. Annotation element values that are constants, class literals or
+ * enum constants are recorded; nested annotations are recorded as <code>@</code>.
+ *
+ * The index is written to {@link #INDEX_ENTRY} as tab-separated UTF-8 text, with classes in name order. Lines start with a record type:
+ * <pre>
+ * T  class  access flags  superclass  interfaces
+ * A  class  annotation  values
+ * F  class  field  annotation  values
+ * M  class  method descriptor  annotation  values
+ * P  class  method descriptor  parameter  annotation  values
+ * X  composite path
+ * </pre>
+ * Class names are internal names such as <code>com/acme/Foo</code> and annotations are type descriptors. Interfaces are separated by commas and values are
+ * written as <code>name=value</code> pairs separated by commas, with array values in brackets. Tabs, newlines, commas, brackets and backslashes in values are
+ * escaped with a backslash.
+ */
+public class ContributionIndex {
+    public static final String INDEX_ENTRY = "META-INF/fabric3/contribution.index";
+    private static final String HEADER = "# Fabric3 contribution index 1";
+    private static final String CLASS_SUFFIX = ".class";
+    private static final String COMPOSITE_SUFFIX = ".composite";
+    private static final Pattern IMPLEMENTATION = Pattern.compile("<(?:[\\w.-]+:)?implementation\\.java\\s[^>]*?\\bclass\\s*=\\s*[\"']([^\"']+)[\"']");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private Map<String, ClassRecord> classes = new TreeMap<>();
+    private Set<String> composites = new TreeSet<>();
+    private Set<String> implementations = new TreeSet<>();
+
+    /**
+     * Scans the classes and composites in a contribution classes directory. The <code>META-INF/lib</code> directory is skipped.
+     *
+     * @param directory the classes directory
+     * @throws IOException if a file cannot be read or a class file is malformed
+     */
+    public void scan(File directory) throws IOException {
+        scan(directory, "", new File(directory, "META-INF" + File.separator + "lib"));
+    }
+
+    /**
+     * Returns the number of indexed classes.
+     *
+     * @return the number of classes
+     */
+    public int getClassCount() {
+        int count = 0;
+        for (Map.Entry<String, ClassRecord> entry : classes.entrySet()) {
+            if (isIndexed(entry.getKey(), entry.getValue())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of composite files.
+     *
+     * @return the number of composites
+     */
+    public int getCompositeCount() {
+        return composites.size();
+    }
+
+    /**
+     * Writes the index to {@link #INDEX_ENTRY} in a directory.
+     *
+     * @param directory the classes directory
+     * @return the index file
+     * @throws IOException if the index cannot be written
+     */
+    public File write(File directory) throws IOException {
+        StringBuilder index = new StringBuilder(HEADER).append('\n');
+        for (Map.Entry<String, ClassRecord> entry : classes.entrySet()) {
+            String name = entry.getKey();
+            ClassRecord record = entry.getValue();
+            if (!isIndexed(name, record)) {
+                continue;
+            }
+            index.append("T\t").append(name).append('\t').append(Integer.toHexString(record.access)).append('\t').append(record.superclass).append('\t');
+            index.append(join(record.interfaces)).append('\n');
+            for (String line : record.classAnnotations) {
+                index.append(line).append('\n');
+            }
+            for (String line : record.annotations) {
+                index.append(line).append('\n');
+            }
+        }
+        for (String composite : composites) {
+            index.append("X\t").append(composite).append('\n');
+        }
+        File file = new File(directory, INDEX_ENTRY.replace('/', File.separatorChar));
+        file.getParentFile().mkdirs();
+        byte[] contents = index.toString().getBytes(UTF8);
+        // an unchanged index is not rewritten so that the archive is not considered stale
+        if (!file.isFile() || !Arrays.equals(contents, Files.readAllBytes(file.toPath()))) {
+            Files.write(file.toPath(), contents);
+        }
+        return file;
+    }
+
+    private boolean isIndexed(String name, ClassRecord record) {
+        return !record.classAnnotations.isEmpty() || !record.annotations.isEmpty() || implementations.contains(name);
+    }
+
+    private void scan(File directory, String path, File excluded) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                if (!file.equals(excluded)) {
+                    scan(file, path + name + "/", excluded);
+                }
+            } else if (name.endsWith(CLASS_SUFFIX)) {
+                if (!path.startsWith("META-INF/")) {
+                    readClass(file);
+                }
+            } else if (name.endsWith(COMPOSITE_SUFFIX)) {
+                composites.add(path + name);
+                Matcher matcher = IMPLEMENTATION.matcher(new String(Files.readAllBytes(file.toPath()), UTF8));
+                while (matcher.find()) {
+                    implementations.add(matcher.group(1).trim().replace('.', '/'));
+                }
+            }
+        }
+    }
+
+    private void readClass(File file) throws IOException {
+        DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            ClassRecord record = new ClassRecord();
+            String name = new ClassReader(stream, record).read();
+            classes.put(name, record);
+        } catch (IOException e) {
+            throw new IOException("Unable to read " + file + ": " + e.getMessage(), e);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder builder = new StringBuilder();
+        for (String value : values) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+
+    private static String escape(String value) {
+        StringBuilder builder = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case ',':
+                case '[':
+                case ']':
+                case '\\':
+                    builder.append('\\').append(c);
+                    break;
+                default:
+                    builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * The indexed information for a class.
+     */
+    private static class ClassRecord {
+        private int access;
+        private String superclass = "";
+        private List<String> interfaces = new ArrayList<>();
+        private List<String> classAnnotations = new ArrayList<>();
+        private List<String> annotations = new ArrayList<>();
+    }
+
+    /**
+     * Reads the class structure and runtime-visible annotations from a class file.
+     */
+    private static class ClassReader {
+        private DataInputStream stream;
+        private ClassRecord record;
+        private ConstantPool pool;
+        private String name;
+
+        private ClassReader(DataInputStream stream, ClassRecord record) {
+            this.stream = stream;
+            this.record = record;
+        }
+
+        private String read() throws IOException {
+            pool = ConstantPool.read(stream);
+            record.access = stream.readUnsignedShort();
+            name = pool.getClassName(stream.readUnsignedShort());
+            int superclass = stream.readUnsignedShort();
+            if (superclass != 0) {
+                record.superclass = pool.getClassName(superclass);
+            }
+            int interfaceCount = stream.readUnsignedShort();
+            for (int i = 0; i < interfaceCount; i++) {
+                record.interfaces.add(pool.getClassName(stream.readUnsignedShort()));
+            }
+            int fieldCount = stream.readUnsignedShort();
+            for (int i = 0; i < fieldCount; i++) {
+                readMember('F');
+            }
+            int methodCount = stream.readUnsignedShort();
+            for (int i = 0; i < methodCount; i++) {
+                readMember('M');
+            }
+            readAttributes("A\t" + name + "\t", null, record.classAnnotations);
+            return name;
+        }
+
+        private void readMember(char type) throws IOException {
+            stream.readUnsignedShort();
+            String memberName = pool.getUtf8(stream.readUnsignedShort());
+            String descriptor = pool.getUtf8(stream.readUnsignedShort());
+            String member = type == 'F' ? memberName : memberName + descriptor;
+            readAttributes(type + "\t" + name + "\t" + member + "\t", "P\t" + name + "\t" + member + "\t", record.annotations);
+        }
+
+        private void readAttributes(String prefix, String parameterPrefix, List<String> lines) throws IOException {
+            int count = stream.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                String attribute = pool.getUtf8(stream.readUnsignedShort());
+                int length = stream.readInt();
+                if ("RuntimeVisibleAnnotations".equals(attribute)) {
+                    readAnnotations(prefix, lines);
+                } else if ("RuntimeVisibleParameterAnnotations".equals(attribute) && parameterPrefix != null) {
+                    int parameters = stream.readUnsignedByte();
+                    for (int parameter = 0; parameter < parameters; parameter++) {
+                        readAnnotations(parameterPrefix + parameter + "\t", lines);
+                    }
+                } else {
+                    skip(length);
+                }
+            }
+        }
+
+        private void readAnnotations(String prefix, List<String> lines) throws IOException {
+            int count = stream.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                StringBuilder line = new StringBuilder(prefix);
+                readAnnotation(line);
+                lines.add(line.toString());
+            }
+        }
+
+        private void readAnnotation(StringBuilder line) throws IOException {
+            line.append(pool.getUtf8(stream.readUnsignedShort())).append('\t');
+            int pairs = stream.readUnsignedShort();
+            for (int i = 0; i < pairs; i++) {
+                if (i > 0) {
+                    line.append(',');
+                }
+                line.append(pool.getUtf8(stream.readUnsignedShort())).append('=');
+                readValue(line);
+            }
+        }
+
+        private void readValue(StringBuilder line) throws IOException {
+            int tag = stream.readUnsignedByte();
+            switch (tag) {
+                case 'C':
+                    line.append(escape(String.valueOf((char) ((Integer) pool.getValue(stream.readUnsignedShort())).intValue())));
+                    break;
+                case 'B':
+                case 'D':
+                case 'F':
+                case 'I':
+                case 'J':
+                case 'S':
+                    line.append(pool.getValue(stream.readUnsignedShort()));
+                    break;
+                case 'Z':
+                    line.append(!Integer.valueOf(0).equals(pool.getValue(stream.readUnsignedShort())));
+                    break;
+                case 's':
+                case 'c':
+                    line.append(escape(pool.getUtf8(stream.readUnsignedShort())));
+                    break;
+                case 'e':
+                    String type = pool.getUtf8(stream.readUnsignedShort());
+                    line.append(type).append('.').append(escape(pool.getUtf8(stream.readUnsignedShort())));
+                    break;
+                case '@':
+                    // nested annotations are not recorded
+                    readAnnotation(new StringBuilder());
+                    line.append('@');
+                    break;
+                case '[':
+                    int count = stream.readUnsignedShort();
+                    line.append('[');
+                    for (int i = 0; i < count; i++) {
+                        if (i > 0) {
+                            line.append(',');
+                        }
+                        readValue(line);
+                    }
+                    line.append(']');
+                    break;
+                default:
+                    throw new IOException("Invalid annotation value tag: " + tag);
+            }
+        }
+
+        private void skip(int length) throws IOException {
+            int remaining = length;
+            while (remaining > 0) {
+                int skipped = stream.skipBytes(remaining);
+                if (skipped <= 0) {
+                    throw new IOException("Unexpected end of class file");
+                }
+                remaining -= skipped;
+            }
+        }
+    }
+
+}
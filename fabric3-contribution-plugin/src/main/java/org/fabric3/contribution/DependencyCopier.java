@@ -0,0 +1,146 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.contribution;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.fabric3.plugins.common.BuildMetrics;
+import org.fabric3.plugins.common.ChecksumCache;
+import org.fabric3.plugins.common.FileInstaller;
+
+/**
+ * Copies dependency jars into a directory on a bounded worker pool.
+ *
+ * A jar already present in the directory with the same size and SHA-256 digest as its source is left untouched so that repeated builds do not rewrite
+ * unchanged files. Copies are given the modification time of their source, so a target with the same size and modification time as its source is taken
+ * to be unchanged without reading either file. The digests are only compared when the times differ, for example for a jar copied by an earlier version
+ * of the plugin, and the time of a matching target is then updated so the next build can skip it directly. Digests are taken from a {@link ChecksumCache},
+ * so a jar is read for its digest at most once per build.
+ */
+public class DependencyCopier {
+    private int threads;
+    private ChecksumCache checksums;
+    private BuildMetrics metrics;
+
+    /**
+     * Constructor.
+     *
+     * @param threads   the maximum number of concurrent copies. If less than 1, the number of available processors is used.
+     * @param checksums the checksums of the files and their copies
+     * @param metrics   records the time spent copying each file
+     */
+    public DependencyCopier(int threads, ChecksumCache checksums, BuildMetrics metrics) {
+        this.threads = threads < 1 ? Runtime.getRuntime().availableProcessors() : threads;
+        this.checksums = checksums;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Copies the files into the directory. If more than one file has the same name, the last one is copied.
+     *
+     * @param files     the files to copy
+     * @param directory the target directory
+     * @return the files that were written; unchanged files are not included
+     * @throws IOException if there is an error copying a file
+     */
+    public List<File> copy(Collection<File> files, final File directory) throws IOException {
+        Map<String, File> sources = new LinkedHashMap<>();
+        for (File file : files) {
+            sources.put(file.getName(), file);
+        }
+        List<File> copied = new ArrayList<>();
+        if (sources.isEmpty()) {
+            return copied;
+        }
+        if (!directory.exists() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Unable to create directory: " + directory);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, sources.size()));
+        try {
+            List<Future<File>> futures = new ArrayList<>();
+            for (final File source : sources.values()) {
+                futures.add(executor.submit(new Callable<File>() {
+                    public File call() throws IOException {
+                        BuildMetrics.Sample sample = metrics.start(BuildMetrics.Phase.COPY, source.getName());
+                        try {
+                            File copied = copyIfChanged(source, new File(directory, source.getName()));
+                            sample.read(source.length());
+                            if (copied != null) {
+                                sample.written(copied.length()).entries(1);
+                            }
+                            return copied;
+                        } finally {
+                            sample.stop();
+                        }
+                    }
+                }));
+            }
+            for (Future<File> future : futures) {
+                File file = future.get();
+                if (file != null) {
+                    copied.add(file);
+                }
+            }
+            return copied;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted copying dependencies", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Copies a file unless the target has the same contents. The target is given the modification time of the source.
+     *
+     * @param source the source file
+     * @param target the target file
+     * @return the target if it was written, otherwise null
+     * @throws IOException if there is an error copying the file
+     */
+    private File copyIfChanged(File source, File target) throws IOException {
+        if (target.isFile() && target.length() == source.length()) {
+            if (target.lastModified() == source.lastModified()) {
+                return null;
+            } else if (checksums.compute(source).equals(checksums.compute(target))) {
+                target.setLastModified(source.lastModified());
+                return null;
+            }
+        }
+        FileInstaller.copy(source, target);
+        target.setLastModified(source.lastModified());
+        return target;
+    }
+
+}
@@ -17,12 +17,18 @@
 package org.fabric3.contribution;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.apache.maven.archiver.MavenArchiveConfiguration;
 import org.apache.maven.archiver.MavenArchiver;
@@ -34,6 +40,11 @@ import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.project.MavenProject;
 import org.apache.maven.project.MavenProjectHelper;
 import org.codehaus.plexus.archiver.jar.JarArchiver;
+import org.eclipse.aether.RepositorySystemSession;
+import org.fabric3.plugins.common.BuildMetrics;
+import org.fabric3.plugins.common.ChecksumCache;
+import org.fabric3.plugins.common.OutputTimestamp;
+import org.fabric3.plugins.common.ParallelArchiveWriter;
 
 /**
  * Builds an SCA contribution.
@@ -69,6 +80,7 @@ import org.codehaus.plexus.archiver.jar.JarArchiver;
 
 public class Fabric3ContributionMojo extends AbstractMojo {
     private static final String JAR_PACKAGING = "sca-contribution-jar";
+    private static final String METRICS_REPORT = "fabric3-contribution-metrics.json";
 
     private static final String[] DEFAULT_EXCLUDES = new String[]{"**/package.html"};
     private static final String[] DEFAULT_INCLUDES = new String[]{"**/**"};
@@ -142,9 +154,125 @@ public class Fabric3ContributionMojo extends AbstractMojo {
      */
     protected String packaging;
 
+    /**
+     * Timestamp used to produce a reproducible archive, as an ISO 8601 date-time such as <code>2015-01-01T00:00:00Z</code> or as seconds since the epoch. If
+     * set, archive entries are sorted by name and stamped with this time.
+     *
+     * @parameter property="project.build.outputTimestamp"
+     */
+    protected String outputTimestamp;
+
+    /**
+     * Number of threads used to copy dependencies into META-INF/lib. If not set, the number of available processors is used.
+     *
+     * @parameter
+     */
+    protected int copyThreads;
+
+    /**
+     * True if the time spent copying dependencies and creating the archive should be summarized at info level. The summary is otherwise only logged in debug
+     * mode.
+     *
+     * @parameter property="fabric3.metrics"
+     */
+    protected boolean showMetrics;
+
+    /**
+     * True if build metrics for each phase and dependency should be written as JSON to fabric3-contribution-metrics.json in the build directory.
+     *
+     * @parameter property="fabric3.metricsReport"
+     */
+    protected boolean metricsReport;
+
+    /**
+     * True if the jars embedded in META-INF/lib should be fingerprinted to report libraries that other contributions in the build also embed, in the same
+     * or a different version.
+     *
+     * @parameter property="fabric3.analyzeJars"
+     */
+    protected boolean analyzeJars;
+
+    /**
+     * True if embedded dependency jars should only contain the classes reachable from the contribution's classes and its composite, XML and properties
+     * files. Resources are always kept.
+     *
+     * @parameter property="fabric3.slim"
+     */
+    protected boolean slim;
+
+    /**
+     * Classes to keep in slimmed dependency jars even if they are not reachable, such as classes loaded by reflection. Each rule is a class name, a package
+     * wildcard such as <code>com.acme.*</code>, a package tree wildcard such as <code>com.acme.**</code>, or <code>groupId:artifactId</code> to keep a
+     * whole jar.
+     *
+     * @parameter
+     */
+    protected String[] slimKeep;
+
+    /**
+     * True if the contribution archive entries should be compressed in parallel. The archive is written by the Maven archiver without compression and then
+     * compressed according to the compression rules. This reads and writes the archive a second time, which is reported as a separate archive item in the
+     * build metrics; ContributionArchiveBenchmark in fabric3-plugins-benchmarks measures it against a single deflating pass.
+     *
+     * @parameter property="fabric3.parallelCompression"
+     */
+    protected boolean parallelCompression;
+
+    /**
+     * Number of threads used to compress archive entries when parallel compression is enabled. If not set, the number of available processors is used.
+     *
+     * @parameter
+     */
+    protected int compressionThreads;
+
+    /**
+     * Compression rules used when parallel compression is enabled, each of the form <code>pattern=method</code> where the method is <code>stored</code>,
+     * <code>deflated</code> or a deflate level from 0 to 9, for example <code>*.jar=stored</code> to store the jars in META-INF/lib. The first matching rule
+     * applies; other entries are deflated at the default level.
+     *
+     * @parameter
+     */
+    protected String[] compressionRules;
+
+    /**
+     * True if an index of the contribution's annotated classes, Java component implementations and composite files should be written to
+     * META-INF/fabric3/contribution.index so that the runtime does not need to introspect each class when the contribution is installed. Class files are
+     * read without being loaded.
+     *
+     * @parameter property="fabric3.annotationIndex"
+     */
+    protected boolean annotationIndex;
+
+    /**
+     * True if each composite file should be validated and a pre-parsed binary form written next to it with a <code>.bin</code> suffix, so that the runtime
+     * does not need to parse the composite XML each time the contribution is installed. The XML files are kept and are used if the binary form is missing
+     * or out of date. An invalid composite fails the build.
+     *
+     * @parameter property="fabric3.compileComposites"
+     */
+    protected boolean compileComposites;
+
+    /**
+     * The current repository session, which records the jars embedded by each contribution in the build.
+     *
+     * @parameter default-value="${repositorySystemSession}"
+     * @readonly
+     */
+    protected RepositorySystemSession session;
+
+    private BuildMetrics metrics;
+    private ChecksumCache checksums;
+
     public void execute() throws MojoExecutionException, MojoFailureException {
+        metrics = new BuildMetrics("fabric3-contribution");
+        checksums = new ChecksumCache(session);
         // the project packaging is set to output a ZIP-based contribution
-        File contribution = createArchive();
+        File contribution;
+        try {
+            contribution = createArchive();
+        } finally {
+            reportMetrics();
+        }
         // set the contribution file for Maven
         if (classifier != null) {
             projectHelper.attachArtifact(project, "f3r", classifier, contribution);
@@ -154,6 +282,21 @@ public class Fabric3ContributionMojo extends AbstractMojo {
 
     }
 
+    /**
+     * Logs the build metrics and writes the metrics report if configured.
+     */
+    private void reportMetrics() {
+        metrics.log(getLog(), showMetrics);
+        if (metricsReport) {
+            File report = new File(outputDirectory, METRICS_REPORT);
+            try {
+                metrics.write(report);
+            } catch (IOException e) {
+                getLog().warn("Unable to write metrics report: " + report, e);
+            }
+        }
+    }
+
     /**
      * Outputs a ZIP contribution.
      *
@@ -162,6 +305,15 @@ public class Fabric3ContributionMojo extends AbstractMojo {
      */
     private File createArchive() throws MojoExecutionException {
 
+        long timestamp = -1;
+        if (outputTimestamp != null && outputTimestamp.trim().length() > 0) {
+            try {
+                timestamp = OutputTimestamp.parse(outputTimestamp);
+            } catch (IllegalArgumentException e) {
+                throw new MojoExecutionException(e.getMessage());
+            }
+        }
+
         File contribution = getJarFile(contributionName, classifier);
 
         MavenArchiver archiver = new MavenArchiver();
@@ -174,10 +326,40 @@ public class Fabric3ContributionMojo extends AbstractMojo {
                 throw new FileNotFoundException(String.format("Unable to package contribution, %s does not exist.", classesDirectory));
             } else {
                 includeDependencies();
+                if (compileComposites) {
+                    compileComposites();
+                }
+                if (annotationIndex) {
+                    writeIndex();
+                }
                 archiver.getArchiver().addDirectory(classesDirectory, DEFAULT_INCLUDES, DEFAULT_EXCLUDES);
             }
 
-            archiver.createArchive(project, archive);
+            if (parallelCompression) {
+                // entries are compressed in parallel once the archive has been written
+                jarArchiver.setCompress(false);
+            }
+
+            BuildMetrics.Sample sample = metrics.start(BuildMetrics.Phase.ARCHIVE, contribution.getName());
+            try {
+                archiver.createArchive(project, archive);
+
+                if (timestamp >= 0) {
+                    // the archiver does not support fixed entry times, so the archive is rewritten
+                    ArchiveNormalizer.normalize(contribution, timestamp);
+                }
+            } finally {
+                sample.written(contribution.length()).stop();
+            }
+            if (parallelCompression) {
+                sample = metrics.start(BuildMetrics.Phase.ARCHIVE, "compress " + contribution.getName());
+                try {
+                    sample.read(contribution.length());
+                    compress(contribution);
+                } finally {
+                    sample.written(contribution.length()).stop();
+                }
+            }
 
             return contribution;
         } catch (Exception e) {
@@ -186,6 +368,76 @@ public class Fabric3ContributionMojo extends AbstractMojo {
 
     }
 
+    /**
+     * Validates the composite files in the classes directory and writes their binary forms next to them so that they are included in the archive.
+     *
+     * @throws IOException if a composite is not valid or a binary form cannot be written
+     */
+    private void compileComposites() throws IOException {
+        BuildMetrics.Sample sample = metrics.start(BuildMetrics.Phase.ARCHIVE, "compile composites");
+        try {
+            CompositeCompiler compiler = new CompositeCompiler();
+            compiler.compile(classesDirectory);
+            getLog().debug(String.format("Compiled %d composites", compiler.getCompiledCount()));
+        } finally {
+            sample.stop();
+        }
+    }
+
+    /**
+     * Scans the classes directory and writes the contribution index to it so that the index is included in the archive.
+     *
+     * @throws IOException if a class file cannot be read or the index cannot be written
+     */
+    private void writeIndex() throws IOException {
+        BuildMetrics.Sample sample = metrics.start(BuildMetrics.Phase.ARCHIVE, "index " + classesDirectory.getName());
+        try {
+            ContributionIndex index = new ContributionIndex();
+            index.scan(classesDirectory);
+            File file = index.write(classesDirectory);
+            sample.written(file.length());
+            getLog().debug(String.format("Indexed %d classes and %d composites", index.getClassCount(), index.getCompositeCount()));
+        } finally {
+            sample.stop();
+        }
+    }
+
+    /**
+     * Rewrites an archive with its entries compressed in parallel according to the compression rules. Entries keep their order and times.
+     *
+     * @param contribution the archive
+     * @throws IOException if there is an error rewriting the archive
+     * @throws MojoExecutionException if a compression rule is not valid
+     */
+    private void compress(File contribution) throws IOException, MojoExecutionException {
+        File compressed = new File(contribution.getPath() + ".tmp");
+        ZipFile zipFile = new ZipFile(contribution);
+        ParallelArchiveWriter writer = null;
+        try {
+            writer = new ParallelArchiveWriter(compressed, compressionThreads);
+            if (compressionRules != null) {
+                for (String rule : compressionRules) {
+                    try {
+                        writer.addRule(rule);
+                    } catch (IllegalArgumentException e) {
+                        throw new MojoExecutionException(e.getMessage());
+                    }
+                }
+            }
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                writer.addEntry(zipFile, entries.nextElement());
+            }
+            writer.finish();
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+            zipFile.close();
+        }
+        Files.move(compressed.toPath(), contribution.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
     /**
      * Returns a File representing the name and location of the archive file to output.
      *
@@ -221,25 +473,91 @@ public class Fabric3ContributionMojo extends AbstractMojo {
         File libDir = new File(classesDirectory, "META-INF" + File.separator + "lib");
         ScopeArtifactFilter filter = new ScopeArtifactFilter(Artifact.SCOPE_RUNTIME);
 
+        List<File> files = new ArrayList<>();
+        List<Artifact> included = new ArrayList<>();
         @SuppressWarnings("unchecked") Set<Artifact> artifacts = (Set<Artifact>) project.getArtifacts();
         for (Artifact artifact : artifacts) {
             getLog().debug("checking " + artifact.getArtifactId());
             boolean isSCAContribution = artifact.getType().startsWith("sca-contribution");
             if (!isSCAContribution && !artifact.isOptional() && filter.include(artifact)) {
                 getLog().debug(String.format("including dependency %s", artifact));
-                File destinationFile = new File(libDir, artifact.getFile().getName());
-                if (!libDir.exists()) {
-                    libDir.mkdirs();
-                }
-                getLog().debug(String.format("copying %s to %s", artifact.getFile(), destinationFile));
-                FileChannel destChannel = new FileOutputStream(destinationFile).getChannel();
-                FileChannel srcChannel = new FileInputStream(artifact.getFile()).getChannel();
-                srcChannel.transferTo(0, srcChannel.size(), destChannel);
-                destChannel.close();
-                srcChannel.close();
+                files.add(artifact.getFile());
+                included.add(artifact);
+            }
+        }
+        if (slim) {
+            slimDependencies(included, libDir);
+        } else {
+            DependencyCopier copier = new DependencyCopier(copyThreads, checksums, metrics);
+            List<File> copied = copier.copy(files, libDir);
+            for (File file : copied) {
+                getLog().debug(String.format("copied %s", file));
             }
+            getLog().debug(String.format("%d of %d dependencies unchanged", files.size() - copied.size(), files.size()));
         }
 
+        if (analyzeJars) {
+            reportSharedJars(included);
+        }
+    }
+
+    /**
+     * Writes the dependencies to META-INF/lib keeping only the classes reachable from the contribution.
+     *
+     * @param included the dependencies to embed
+     * @param libDir   the META-INF/lib directory
+     * @throws IOException if there is an error reading or writing a jar
+     */
+    private void slimDependencies(List<Artifact> included, File libDir) throws IOException {
+        Map<String, File> jars = new LinkedHashMap<>();
+        for (Artifact artifact : included) {
+            // the full coordinates are used since a jar and its classifier variants share a groupId and artifactId
+            String classifier = artifact.getClassifier() == null ? "" : artifact.getClassifier();
+            String key = artifact.getGroupId() + ":" + artifact.getArtifactId() + ":" + artifact.getType() + ":" + classifier + ":" + artifact.getVersion();
+            jars.put(key, artifact.getFile());
+        }
+        BuildMetrics.Sample sample = metrics.start(BuildMetrics.Phase.COPY, "slim " + jars.size() + " dependencies");
+        try {
+            JarSlimmer slimmer = new JarSlimmer(slimKeep);
+            slimmer.addRoots(classesDirectory);
+            long before = 0;
+            long after = 0;
+            for (JarSlimmer.Result result : slimmer.slim(jars, libDir)) {
+                getLog().debug(String.format("%s: removed %d of %d classes", result.getJar().getName(), result.getRemoved(), result.getClasses()));
+                before += result.getOriginalSize();
+                after += result.getJar().length();
+                sample.read(result.getOriginalSize()).written(result.getJar().length()).entries(1);
+            }
+            getLog().info(String.format("Slimmed %d dependencies from %d KB to %d KB", jars.size(), before / 1024, after / 1024));
+        } finally {
+            sample.stop();
+        }
+    }
+
+    /**
+     * Reports embedded jars that other contributions in the build also embed.
+     *
+     * @param included the embedded dependencies
+     * @throws IOException if a jar cannot be read
+     */
+    private void reportSharedJars(List<Artifact> included) throws IOException {
+        JarRegistry registry = new JarRegistry(session);
+        String contribution = project.getGroupId() + ":" + project.getArtifactId();
+        for (Artifact artifact : included) {
+            String key = artifact.getGroupId() + ":" + artifact.getArtifactId();
+            if (artifact.getClassifier() != null && artifact.getClassifier().length() > 0) {
+                key = key + ":" + artifact.getClassifier();
+            }
+            String version = artifact.getVersion();
+            String digest = checksums.compute(artifact.getFile());
+            for (String[] other : registry.register(contribution, key, version, digest)) {
+                if (digest.equals(other[2])) {
+                    getLog().warn(String.format("Duplicate jar %s:%s is also embedded in %s", key, version, other[0]));
+                } else {
+                    getLog().warn(String.format("Version conflict for %s: %s embeds %s, %s embeds %s", key, contribution, version, other[0], other[1]));
+                }
+            }
+        }
     }
 
 }
\ No newline at end of file
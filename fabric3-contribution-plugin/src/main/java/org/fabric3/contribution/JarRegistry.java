@@ -0,0 +1,94 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.contribution;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.SessionData;
+import org.fabric3.plugins.common.ChecksumCache;
+
+/**
+ * Records the jars embedded in each contribution built in the current session so that libraries embedded by more than one contribution can be reported.
+ *
+ * Jars are recorded by <code>groupId:artifactId</code>, followed by <code>:classifier</code> for classifier variants, with the embedding contribution,
+ * version and SHA-256 digest. The registry holds only JDK types in the repository session data so that it is shared by all executions of the plugin in a
+ * build, including parallel builds.
+ */
+public class JarRegistry {
+    private static final String KEY = "org.fabric3.plugins.embeddedJars";
+
+    private ConcurrentMap<String, Queue<String[]>> jars;
+
+    /**
+     * Constructor.
+     *
+     * @param session the current repository session, which holds the registry
+     */
+    public JarRegistry(RepositorySystemSession session) {
+        this.jars = getJars(session);
+    }
+
+    /**
+     * Records an embedded jar and returns the jars with the same coordinates embedded by other contributions.
+     *
+     * @param contribution the contribution name
+     * @param key          the <code>groupId:artifactId</code> of the jar, followed by <code>:classifier</code> if it has one
+     * @param version      the jar version
+     * @param digest       the SHA-256 digest of the jar as lowercase hex, as returned by {@link ChecksumCache}
+     * @return the other contributions, versions and digests, as arrays of three strings
+     */
+    public List<String[]> register(String contribution, String key, String version, String digest) {
+        Queue<String[]> entries = jars.get(key);
+        if (entries == null) {
+            Queue<String[]> created = new ConcurrentLinkedQueue<>();
+            entries = jars.putIfAbsent(key, created);
+            if (entries == null) {
+                entries = created;
+            }
+        }
+        List<String[]> others = new ArrayList<>();
+        for (String[] entry : entries) {
+            if (!contribution.equals(entry[0])) {
+                others.add(entry);
+            }
+        }
+        entries.add(new String[]{contribution, version, digest});
+        return others;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentMap<String, Queue<String[]>> getJars(RepositorySystemSession session) {
+        SessionData data = session.getData();
+        while (true) {
+            Object current = data.get(KEY);
+            if (current != null) {
+                return (ConcurrentMap<String, Queue<String[]>>) current;
+            }
+            ConcurrentMap<String, Queue<String[]>> jars = new ConcurrentHashMap<>();
+            if (data.set(KEY, null, jars)) {
+                return jars;
+            }
+        }
+    }
+
+}
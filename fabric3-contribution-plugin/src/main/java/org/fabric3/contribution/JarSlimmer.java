@@ -0,0 +1,363 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.contribution;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes dependency jars into a contribution with only the classes the contribution can reach.
+ *
+ * Reachability starts from every class in the contribution's classes directory and every class named in its composite, XML and properties files, which
+ * covers implementation classes declared in composites and the SCA contribution manifest. References are followed transitively through the embedded jars
+ * using {@link ClassReferences}. Provider classes listed under <code>META-INF/services</code> in an embedded jar are always kept, as are classes matching a
+ * keep rule.
+ *
+ * Keep rules handle classes loaded by reflection. A rule is a class name, a package wildcard such as <code>com.acme.*</code>, a package tree wildcard such
+ * as <code>com.acme.**</code>, or <code>groupId:artifactId</code> to keep a whole jar. Signed jars are always copied whole, since removing entries would
+ * invalidate their signatures. Resources are never removed.
+ */
+public class JarSlimmer {
+    private static final String CLASS_SUFFIX = ".class";
+    private static final String SERVICES = "META-INF/services/";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER = 64 * 1024;
+
+    private List<Pattern> classRules = new ArrayList<>();
+    private Set<String> jarRules = new HashSet<>();
+    private Set<String> roots = new HashSet<>();
+
+    /**
+     * The result of slimming a jar.
+     */
+    public static class Result {
+        private File jar;
+        private int classes;
+        private int removed;
+        private long originalSize;
+
+        private Result(File jar, int classes, int removed, long originalSize) {
+            this.jar = jar;
+            this.classes = classes;
+            this.removed = removed;
+            this.originalSize = originalSize;
+        }
+
+        /**
+         * Returns the jar written to the contribution.
+         *
+         * @return the jar
+         */
+        public File getJar() {
+            return jar;
+        }
+
+        /**
+         * Returns the number of classes in the source jar.
+         *
+         * @return the number of classes
+         */
+        public int getClasses() {
+            return classes;
+        }
+
+        /**
+         * Returns the number of classes that were not written.
+         *
+         * @return the number of classes removed
+         */
+        public int getRemoved() {
+            return removed;
+        }
+
+        /**
+         * Returns the size of the source jar.
+         *
+         * @return the size in bytes
+         */
+        public long getOriginalSize() {
+            return originalSize;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param keepRules the keep rules or null
+     */
+    public JarSlimmer(String[] keepRules) {
+        if (keepRules == null) {
+            return;
+        }
+        for (String rule : keepRules) {
+            rule = rule.trim();
+            if (rule.indexOf(':') > 0) {
+                jarRules.add(rule);
+            } else if (rule.length() > 0) {
+                // package tree wildcards are replaced first so that their expansion is not matched as a package wildcard
+                String regex = Pattern.quote(rule).replace("**", "\u0000").replace("*", "\\E[^.]*\\Q").replace("\u0000", "\\E.*\\Q");
+                classRules.add(Pattern.compile(regex));
+            }
+        }
+    }
+
+    /**
+     * Adds the classes in a directory, and the classes named in its composite, XML and properties files, to the reachability roots. The
+     * <code>META-INF/lib</code> directory is skipped.
+     *
+     * @param directory the contribution classes directory
+     * @throws IOException if a file cannot be read
+     */
+    public void addRoots(File directory) throws IOException {
+        addRoots(directory, new File(directory, "META-INF" + File.separator + "lib"));
+    }
+
+    /**
+     * Writes the jars into a directory keeping only reachable classes.
+     *
+     * @param jars      the source jars keyed by their <code>groupId:artifactId:type:classifier:version</code>, with an empty classifier if there is none.
+     *                  Each jar is written under its file name.
+     * @param directory the target directory
+     * @return the results in the order of the source jars
+     * @throws IOException if there is an error reading or writing a jar
+     */
+    public List<Result> slim(Map<String, File> jars, File directory) throws IOException {
+        if (!directory.exists() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Unable to create directory: " + directory);
+        }
+        Map<String, ZipFile> zipFiles = new LinkedHashMap<>();
+        try {
+            // index every class so references can be resolved to the jar that provides them
+            Map<String, ZipFile> index = new HashMap<>();
+            Set<ZipFile> whole = new HashSet<>();
+            Deque<String> pending = new ArrayDeque<>(roots);
+            for (Map.Entry<String, File> entry : jars.entrySet()) {
+                ZipFile zipFile = new ZipFile(entry.getValue());
+                zipFiles.put(entry.getKey(), zipFile);
+                boolean keep = jarRules.contains(getGroupArtifact(entry.getKey())) || isSigned(zipFile);
+                if (keep) {
+                    whole.add(zipFile);
+                }
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry zipEntry = entries.nextElement();
+                    String name = zipEntry.getName();
+                    if (isClass(name)) {
+                        String className = name.substring(0, name.length() - CLASS_SUFFIX.length());
+                        if (!index.containsKey(className)) {
+                            index.put(className, zipFile);
+                        }
+                        if (keep || isKept(className)) {
+                            pending.add(className);
+                        }
+                    } else if (name.startsWith(SERVICES) && !zipEntry.isDirectory()) {
+                        addProviders(zipFile, zipEntry, pending);
+                    }
+                }
+            }
+
+            Set<String> reached = new HashSet<>();
+            while (!pending.isEmpty()) {
+                String className = pending.pop();
+                ZipFile zipFile = index.get(className);
+                if (zipFile == null || !reached.add(className)) {
+                    continue;
+                }
+                byte[] contents = read(zipFile.getInputStream(zipFile.getEntry(className + CLASS_SUFFIX)));
+                try {
+                    ClassReferences.read(contents, pending);
+                } catch (IOException e) {
+                    throw new IOException("Unable to read " + className + " in " + zipFile.getName() + ": " + e.getMessage(), e);
+                }
+            }
+
+            List<Result> results = new ArrayList<>();
+            for (Map.Entry<String, ZipFile> entry : zipFiles.entrySet()) {
+                File source = jars.get(entry.getKey());
+                ZipFile zipFile = entry.getValue();
+                results.add(write(source, zipFile, whole.contains(zipFile) ? null : reached, new File(directory, source.getName())));
+            }
+            return results;
+        } finally {
+            for (ZipFile zipFile : zipFiles.values()) {
+                close(zipFile);
+            }
+        }
+    }
+
+    private Result write(File source, ZipFile zipFile, Set<String> reached, File target) throws IOException {
+        File temporary = new File(target.getPath() + ".tmp");
+        byte[] buffer = new byte[BUFFER];
+        int classes = 0;
+        int removed = 0;
+        ZipOutputStream zipStream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), BUFFER));
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (isClass(name)) {
+                    classes++;
+                    if (reached != null && !reached.contains(name.substring(0, name.length() - CLASS_SUFFIX.length()))) {
+                        removed++;
+                        continue;
+                    }
+                }
+                ZipEntry copy = new ZipEntry(name);
+                copy.setTime(entry.getTime());
+                zipStream.putNextEntry(copy);
+                if (!entry.isDirectory()) {
+                    InputStream stream = zipFile.getInputStream(entry);
+                    try {
+                        int n;
+                        while (-1 != (n = stream.read(buffer))) {
+                            zipStream.write(buffer, 0, n);
+                        }
+                    } finally {
+                        stream.close();
+                    }
+                }
+                zipStream.closeEntry();
+            }
+            zipStream.close();
+        } finally {
+            close(zipStream);
+        }
+        Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return new Result(target, classes, removed, source.length());
+    }
+
+    private void addRoots(File directory, File excluded) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                if (!file.equals(excluded)) {
+                    addRoots(file, excluded);
+                }
+            } else if (name.endsWith(CLASS_SUFFIX)) {
+                ClassReferences.read(read(new FileInputStream(file)), roots);
+            } else if (name.endsWith(".composite") || name.endsWith(".xml") || name.endsWith(".properties")) {
+                ClassReferences.readText(new String(read(new FileInputStream(file)), UTF8), roots);
+            }
+        }
+    }
+
+    private void addProviders(ZipFile zipFile, ZipEntry entry, Deque<String> pending) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(zipFile.getInputStream(entry), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comment = line.indexOf('#');
+                String provider = (comment < 0 ? line : line.substring(0, comment)).trim();
+                if (provider.length() > 0) {
+                    pending.add(provider.replace('.', '/'));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private boolean isKept(String className) {
+        if (classRules.isEmpty()) {
+            return false;
+        }
+        String name = className.replace('/', '.');
+        for (Pattern rule : classRules) {
+            if (rule.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String getGroupArtifact(String key) {
+        // keep rules name a jar by groupId:artifactId, so they apply to all of its classifier variants
+        int index = key.indexOf(':', key.indexOf(':') + 1);
+        return index < 0 ? key : key.substring(0, index);
+    }
+
+    private boolean isClass(String name) {
+        // versioned classes in multi-release jars are kept as resources
+        return name.endsWith(CLASS_SUFFIX) && !name.startsWith("META-INF/");
+    }
+
+    private boolean isSigned(ZipFile zipFile) {
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            String name = entries.nextElement().getName();
+            if (name.startsWith("META-INF/") && (name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private byte[] read(InputStream stream) throws IOException {
+        try {
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            byte[] buffer = new byte[BUFFER];
+            int n;
+            while (-1 != (n = stream.read(buffer))) {
+                contents.write(buffer, 0, n);
+            }
+            return contents.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+
+    private void close(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.contribution;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that normalized contribution archives built from the same contents are identical.
+ */
+public class ArchiveNormalizerTestCase extends TestCase {
+    private static final long TIMESTAMP = 1420070400000L;
+    private static final String[] NAMES = {"META-INF/",
+                                           "META-INF/MANIFEST.MF",
+                                           "META-INF/sca-contribution.xml",
+                                           "META-INF/maven/org.fabric3/test/pom.properties",
+                                           "org/fabric3/test/B.class",
+                                           "org/fabric3/test/A.class",
+                                           "test.composite"};
+
+    private File directory;
+
+    public void testReproducible() throws Exception {
+        File first = new File(directory, "first.jar");
+        write(first, false, "#Thu Jan 01 10:00:00 UTC 2015");
+        File second = new File(directory, "second.jar");
+        write(second, true, "#Fri Jan 02 11:30:00 UTC 2015");
+        assertFalse(Arrays.equals(Files.readAllBytes(first.toPath()), Files.readAllBytes(second.toPath())));
+
+        ArchiveNormalizer.normalize(first, TIMESTAMP);
+        ArchiveNormalizer.normalize(second, TIMESTAMP);
+
+        assertTrue(Arrays.equals(Files.readAllBytes(first.toPath()), Files.readAllBytes(second.toPath())));
+        ZipFile zipFile = new ZipFile(first);
+        try {
+            List<String> names = new ArrayList<>();
+            Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
+            while (enumeration.hasMoreElements()) {
+                names.add(enumeration.nextElement().getName());
+            }
+            assertEquals(Arrays.asList("META-INF/",
+                                       "META-INF/MANIFEST.MF",
+                                       "META-INF/maven/org.fabric3/test/pom.properties",
+                                       "META-INF/sca-contribution.xml",
+                                       "org/fabric3/test/A.class",
+                                       "org/fabric3/test/B.class",
+                                       "test.composite"), names);
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = Files.createTempDirectory("normalizer").toFile();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        delete(directory);
+    }
+
+    /**
+     * Writes the archive entries in forward or reverse order with entry times and a pom.properties comment that differ between builds.
+     */
+    private void write(File archive, boolean reverse, String comment) throws IOException {
+        ZipOutputStream stream = new ZipOutputStream(new FileOutputStream(archive));
+        try {
+            for (int i = 0; i < NAMES.length; i++) {
+                String name = NAMES[reverse ? NAMES.length - 1 - i : i];
+                ZipEntry entry = new ZipEntry(name);
+                entry.setTime(System.currentTimeMillis() - (reverse ? i : 2 * i) * 60000L);
+                stream.putNextEntry(entry);
+                if (name.endsWith("pom.properties")) {
+                    stream.write((comment + "\nversion=1.0\ngroupId=org.fabric3\nartifactId=test\n").getBytes("UTF-8"));
+                } else if (!name.endsWith("/")) {
+                    stream.write(name.getBytes("UTF-8"));
+                }
+                stream.closeEntry();
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    private void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+}
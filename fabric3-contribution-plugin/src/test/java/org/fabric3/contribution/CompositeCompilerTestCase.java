@@ -0,0 +1,220 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.contribution;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests compiling composites to their binary form by decoding the binary form as described by {@link CompositeCompiler} and comparing the events with
+ * the composite XML.
+ */
+public class CompositeCompilerTestCase extends TestCase {
+    private static final String COMPOSITE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                                            + "<!-- a comment -->\n"
+                                            + "<composite xmlns=\"http://docs.oasis-open.org/ns/opencsa/sca/200912\" xmlns:f3=\"urn:fabric3.org\" "
+                                            + "name=\"TestComposite\" targetNamespace=\"urn:test\">\n"
+                                            + "    <component name=\"Component\" f3:key=\"1\">\n"
+                                            + "        <implementation.java class=\"org.fabric3.Test\"/>\n"
+                                            + "        <property name=\"value\">text <![CDATA[and <cdata>]]></property>\n"
+                                            + "    </component>\n"
+                                            + "</composite>\n";
+
+    private File directory;
+    private CompositeCompiler compiler;
+
+    public void testRoundTrip() throws Exception {
+        File composite = write("test.composite", COMPOSITE);
+        File binary = compiler.compileComposite(composite);
+        assertEquals(new File(composite.getPath() + CompositeCompiler.SUFFIX), binary);
+
+        byte[] xml = COMPOSITE.getBytes(StandardCharsets.UTF_8);
+        DataInputStream stream = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(binary.toPath())));
+        assertEquals(0x46334342, stream.readInt());
+        assertEquals(1, stream.readShort());
+        assertEquals(xml.length, stream.readInt());
+        CRC32 crc = new CRC32();
+        crc.update(xml);
+        assertEquals((int) crc.getValue(), stream.readInt());
+        String[] strings = new String[readVar(stream)];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[readVar(stream)];
+            stream.readFully(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        assertEquals("", strings[0]);
+
+        String sca = CompositeCompiler.SCA_NAMESPACE;
+        List<String> expected = Arrays.asList("start 3 {" + sca + "}composite ns[=" + sca + ", f3=urn:fabric3.org] attributes[name=TestComposite, "
+                                              + "targetNamespace=urn:test]",
+                                              "start 4 {" + sca + "}component ns[] attributes[name=Component, {urn:fabric3.org}f3:key=1]",
+                                              "start 5 {" + sca + "}implementation.java ns[] attributes[class=org.fabric3.Test]",
+                                              "end",
+                                              "start 6 {" + sca + "}property ns[] attributes[name=value]",
+                                              "text text and <cdata>",
+                                              "end",
+                                              "end",
+                                              "end");
+        assertEquals(expected, readEvents(stream, strings));
+        assertEquals(-1, stream.read());
+        assertEquals(1, compiler.getCompiledCount());
+    }
+
+    public void testUnchangedBinaryNotRewritten() throws Exception {
+        File composite = write("test.composite", COMPOSITE);
+        File binary = compiler.compileComposite(composite);
+        assertTrue(binary.setLastModified(1000000000L));
+        compiler.compileComposite(composite);
+        assertEquals(1000000000L, binary.lastModified());
+
+        write("test.composite", COMPOSITE.replace("TestComposite", "ChangedComposite"));
+        compiler.compileComposite(composite);
+        assertTrue(binary.lastModified() != 1000000000L);
+    }
+
+    public void testCompileDirectory() throws Exception {
+        write("a.composite", COMPOSITE);
+        write("META-INF/b.composite", COMPOSITE);
+        write("META-INF/lib/c.composite", "not a composite");
+        write("META-INF/other.xml", "<other/>");
+        compiler.compile(directory);
+        assertEquals(2, compiler.getCompiledCount());
+        assertTrue(new File(directory, "a.composite" + CompositeCompiler.SUFFIX).isFile());
+        assertTrue(new File(directory, "META-INF/b.composite" + CompositeCompiler.SUFFIX).isFile());
+        assertFalse(new File(directory, "META-INF/lib/c.composite" + CompositeCompiler.SUFFIX).exists());
+        assertFalse(new File(directory, "META-INF/other.xml" + CompositeCompiler.SUFFIX).exists());
+    }
+
+    public void testInvalidRoot() throws Exception {
+        assertInvalid("<component xmlns=\"" + CompositeCompiler.SCA_NAMESPACE + "\" name=\"Test\"/>");
+        assertInvalid("<composite xmlns=\"urn:other\" name=\"Test\"/>");
+        assertInvalid("<composite xmlns=\"" + CompositeCompiler.SCA_NAMESPACE + "\"/>");
+    }
+
+    public void testMalformed() throws Exception {
+        assertInvalid("<composite xmlns=\"" + CompositeCompiler.SCA_NAMESPACE + "\" name=\"Test\">");
+    }
+
+    public void testDtdRejected() throws Exception {
+        assertInvalid("<!DOCTYPE composite [<!ENTITY e \"value\">]><composite xmlns=\"" + CompositeCompiler.SCA_NAMESPACE + "\" name=\"Test\"/>");
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = Files.createTempDirectory("compositecompiler").toFile();
+        compiler = new CompositeCompiler();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        delete(directory);
+    }
+
+    private void assertInvalid(String xml) throws IOException {
+        File composite = write("invalid.composite", xml);
+        try {
+            compiler.compileComposite(composite);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(new File(composite.getPath() + CompositeCompiler.SUFFIX).exists());
+    }
+
+    /**
+     * Decodes the document events of a binary composite.
+     */
+    private List<String> readEvents(DataInputStream stream, String[] strings) throws IOException {
+        List<String> events = new ArrayList<>();
+        while (true) {
+            int type = stream.read();
+            if (type == 0) {
+                return events;
+            } else if (type == 1) {
+                StringBuilder event = new StringBuilder("start ").append(readVar(stream)).append(' ');
+                String namespace = strings[readVar(stream)];
+                String prefix = strings[readVar(stream)];
+                String localName = strings[readVar(stream)];
+                event.append(name(namespace, prefix, localName)).append(" ns[");
+                int namespaces = readVar(stream);
+                for (int i = 0; i < namespaces; i++) {
+                    event.append(i > 0 ? ", " : "").append(strings[readVar(stream)]).append('=').append(strings[readVar(stream)]);
+                }
+                event.append("] attributes[");
+                int attributes = readVar(stream);
+                for (int i = 0; i < attributes; i++) {
+                    String attributeNamespace = strings[readVar(stream)];
+                    String attributePrefix = strings[readVar(stream)];
+                    String attributeName = strings[readVar(stream)];
+                    String value = strings[readVar(stream)];
+                    event.append(i > 0 ? ", " : "").append(name(attributeNamespace, attributePrefix, attributeName)).append('=').append(value);
+                }
+                events.add(event.append(']').toString());
+            } else if (type == 2) {
+                events.add("end");
+            } else if (type == 3) {
+                events.add("text " + strings[readVar(stream)]);
+            } else {
+                throw new AssertionError("Unexpected event type " + type);
+            }
+        }
+    }
+
+    private String name(String namespace, String prefix, String localName) {
+        return (namespace.length() > 0 ? "{" + namespace + "}" : "") + (prefix.length() > 0 ? prefix + ":" : "") + localName;
+    }
+
+    private int readVar(DataInputStream stream) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = stream.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private File write(String path, String contents) throws IOException {
+        File file = new File(directory, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+}
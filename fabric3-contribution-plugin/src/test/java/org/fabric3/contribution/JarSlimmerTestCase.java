@@ -0,0 +1,229 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.contribution;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests slimming dependency jars to the classes reachable from a contribution, using synthetic class files.
+ */
+public class JarSlimmerTestCase extends TestCase {
+    private File directory;
+    private File classes;
+    private Map<String, File> jars = new LinkedHashMap<>();
+
+    public void testClassReferences() throws Exception {
+        Set<String> references = new HashSet<>();
+        ClassReferences.read(classFile("test/Main", new String[]{"test/Referenced", "[Ltest/Element;"}, "(Ltest/Parameter;)V", "test.Loaded"), references);
+        assertTrue(references.contains("test/Main"));
+        assertTrue(references.contains("test/Referenced"));
+        assertTrue(references.contains("test/Element"));
+        assertTrue(references.contains("test/Parameter"));
+        assertTrue(references.contains("test/Loaded"));
+    }
+
+    public void testSlim() throws Exception {
+        JarSlimmer slimmer = new JarSlimmer(new String[]{"lib.c.*", " lib.d.** ", "org.acme:whole"});
+        slimmer.addRoots(classes);
+        File target = new File(directory, "target");
+        List<JarSlimmer.Result> results = slimmer.slim(jars, target);
+
+        assertEquals(new TreeSet<>(Arrays.asList("readme.txt",
+                                                 "META-INF/services/lib.e.Service",
+                                                 // referenced from a contribution class, directly and transitively
+                                                 "lib/a/Used.class",
+                                                 "lib/a/Transitive.class",
+                                                 // referenced only from a composite
+                                                 "lib/b/Component.class",
+                                                 // matched by the package and package tree rules
+                                                 "lib/c/Reflective.class",
+                                                 "lib/d/Deep.class",
+                                                 "lib/d/sub/Deeper.class",
+                                                 // a service provider
+                                                 "lib/e/Provider.class")), entries(new File(target, "lib.jar")));
+        assertEquals(new TreeSet<>(Arrays.asList("whole/Unused.class")), entries(new File(target, "whole.jar")));
+
+        JarSlimmer.Result result = results.get(0);
+        assertEquals(11, result.getClasses());
+        assertEquals(4, result.getRemoved());
+        assertEquals(0, results.get(1).getRemoved());
+    }
+
+    public void testNoRules() throws Exception {
+        JarSlimmer slimmer = new JarSlimmer(null);
+        slimmer.addRoots(classes);
+        File target = new File(directory, "target");
+        slimmer.slim(jars, target);
+        Set<String> entries = entries(new File(target, "lib.jar"));
+        assertFalse(entries.contains("lib/c/Reflective.class"));
+        assertFalse(entries.contains("lib/d/Deep.class"));
+        assertTrue(entries(new File(target, "whole.jar")).isEmpty());
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = Files.createTempDirectory("slimmer").toFile();
+        classes = new File(directory, "classes");
+        write(new File(classes, "org/acme/app/Main.class"), classFile("org/acme/app/Main", new String[]{"lib/a/Used"}, null, null));
+        write(new File(classes, "app.composite"), "<component name=\"Component\"><implementation.java class=\"lib.b.Component\"/></component>".getBytes());
+        // jars embedded in the contribution are not roots
+        write(new File(classes, "META-INF/lib/Embedded.class"), classFile("Embedded", new String[]{"lib/a/Unused"}, null, null));
+
+        Map<String, byte[]> lib = new LinkedHashMap<>();
+        lib.put("lib/a/Used.class", classFile("lib/a/Used", new String[]{"lib/a/Transitive"}, null, null));
+        lib.put("lib/a/Transitive.class", classFile("lib/a/Transitive", new String[0], null, null));
+        lib.put("lib/a/Unused.class", classFile("lib/a/Unused", new String[0], null, null));
+        lib.put("lib/b/Component.class", classFile("lib/b/Component", new String[0], null, null));
+        lib.put("lib/b/Unused.class", classFile("lib/b/Unused", new String[0], null, null));
+        lib.put("lib/c/Reflective.class", classFile("lib/c/Reflective", new String[0], null, null));
+        lib.put("lib/c/sub/Unused.class", classFile("lib/c/sub/Unused", new String[0], null, null));
+        lib.put("lib/d/Deep.class", classFile("lib/d/Deep", new String[0], null, null));
+        lib.put("lib/d/sub/Deeper.class", classFile("lib/d/sub/Deeper", new String[0], null, null));
+        lib.put("lib/e/Provider.class", classFile("lib/e/Provider", new String[0], null, null));
+        lib.put("lib/e/Unused.class", classFile("lib/e/Unused", new String[0], null, null));
+        lib.put("META-INF/services/lib.e.Service", "# provider\nlib.e.Provider\n".getBytes());
+        lib.put("readme.txt", "readme".getBytes());
+        jars.put("org.acme:lib:jar::1.0", jar("lib.jar", lib));
+
+        Map<String, byte[]> whole = new LinkedHashMap<>();
+        whole.put("whole/Unused.class", classFile("whole/Unused", new String[0], null, null));
+        jars.put("org.acme:whole:jar::1.0", jar("whole.jar", whole));
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        delete(directory);
+    }
+
+    /**
+     * Creates a class file containing only a constant pool, which is all that is read when following references.
+     *
+     * @param name       the internal class name
+     * @param classes    the internal names or array descriptors of referenced classes
+     * @param descriptor a type descriptor or null
+     * @param constant   a string constant or null
+     * @return the class file contents
+     */
+    private byte[] classFile(String name, String[] classes, String descriptor, String constant) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(bytes);
+        stream.writeInt(0xCAFEBABE);
+        stream.writeShort(0);
+        stream.writeShort(51);
+        int count = 1 + 2 * (classes.length + 2) + (descriptor != null ? 1 : 0) + (constant != null ? 2 : 0);
+        stream.writeShort(count);
+        int index = 1;
+        for (String className : concat(name, "java/lang/Object", classes)) {
+            stream.writeByte(ConstantPool.UTF8);
+            stream.writeUTF(className);
+            stream.writeByte(ConstantPool.CLASS);
+            stream.writeShort(index);
+            index += 2;
+        }
+        if (descriptor != null) {
+            stream.writeByte(ConstantPool.UTF8);
+            stream.writeUTF(descriptor);
+            index++;
+        }
+        if (constant != null) {
+            stream.writeByte(ConstantPool.UTF8);
+            stream.writeUTF(constant);
+            stream.writeByte(ConstantPool.STRING);
+            stream.writeShort(index);
+        }
+        // access flags, this and super class, and no interfaces, fields, methods or attributes
+        stream.writeShort(0x21);
+        stream.writeShort(2);
+        stream.writeShort(4);
+        for (int i = 0; i < 4; i++) {
+            stream.writeShort(0);
+        }
+        stream.close();
+        return bytes.toByteArray();
+    }
+
+    private String[] concat(String name, String superClass, String[] classes) {
+        String[] names = new String[classes.length + 2];
+        names[0] = name;
+        names[1] = superClass;
+        System.arraycopy(classes, 0, names, 2, classes.length);
+        return names;
+    }
+
+    private File jar(String name, Map<String, byte[]> entries) throws IOException {
+        File file = new File(directory, name);
+        ZipOutputStream stream = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                stream.putNextEntry(new ZipEntry(entry.getKey()));
+                stream.write(entry.getValue());
+                stream.closeEntry();
+            }
+        } finally {
+            stream.close();
+        }
+        return file;
+    }
+
+    private Set<String> entries(File jar) throws IOException {
+        Set<String> names = new TreeSet<>();
+        ZipFile zipFile = new ZipFile(jar);
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                names.add(entries.nextElement().getName());
+            }
+        } finally {
+            zipFile.close();
+        }
+        return names;
+    }
+
+    private void write(File file, byte[] contents) throws IOException {
+        assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+        Files.write(file.toPath(), contents);
+    }
+
+    private void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+}
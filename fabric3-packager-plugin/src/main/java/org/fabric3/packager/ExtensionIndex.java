@@ -0,0 +1,200 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.packager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.fabric3.plugins.common.OutputTimestamp;
+import org.fabric3.plugins.common.ParallelArchiveWriter;
+
+/**
+ * Builds an index of the jars nested in the extensions archive so the node runtime can locate and load extensions without opening each nested jar.
+ *
+ * For each nested jar, the index records the offset of its data in the extensions archive, the compression method, compressed and uncompressed sizes, the
+ * CRC-32, the packages it contains and, if present, the location of a copy of its SCA contribution manifest. Contribution manifests are written to the
+ * archive under {@link #CONTRIBUTIONS_DIRECTORY} before the index.
+ *
+ * The index is a tab-separated UTF-8 text entry written last, after all nested jars, so that their offsets are known. Lines start with a record type:
+ * <pre>
+ * J  name  method  offset  compressed size  size  crc
+ * P  name  package
+ * C  name  contribution manifest entry
+ * </pre>
+ */
+public class ExtensionIndex {
+    public static final String INDEX_ENTRY = "META-INF/fabric3/extensions.index";
+    public static final String CONTRIBUTIONS_DIRECTORY = "META-INF/fabric3/contributions/";
+
+    private static final String HEADER = "# Fabric3 extensions index 1";
+    private static final String CONTRIBUTION_MANIFEST = "META-INF/sca-contribution.xml";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER = 8 * 1024;
+
+    private Map<String, Record> records = new LinkedHashMap<>();
+
+    /**
+     * Records the packages and contribution manifest of a nested jar.
+     *
+     * @param name the nested jar entry name
+     * @param jar  the jar contents, which are closed once read
+     * @throws IOException if the jar cannot be read
+     */
+    public void scan(String name, InputStream jar) throws IOException {
+        Record record = getRecord(name);
+        ZipInputStream stream = new ZipInputStream(jar);
+        try {
+            ZipEntry entry;
+            while ((entry = stream.getNextEntry()) != null) {
+                String entryName = entry.getName();
+                if (CONTRIBUTION_MANIFEST.equals(entryName)) {
+                    record.contribution = read(stream);
+                } else if (!entry.isDirectory() && entryName.endsWith(".class") && !entryName.startsWith("META-INF/")) {
+                    int index = entryName.lastIndexOf('/');
+                    if (index > 0) {
+                        record.packages.add(entryName.substring(0, index).replace('/', '.'));
+                    }
+                }
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Records the location of a nested jar once its entry has been closed.
+     *
+     * @param entry  the closed entry
+     * @param offset the offset of the entry data in the archive
+     */
+    public void add(JarEntry entry, long offset) {
+        Record record = getRecord(entry.getName());
+        record.method = entry.getMethod();
+        record.offset = offset;
+        record.compressedSize = entry.getCompressedSize();
+        record.size = entry.getSize();
+        record.crc = entry.getCrc();
+    }
+
+    /**
+     * Records the location of a nested jar written by a {@link ParallelArchiveWriter} once the writer has been flushed.
+     *
+     * @param entry the written entry
+     */
+    public void add(ParallelArchiveWriter.Entry entry) {
+        Record record = getRecord(entry.getName());
+        record.method = entry.getMethod();
+        record.offset = entry.getOffset();
+        record.compressedSize = entry.getCompressedSize();
+        record.size = entry.getSize();
+        record.crc = entry.getCrc();
+    }
+
+    /**
+     * Writes the contribution manifests and the index as the last entries of the archive.
+     *
+     * @param jarStream the archive stream
+     * @param timestamp the entry timestamp for a reproducible archive or -1
+     * @throws IOException if there is an error writing the entries
+     */
+    public void write(JarOutputStream jarStream, long timestamp) throws IOException {
+        for (Map.Entry<String, byte[]> entry : createEntries().entrySet()) {
+            putEntry(jarStream, entry.getKey(), entry.getValue(), timestamp);
+        }
+    }
+
+    /**
+     * Returns the contribution manifest entries and the index entry in the order they are written to the archive, for archives not written with a
+     * {@link JarOutputStream}.
+     *
+     * @return the entry contents keyed by entry name
+     */
+    public Map<String, byte[]> createEntries() {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        StringBuilder index = new StringBuilder(HEADER).append('\n');
+        for (Map.Entry<String, Record> entry : records.entrySet()) {
+            String name = entry.getKey();
+            Record record = entry.getValue();
+            index.append("J\t").append(name).append('\t').append(record.method == ZipEntry.STORED ? "STORED" : "DEFLATED").append('\t');
+            index.append(record.offset).append('\t').append(record.compressedSize).append('\t').append(record.size).append('\t');
+            index.append(Long.toHexString(record.crc)).append('\n');
+            for (String pkg : record.packages) {
+                index.append("P\t").append(name).append('\t').append(pkg).append('\n');
+            }
+            if (record.contribution != null) {
+                String contributionEntry = CONTRIBUTIONS_DIRECTORY + name.substring(name.lastIndexOf('/') + 1, name.length() - 4) + ".xml";
+                entries.put(contributionEntry, record.contribution);
+                index.append("C\t").append(name).append('\t').append(contributionEntry).append('\n');
+            }
+        }
+        entries.put(INDEX_ENTRY, index.toString().getBytes(UTF8));
+        return entries;
+    }
+
+    private void putEntry(JarOutputStream jarStream, String name, byte[] contents, long timestamp) throws IOException {
+        JarEntry entry = new JarEntry(name);
+        if (timestamp >= 0) {
+            entry.setTime(OutputTimestamp.toZipTime(timestamp));
+        }
+        jarStream.putNextEntry(entry);
+        jarStream.write(contents);
+        jarStream.closeEntry();
+    }
+
+    private Record getRecord(String name) {
+        Record record = records.get(name);
+        if (record == null) {
+            record = new Record();
+            records.put(name, record);
+        }
+        return record;
+    }
+
+    private byte[] read(InputStream stream) throws IOException {
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER];
+        int n;
+        while (-1 != (n = stream.read(buffer))) {
+            contents.write(buffer, 0, n);
+        }
+        return contents.toByteArray();
+    }
+
+    /**
+     * The index data for a nested jar.
+     */
+    private static class Record {
+        private int method;
+        private long offset;
+        private long compressedSize;
+        private long size;
+        private long crc;
+        private Set<String> packages = new TreeSet<>();
+        private byte[] contribution;
+    }
+
+}
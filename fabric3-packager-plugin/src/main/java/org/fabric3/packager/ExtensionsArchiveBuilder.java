@@ -0,0 +1,273 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.packager;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.fabric3.plugins.common.CountingOutputStream;
+import org.fabric3.plugins.common.OutputTimestamp;
+
+/**
+ * Builds the extensions archive directly from resolved extension jars and profile distributions without staging them on disk.
+ *
+ * Nested jars are already compressed, so they are written using the STORED method. CRCs for profile entries are taken from the profile's central directory;
+ * CRCs for extension jars are computed while the jar is read. An extension with the same name as a profile entry replaces it.
+ *
+ * If a timestamp is set, entries are written in name order with that timestamp so identical inputs produce an identical archive. If indexing is enabled, an
+ * {@link ExtensionIndex} is appended to the archive.
+ */
+public class ExtensionsArchiveBuilder {
+    private static final String EXTENSIONS_PREFIX = "extensions/";
+    private static final int BUFFER = 64 * 1024;
+    // larger files are read twice, once for the CRC and once for the contents, rather than held in memory
+    private static final long MAX_BUFFERED = 16 * 1024 * 1024;
+
+    private Map<String, Source> sources = new LinkedHashMap<>();
+    private long timestamp = -1;
+    private boolean indexed;
+
+    /**
+     * Sets the timestamp for all entries and writes them in name order.
+     *
+     * @param timestamp the timestamp in milliseconds since the epoch
+     */
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Sets whether an index of the nested jars is written to the archive.
+     *
+     * @param indexed true if the index should be written
+     */
+    public void setIndexed(boolean indexed) {
+        this.indexed = indexed;
+    }
+
+    /**
+     * Adds the extension jars contained in a profile distribution.
+     *
+     * @param profile the profile distribution
+     * @throws IOException if the profile cannot be read
+     */
+    public void addProfile(File profile) throws IOException {
+        ZipFile zipFile = new ZipFile(profile);
+        try {
+            Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
+            while (enumeration.hasMoreElements()) {
+                ZipEntry entry = enumeration.nextElement();
+                String name = entry.getName();
+                if (!entry.isDirectory() && name.startsWith(EXTENSIONS_PREFIX) && name.endsWith(".jar")
+                    && name.indexOf('/', EXTENSIONS_PREFIX.length()) < 0) {
+                    String jarName = name.substring(EXTENSIONS_PREFIX.length());
+                    sources.remove(jarName);
+                    sources.put(jarName, new Source(profile, name, entry.getSize(), entry.getCrc()));
+                }
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * Adds an extension jar. Other files are ignored, as they are when the archive is built from a staging directory.
+     *
+     * @param extension the extension jar
+     */
+    public void addExtension(File extension) {
+        String name = extension.getName();
+        if (!name.endsWith(".jar")) {
+            return;
+        }
+        sources.remove(name);
+        sources.put(name, new Source(extension, null, extension.length(), -1));
+    }
+
+    /**
+     * Returns the number of entries the archive will contain.
+     *
+     * @return the number of entries
+     */
+    public int getEntryCount() {
+        return sources.size();
+    }
+
+    /**
+     * Writes the archive.
+     *
+     * @param archive the archive file
+     * @throws IOException if there is an error writing the archive
+     */
+    public void write(File archive) throws IOException {
+        byte[] buffer = new byte[BUFFER];
+        Map<File, ZipFile> profiles = new LinkedHashMap<>();
+        CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(archive), BUFFER));
+        JarOutputStream jarStream = new JarOutputStream(counter);
+        ExtensionIndex index = indexed ? new ExtensionIndex() : null;
+        Map<String, Source> ordered = timestamp < 0 ? sources : new TreeMap<>(sources);
+        try {
+            for (Map.Entry<String, Source> entry : ordered.entrySet()) {
+                String name = entry.getKey();
+                Source source = entry.getValue();
+                JarEntry jarEntry;
+                if (source.entryName != null) {
+                    ZipFile zipFile = profiles.get(source.file);
+                    if (zipFile == null) {
+                        zipFile = new ZipFile(source.file);
+                        profiles.put(source.file, zipFile);
+                    }
+                    ZipEntry zipEntry = zipFile.getEntry(source.entryName);
+                    if (index != null) {
+                        index.scan(name, zipFile.getInputStream(zipEntry));
+                    }
+                    jarEntry = putStoredEntry(jarStream, name, source.size, source.crc);
+                    copy(zipFile.getInputStream(zipEntry), jarStream, buffer);
+                } else if (source.size <= MAX_BUFFERED) {
+                    byte[] contents = read(source.file, (int) source.size);
+                    CRC32 crc = new CRC32();
+                    crc.update(contents);
+                    if (index != null) {
+                        index.scan(name, new ByteArrayInputStream(contents));
+                    }
+                    jarEntry = putStoredEntry(jarStream, name, contents.length, crc.getValue());
+                    jarStream.write(contents);
+                } else {
+                    if (index != null) {
+                        index.scan(name, new FileInputStream(source.file));
+                    }
+                    jarEntry = putStoredEntry(jarStream, name, source.size, crc(source.file, buffer));
+                    copy(new FileInputStream(source.file), jarStream, buffer);
+                }
+                // stored data is written straight through, so it starts the entry size before the current position
+                long offset = counter.getCount() - jarEntry.getCompressedSize();
+                jarStream.closeEntry();
+                if (index != null) {
+                    index.add(jarEntry, offset);
+                }
+            }
+            if (index != null) {
+                index.write(jarStream, timestamp);
+            }
+            jarStream.close();
+        } finally {
+            close(jarStream);
+            for (ZipFile zipFile : profiles.values()) {
+                close(zipFile);
+            }
+        }
+    }
+
+    private JarEntry putStoredEntry(JarOutputStream jarStream, String name, long size, long crc) throws IOException {
+        JarEntry jarEntry = new JarEntry(name);
+        jarEntry.setMethod(ZipEntry.STORED);
+        jarEntry.setSize(size);
+        jarEntry.setCompressedSize(size);
+        jarEntry.setCrc(crc);
+        if (timestamp >= 0) {
+            jarEntry.setTime(OutputTimestamp.toZipTime(timestamp));
+        }
+        jarStream.putNextEntry(jarEntry);
+        return jarEntry;
+    }
+
+    private byte[] read(File file, int size) throws IOException {
+        byte[] contents = new byte[size];
+        InputStream stream = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < size) {
+                int n = stream.read(contents, offset, size - offset);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of file: " + file);
+                }
+                offset += n;
+            }
+        } finally {
+            stream.close();
+        }
+        return contents;
+    }
+
+    private long crc(File file, byte[] buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream stream = new FileInputStream(file);
+        try {
+            int n;
+            while (-1 != (n = stream.read(buffer))) {
+                crc.update(buffer, 0, n);
+            }
+        } finally {
+            stream.close();
+        }
+        return crc.getValue();
+    }
+
+    private void copy(InputStream stream, JarOutputStream jarStream, byte[] buffer) throws IOException {
+        try {
+            int n;
+            while (-1 != (n = stream.read(buffer))) {
+                jarStream.write(buffer, 0, n);
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    private void close(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * The origin of an archive entry, either an extension jar or an entry in a profile distribution.
+     */
+    private static class Source {
+        private File file;
+        private String entryName;
+        private long size;
+        private long crc;
+
+        private Source(File file, String entryName, long size, long crc) {
+            this.file = file;
+            this.entryName = entryName;
+            this.size = size;
+            this.crc = crc;
+        }
+    }
+
+}
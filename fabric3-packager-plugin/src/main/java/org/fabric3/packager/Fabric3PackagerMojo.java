@@ -16,8 +16,8 @@
  */
 package org.fabric3.packager;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
@@ -25,13 +25,18 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 import org.apache.maven.model.Dependency;
 import org.apache.maven.plugin.AbstractMojo;
@@ -42,8 +47,15 @@ import org.eclipse.aether.artifact.Artifact;
 import org.eclipse.aether.artifact.DefaultArtifact;
 import org.eclipse.aether.repository.RemoteRepository;
 import org.eclipse.aether.resolution.ArtifactRequest;
-import org.eclipse.aether.resolution.ArtifactResolutionException;
-import org.eclipse.aether.resolution.ArtifactResult;
+import org.fabric3.plugins.common.BuildMetrics;
+import org.fabric3.plugins.common.ChecksumCache;
+import org.fabric3.plugins.common.CountingOutputStream;
+import org.fabric3.plugins.common.FileInstaller;
+import org.fabric3.plugins.common.OutputTimestamp;
+import org.fabric3.plugins.common.ParallelArchiveWriter;
+import org.fabric3.plugins.common.ResolutionCache;
+import org.fabric3.plugins.common.VersionLock;
+import org.fabric3.plugins.common.ZipExtractor;
 
 /**
  * Plugin that assembles a Fabric3 node runtime including extensions for deployment in WAR.
@@ -57,6 +69,8 @@ public class Fabric3PackagerMojo extends AbstractMojo {
     public static final String F3_ARTIFACT_ID = "org.fabric3";
     public static final String F3_EXTENSIONS_JAR = "f3.extensions.jar";
     private static final int BUFFER = 2048;
+    private static final String METRICS_REPORT = "fabric3-packager-metrics.json";
+    private static final String CHECKSUM_MANIFEST = "war.checksums";
 
     /**
      * Directory where the app is built.
@@ -95,6 +109,109 @@ public class Fabric3PackagerMojo extends AbstractMojo {
      */
     public Dependency[] extensions = new Dependency[0];
 
+    /**
+     * Number of threads used to extract runtime and profile distributions. If not set, the number of available processors is used.
+     *
+     * @parameter
+     */
+    public int extractionThreads;
+
+    /**
+     * How resolved extensions and runtime libraries are installed: copy, hardlink or symlink. Hard links fall back to copying when the local repository and
+     * the build directory are on different file systems.
+     *
+     * @parameter
+     */
+    public String linkMode = "copy";
+
+    /**
+     * True if the extensions archive should be written directly from the resolved profiles and extensions. Nested jars are stored uncompressed and no
+     * staging directory is created.
+     *
+     * @parameter
+     */
+    public boolean streamExtensions;
+
+    /**
+     * Timestamp used to produce a reproducible extensions archive, as an ISO 8601 date-time such as <code>2015-01-01T00:00:00Z</code> or as seconds since
+     * the epoch. If set, archive entries are sorted by name and stamped with this time.
+     *
+     * @parameter property="project.build.outputTimestamp"
+     */
+    public String outputTimestamp;
+
+    /**
+     * True if an index of the nested extension jars should be written to the extensions archive. The index records the location, checksum and packages of
+     * each jar, and its SCA contribution manifest, so the node runtime does not need to open each jar to find its contents.
+     *
+     * @parameter property="fabric3.extensionIndex"
+     */
+    public boolean extensionIndex;
+
+    /**
+     * True if the entries of the extensions archive should be compressed in parallel. Applies when the archive is created from the staging directory.
+     *
+     * @parameter property="fabric3.parallelCompression"
+     */
+    public boolean parallelCompression;
+
+    /**
+     * Number of threads used to compress archive entries when parallel compression is enabled. If not set, the number of available processors is used.
+     *
+     * @parameter
+     */
+    public int compressionThreads;
+
+    /**
+     * Compression rules used when parallel compression is enabled, each of the form <code>pattern=method</code> where the method is <code>stored</code>,
+     * <code>deflated</code> or a deflate level from 0 to 9, for example <code>*.jar=stored</code>. The first matching rule applies; other entries are
+     * deflated at the default level.
+     *
+     * @parameter
+     */
+    public String[] compressionRules;
+
+    /**
+     * True if the time spent resolving, extracting, copying and archiving files should be summarized at info level. The summary is otherwise only logged in
+     * debug mode.
+     *
+     * @parameter property="fabric3.metrics"
+     */
+    public boolean showMetrics;
+
+    /**
+     * True if build metrics for each phase and artifact should be written as JSON to fabric3-packager-metrics.json in the build directory.
+     *
+     * @parameter property="fabric3.metricsReport"
+     */
+    public boolean metricsReport;
+
+    /**
+     * True if the checksums of all files installed in WEB-INF/lib should be written to war.checksums in the build directory. Checksums of resolved
+     * artifacts are taken from the checksums computed as they are copied or verified against the lock where available; the extensions archive is read once
+     * after it is written.
+     *
+     * @parameter property="fabric3.checksumManifest"
+     */
+    public boolean checksumManifest;
+
+    /**
+     * How resolved versions are locked: <code>none</code>, <code>lock</code> or <code>update</code>. In lock mode, profiles, extensions and runtime
+     * libraries are resolved with the versions recorded in the lock file and checked against the recorded SHA-256 checksums, so release and range versions
+     * do not require repository metadata lookups; artifacts not yet in the lock file are resolved as configured and added. In update mode, all artifacts
+     * are resolved as configured and the lock file is rewritten.
+     *
+     * @parameter property="fabric3.lockMode"
+     */
+    public String lockMode = "none";
+
+    /**
+     * The lock file used when <code>lockMode</code> is lock or update.
+     *
+     * @parameter property="fabric3.lockFile" default-value="${basedir}/fabric3.lock"
+     */
+    public File lockFile;
+
     /**
      * @component
      */
@@ -116,25 +233,92 @@ public class Fabric3PackagerMojo extends AbstractMojo {
      */
     private List<RemoteRepository> projectRepositories;
 
+    private ZipExtractor extractor;
+    private FileInstaller installer;
+    private boolean linked;
+    private BuildMetrics metrics = new BuildMetrics("fabric3-packager");
+    private ResolutionCache resolutionCache;
+    private VersionLock lock;
+    private ChecksumCache checksums;
+    private File warDirectory;
+    private Map<String, String> installed = new TreeMap<>();
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
     public void execute() throws MojoExecutionException {
+        resolutionCache = new ResolutionCache(repositorySystem, session);
+        checksums = new ChecksumCache(session);
+        try {
+            lock = createLock();
+            pack();
+            saveLock();
+            saveChecksums();
+        } finally {
+            reportMetrics();
+        }
+    }
+
+    /**
+     * Assembles the node runtime and extensions archive in the WAR directory.
+     *
+     * @throws MojoExecutionException if there is an error assembling the runtime
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void pack() throws MojoExecutionException {
 
         addDefaultExtensions();
 
-        File libDirectory = new File(buildDirectory, warName + File.separator + "WEB-INF" + File.separator + "lib");
+        long timestamp = -1;
+        if (outputTimestamp != null && outputTimestamp.trim().length() > 0) {
+            try {
+                timestamp = OutputTimestamp.parse(outputTimestamp);
+            } catch (IllegalArgumentException e) {
+                throw new MojoExecutionException(e.getMessage());
+            }
+        }
+
+        FileInstaller.LinkMode mode;
+        try {
+            mode = FileInstaller.LinkMode.parse(linkMode);
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException("Invalid link mode specified: " + linkMode);
+        }
+        installer = new FileInstaller(mode);
+        linked = mode != FileInstaller.LinkMode.COPY;
+
+        warDirectory = new File(buildDirectory, warName);
+        File libDirectory = new File(warDirectory, "WEB-INF" + File.separator + "lib");
         libDirectory.mkdirs();
 
-        File stagingDirectory = new File(buildDirectory, "f3");
-        stagingDirectory.mkdirs();
+        if (streamExtensions) {
+            streamExtensionsArchive(libDirectory, timestamp);
+        } else {
+            File stagingDirectory = new File(buildDirectory, "f3");
+            stagingDirectory.mkdirs();
 
-        File extensionsDirectory = new File(stagingDirectory, "extensions");
-        extensionsDirectory.mkdir();
+            File extensionsDirectory = new File(stagingDirectory, "extensions");
+            extensionsDirectory.mkdir();
 
-        extractProfiles(stagingDirectory);
-        resolveDependencies(extensions, extensionsDirectory);
+            extractor = new ZipExtractor(extractionThreads);
+            try {
+                extractProfiles(stagingDirectory);
+            } finally {
+                extractor.shutdown();
+            }
+            resolveDependencies(extensions, extensionsDirectory);
 
-        createExtensionsArchive(extensionsDirectory, libDirectory);
+            if (parallelCompression) {
+                compressExtensionsArchive(extensionsDirectory, libDirectory, timestamp);
+            } else {
+                createExtensionsArchive(extensionsDirectory, libDirectory, timestamp);
+            }
+        }
+        if (checksumManifest) {
+            File archive = new File(libDirectory, F3_EXTENSIONS_JAR);
+            try {
+                record(archive, checksums.compute(archive));
+            } catch (IOException e) {
+                throw new MojoExecutionException(e.getMessage(), e);
+            }
+        }
 
         Dependency[] dependencies = new Dependency[2];
 
@@ -151,9 +335,24 @@ public class Fabric3PackagerMojo extends AbstractMojo {
         resolveDependencies(dependencies, libDirectory);
     }
 
+    /**
+     * Logs the build metrics and writes the metrics report if configured.
+     */
+    private void reportMetrics() {
+        metrics.log(getLog(), showMetrics);
+        if (metricsReport) {
+            File report = new File(buildDirectory, METRICS_REPORT);
+            try {
+                metrics.write(report);
+            } catch (IOException e) {
+                getLog().warn("Unable to write metrics report: " + report, e);
+            }
+        }
+    }
+
     private void addDefaultExtensions() {
         int length = extensions.length;
-        extensions = Arrays.copyOf(extensions, length + 2);
+        extensions = Arrays.copyOf(extensions, length + 1);
 
         extensions[length] = new Dependency();
         extensions[length].setGroupId(F3_ARTIFACT_ID);
@@ -175,13 +374,9 @@ public class Fabric3PackagerMojo extends AbstractMojo {
             getLog().info("Resolving profile: " + groupId + ":" + artifactId);
 
             Artifact artifact = new DefaultArtifact(groupId, artifactId, "bin", "zip", version);
-            try {
-                ArtifactResult result = repositorySystem.resolveArtifact(session, new ArtifactRequest(artifact, projectRepositories, null));
-                File source = result.getArtifact().getFile();
-                extract(source, extensionsDirectory);
-            } catch (ArtifactResolutionException e) {
-                throw new MojoExecutionException(e.getMessage(), e);
-            }
+            File source = resolve(artifact);
+            extract(source, extensionsDirectory);
+            verifyLock(artifact, source);
         }
     }
 
@@ -200,26 +395,178 @@ public class Fabric3PackagerMojo extends AbstractMojo {
             String classifier = extension.getClassifier();
             getLog().info("Resolving dependency: " + groupId + ":" + artifactId);
             Artifact artifact = new DefaultArtifact(groupId, artifactId, classifier, type, version);
-            ArtifactResult result;
+            File source = resolve(artifact);
+            BuildMetrics.Sample sample = metrics.start(BuildMetrics.Phase.COPY, artifact.toString());
             try {
-                result = repositorySystem.resolveArtifact(session, new ArtifactRequest(artifact, projectRepositories, null));
-            } catch (ArtifactResolutionException e) {
+                File target = new File(targetDirectory, source.getName());
+                if ((lock != null || checksumManifest) && !linked && checksums.get(source) == null) {
+                    // the checksum needed by the lock or the checksum manifest is computed from the bytes as they are copied
+                    MessageDigest digest = ChecksumCache.createDigest();
+                    FileInstaller.copy(source, target, digest);
+                    checksums.put(source, ChecksumCache.toHex(digest.digest()));
+                } else {
+                    installer.install(source, targetDirectory);
+                }
+                if (checksumManifest) {
+                    record(target, checksums.compute(source));
+                }
+                sample.written(linked ? 0 : source.length()).entries(1);
+            } catch (IOException e) {
                 throw new MojoExecutionException(e.getMessage(), e);
+            } finally {
+                sample.stop();
             }
-            File source = result.getArtifact().getFile();
-            InputStream sourceStream = null;
-            OutputStream targetStream = null;
+            verifyLock(artifact, source);
+        }
+    }
+
+    /**
+     * Resolves an artifact, with its locked version if versions are locked. The resolved file must be checked against the lock with
+     * {@link #verifyLock(Artifact, File)} once it has been used, so that a checksum computed while it was copied is reused.
+     *
+     * @param artifact the artifact
+     * @return the resolved file
+     * @throws MojoExecutionException if there is an error during resolution
+     */
+    private File resolve(Artifact artifact) throws MojoExecutionException {
+        BuildMetrics.Sample sample = metrics.start(BuildMetrics.Phase.RESOLVE, artifact.toString());
+        try {
+            Artifact requested = lock != null ? lock.lock(artifact) : artifact;
+            return resolutionCache.resolve(new ArtifactRequest(requested, projectRepositories, null));
+        } finally {
+            sample.entries(1).stop();
+        }
+    }
+
+    /**
+     * Checks a resolved artifact against the version lock if versions are locked.
+     *
+     * @param artifact the requested artifact
+     * @param file     the resolved file
+     * @throws MojoExecutionException if the file does not match the lock
+     */
+    private void verifyLock(Artifact artifact, File file) throws MojoExecutionException {
+        if (lock != null) {
+            lock.verify(artifact, file);
+        }
+    }
+
+    /**
+     * Creates the version lock for the configured lock mode.
+     *
+     * @return the lock or null if versions are not locked
+     * @throws MojoExecutionException if the lock mode is not valid or the lock file cannot be read
+     */
+    private VersionLock createLock() throws MojoExecutionException {
+        if (lockMode == null || "none".equalsIgnoreCase(lockMode)) {
+            return null;
+        } else if (!"lock".equalsIgnoreCase(lockMode) && !"update".equalsIgnoreCase(lockMode)) {
+            throw new MojoExecutionException("Invalid lock mode specified: " + lockMode);
+        }
+        VersionLock versionLock = new VersionLock(lockFile, "update".equalsIgnoreCase(lockMode), session);
+        try {
+            versionLock.load();
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+        return versionLock;
+    }
+
+    /**
+     * Writes the lock file if versions are locked and entries were added or replaced.
+     *
+     * @throws MojoExecutionException if the lock file cannot be written
+     */
+    private void saveLock() throws MojoExecutionException {
+        if (lock == null) {
+            return;
+        }
+        try {
+            if (lock.save()) {
+                getLog().info("Updated lock file: " + lockFile);
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to write lock file: " + lockFile, e);
+        }
+    }
+
+    /**
+     * Records the checksum of a file installed in the WAR directory for the checksum manifest. Files installed elsewhere, such as extensions staged for the
+     * extensions archive, are ignored.
+     *
+     * @param file     the installed file
+     * @param checksum the checksum as lowercase hex
+     */
+    private void record(File file, String checksum) {
+        if (file.toPath().startsWith(warDirectory.toPath())) {
+            installed.put(warDirectory.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/'), checksum);
+        }
+    }
+
+    /**
+     * Writes the checksums of the files installed in the WAR directory as lines of the form <code>hash  path</code>, sorted by path, if configured.
+     *
+     * @throws MojoExecutionException if the checksum manifest cannot be written
+     */
+    private void saveChecksums() throws MojoExecutionException {
+        if (!checksumManifest) {
+            return;
+        }
+        File file = new File(buildDirectory, CHECKSUM_MANIFEST);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+            for (Map.Entry<String, String> entry : installed.entrySet()) {
+                writer.write(entry.getValue() + "  " + entry.getKey() + "\n");
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to write checksum manifest: " + file, e);
+        } finally {
+            close(writer);
+        }
+    }
+
+    /**
+     * Writes the extensions archive directly from the resolved profiles and extensions, without extracting or copying them to a staging directory.
+     *
+     * @param libDirectory the WEB-INF/lib directory
+     * @param timestamp    the entry timestamp for a reproducible archive or -1
+     * @throws MojoExecutionException if there is an error creating the archive
+     */
+    private void streamExtensionsArchive(File libDirectory, long timestamp) throws MojoExecutionException {
+        ExtensionsArchiveBuilder builder = new ExtensionsArchiveBuilder();
+        if (timestamp >= 0) {
+            builder.setTimestamp(timestamp);
+        }
+        builder.setIndexed(extensionIndex);
+        try {
+            for (Dependency profile : profiles) {
+                getLog().info("Resolving profile: " + profile.getGroupId() + ":" + profile.getArtifactId());
+                Artifact artifact = new DefaultArtifact(profile.getGroupId(), profile.getArtifactId(), "bin", "zip", profile.getVersion());
+                File source = resolve(artifact);
+                verifyLock(artifact, source);
+                builder.addProfile(source);
+            }
+            for (Dependency extension : extensions) {
+                getLog().info("Resolving dependency: " + extension.getGroupId() + ":" + extension.getArtifactId());
+                Artifact artifact = new DefaultArtifact(extension.getGroupId(),
+                                                        extension.getArtifactId(),
+                                                        extension.getClassifier(),
+                                                        extension.getType(),
+                                                        extension.getVersion());
+                File source = resolve(artifact);
+                verifyLock(artifact, source);
+                builder.addExtension(source);
+            }
+            File archive = new File(libDirectory, F3_EXTENSIONS_JAR);
+            BuildMetrics.Sample sample = metrics.start(BuildMetrics.Phase.ARCHIVE, F3_EXTENSIONS_JAR);
             try {
-                sourceStream = new BufferedInputStream(new FileInputStream(source));
-                File targetFile = new File(targetDirectory, source.getName());
-                targetStream = new BufferedOutputStream(new FileOutputStream(targetFile));
-                copy(sourceStream, targetStream);
-            } catch (IOException e) {
-                throw new MojoExecutionException(e.getMessage(), e);
+                builder.write(archive);
             } finally {
-                close(targetStream);
-                close(sourceStream);
+                sample.written(archive.length()).entries(builder.getEntryCount()).stop();
             }
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
         }
     }
 
@@ -230,68 +577,141 @@ public class Fabric3PackagerMojo extends AbstractMojo {
      * @param destination the target directory
      * @throws MojoExecutionException if there is an error during extraction
      */
-    @SuppressWarnings("ResultOfMethodCallIgnored")
     private void extract(File source, File destination) throws MojoExecutionException {
-        ZipFile zipfile;
+        final BuildMetrics.Sample sample = metrics.start(BuildMetrics.Phase.EXTRACT, source.getName());
         try {
-            zipfile = new ZipFile(source);
+            sample.read(source.length());
+            extractor.extract(source, destination, new ZipExtractor.EntryFilter() {
+                public boolean include(ZipEntry entry) {
+                    if (!entry.isDirectory()) {
+                        sample.written(entry.getSize()).entries(1);
+                    }
+                    return true;
+                }
+            });
         } catch (IOException e) {
             throw new MojoExecutionException(e.getMessage(), e);
+        } finally {
+            sample.stop();
         }
-        Enumeration enumeration = zipfile.entries();
-        while (enumeration.hasMoreElements()) {
-            ZipEntry entry = (ZipEntry) enumeration.nextElement();
-            if (entry.isDirectory()) {
-                new File(destination, entry.getName()).mkdirs();
-            } else {
-                if (entry.getName().toUpperCase().endsWith(".MF")) {
-                    // ignore manifests
+    }
+
+    /**
+     * Creates the extensions archive from the jars in the staging directory.
+     *
+     * @param extensionsDirectory the staging directory
+     * @param libDirectory        the WEB-INF/lib directory
+     * @param timestamp           the entry timestamp for a reproducible archive or -1
+     * @throws MojoExecutionException if there is an error creating the archive
+     */
+    void createExtensionsArchive(File extensionsDirectory, File libDirectory, long timestamp) throws MojoExecutionException {
+        File archive = new File(libDirectory, F3_EXTENSIONS_JAR);
+        BuildMetrics.Sample sample = metrics.start(BuildMetrics.Phase.ARCHIVE, F3_EXTENSIONS_JAR);
+        JarOutputStream jarStream = null;
+        ExtensionIndex index = extensionIndex ? new ExtensionIndex() : null;
+        try {
+            CountingOutputStream os = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(archive)));
+            jarStream = new JarOutputStream(os);
+            File[] files = extensionsDirectory.listFiles();
+            if (timestamp >= 0) {
+                Arrays.sort(files);
+            }
+            for (File file : files) {
+                if (!file.getName().endsWith(".jar")) {
                     continue;
                 }
-                InputStream sourceStream = null;
-                OutputStream targetStream = null;
+                JarEntry entry = new JarEntry(file.getName());
+                if (timestamp >= 0) {
+                    entry.setTime(OutputTimestamp.toZipTime(timestamp));
+                }
+                jarStream.putNextEntry(entry);
+                // the zip stream writes the local header directly to the counting stream, so the count is the offset of the entry data
+                long offset = os.getCount();
+                InputStream sourceStream = new FileInputStream(file);
                 try {
-                    sourceStream = new BufferedInputStream(zipfile.getInputStream(entry));
-                    FileOutputStream fos = new FileOutputStream(new File(destination, entry.getName()));
-                    targetStream = new BufferedOutputStream(fos, BUFFER);
-                    copy(sourceStream, targetStream);
-                    targetStream.flush();
-                } catch (IOException e) {
-                    throw new MojoExecutionException(e.getMessage(), e);
+                    sample.read(copy(sourceStream, jarStream)).entries(1);
                 } finally {
-                    close(targetStream);
                     close(sourceStream);
                 }
+                if (index != null) {
+                    jarStream.closeEntry();
+                    index.add(entry, offset);
+                    index.scan(entry.getName(), new FileInputStream(file));
+                }
+            }
+            if (index != null) {
+                index.write(jarStream, timestamp);
             }
+            jarStream.flush();
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        } finally {
+            close(jarStream);
+            sample.written(archive.length()).stop();
         }
+
     }
 
-    private void createExtensionsArchive(File extensionsDirectory, File libDirectory) throws MojoExecutionException {
-        JarOutputStream jarStream = null;
+    /**
+     * Creates the extensions archive from the jars in the staging directory, compressing the jars in parallel.
+     *
+     * @param extensionsDirectory the staging directory
+     * @param libDirectory        the WEB-INF/lib directory
+     * @param timestamp           the entry timestamp for a reproducible archive or -1
+     * @throws MojoExecutionException if there is an error creating the archive
+     */
+    void compressExtensionsArchive(File extensionsDirectory, File libDirectory, long timestamp) throws MojoExecutionException {
+        File archive = new File(libDirectory, F3_EXTENSIONS_JAR);
+        BuildMetrics.Sample sample = metrics.start(BuildMetrics.Phase.ARCHIVE, F3_EXTENSIONS_JAR);
+        ParallelArchiveWriter writer = null;
+        ExtensionIndex index = extensionIndex ? new ExtensionIndex() : null;
         try {
-            File archive = new File(libDirectory, F3_EXTENSIONS_JAR);
-            OutputStream os = new BufferedOutputStream(new FileOutputStream(archive));
-            jarStream = new JarOutputStream(os);
-            for (File file : extensionsDirectory.listFiles()) {
+            writer = new ParallelArchiveWriter(archive, compressionThreads);
+            if (compressionRules != null) {
+                for (String rule : compressionRules) {
+                    writer.addRule(rule);
+                }
+            }
+            if (timestamp >= 0) {
+                writer.setTimestamp(OutputTimestamp.toZipTime(timestamp));
+            }
+            File[] files = extensionsDirectory.listFiles();
+            // entries are written in the order they are added
+            Arrays.sort(files);
+            List<ParallelArchiveWriter.Entry> entries = new ArrayList<>();
+            for (File file : files) {
                 if (!file.getName().endsWith(".jar")) {
                     continue;
                 }
-                JarEntry entry = new JarEntry(file.getName());
-                jarStream.putNextEntry(entry);
-                copy(new FileInputStream(file), jarStream);
+                entries.add(writer.addFile(file.getName(), file));
+                sample.read(file.length()).entries(1);
+                if (index != null) {
+                    index.scan(file.getName(), new FileInputStream(file));
+                }
             }
-            jarStream.flush();
+            if (index != null) {
+                writer.flush();
+                for (ParallelArchiveWriter.Entry entry : entries) {
+                    index.add(entry);
+                }
+                for (Map.Entry<String, byte[]> entry : index.createEntries().entrySet()) {
+                    writer.addBytes(entry.getKey(), entry.getValue());
+                }
+            }
+            writer.finish();
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage());
         } catch (IOException e) {
             throw new MojoExecutionException(e.getMessage(), e);
         } finally {
-            close(jarStream);
+            close(writer);
+            sample.written(archive.length()).stop();
         }
-
     }
 
-    private int copy(InputStream input, OutputStream output) throws IOException {
+    private long copy(InputStream input, OutputStream output) throws IOException {
         byte[] buffer = new byte[BUFFER];
-        int count = 0;
+        long count = 0;
         int n;
         while (-1 != (n = input.read(buffer))) {
             output.write(buffer, 0, n);
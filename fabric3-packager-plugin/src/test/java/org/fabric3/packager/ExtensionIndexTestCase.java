@@ -0,0 +1,169 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.packager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that the offsets and sizes recorded in the extensions index locate the nested jar data for each way the archive is written.
+ */
+public class ExtensionIndexTestCase extends TestCase {
+    private File directory;
+    private File extensionsDirectory;
+    private File libDirectory;
+    private Map<String, byte[]> jars = new HashMap<>();
+
+    public void testArchiveBuilder() throws Exception {
+        ExtensionsArchiveBuilder builder = new ExtensionsArchiveBuilder();
+        builder.setIndexed(true);
+        for (File file : extensionsDirectory.listFiles()) {
+            builder.addExtension(file);
+        }
+        File archive = new File(libDirectory, Fabric3PackagerMojo.F3_EXTENSIONS_JAR);
+        builder.write(archive);
+        assertIndex(archive);
+    }
+
+    public void testStagedArchive() throws Exception {
+        Fabric3PackagerMojo mojo = new Fabric3PackagerMojo();
+        mojo.extensionIndex = true;
+        mojo.createExtensionsArchive(extensionsDirectory, libDirectory, -1);
+        assertIndex(new File(libDirectory, Fabric3PackagerMojo.F3_EXTENSIONS_JAR));
+    }
+
+    public void testParallelArchive() throws Exception {
+        Fabric3PackagerMojo mojo = new Fabric3PackagerMojo();
+        mojo.extensionIndex = true;
+        mojo.compressionThreads = 2;
+        mojo.compressExtensionsArchive(extensionsDirectory, libDirectory, -1);
+        assertIndex(new File(libDirectory, Fabric3PackagerMojo.F3_EXTENSIONS_JAR));
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = Files.createTempDirectory("index").toFile();
+        extensionsDirectory = new File(directory, "extensions");
+        libDirectory = new File(directory, "lib");
+        assertTrue(extensionsDirectory.mkdir());
+        assertTrue(libDirectory.mkdir());
+        for (int i = 0; i < 5; i++) {
+            String name = "extension-" + i + ".jar";
+            byte[] contents = jar(i * 1000, "org/fabric3/ext" + i + "/Extension.class");
+            Files.write(new File(extensionsDirectory, name).toPath(), contents);
+            jars.put(name, contents);
+        }
+        Files.write(new File(extensionsDirectory, "readme.txt").toPath(), "readme".getBytes());
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        delete(directory);
+    }
+
+    /**
+     * Reads the data at each recorded offset directly from the archive and compares it with the nested jar.
+     */
+    private void assertIndex(File archive) throws Exception {
+        byte[] bytes = Files.readAllBytes(archive.toPath());
+        String index;
+        ZipFile zipFile = new ZipFile(archive);
+        try {
+            index = new String(read(zipFile.getInputStream(zipFile.getEntry(ExtensionIndex.INDEX_ENTRY))), "UTF-8");
+        } finally {
+            zipFile.close();
+        }
+        int records = 0;
+        for (String line : index.split("\n")) {
+            String[] fields = line.split("\t");
+            if (!"J".equals(fields[0])) {
+                continue;
+            }
+            records++;
+            String name = fields[1];
+            int offset = Integer.parseInt(fields[3]);
+            int compressedSize = Integer.parseInt(fields[4]);
+            int size = Integer.parseInt(fields[5]);
+            byte[] expected = jars.get(name);
+            assertNotNull(name, expected);
+            assertEquals(name, expected.length, size);
+            byte[] data = Arrays.copyOfRange(bytes, offset, offset + compressedSize);
+            if ("STORED".equals(fields[2])) {
+                assertTrue(name, Arrays.equals(expected, data));
+            } else {
+                Inflater inflater = new Inflater(true);
+                inflater.setInput(data);
+                byte[] inflated = new byte[size];
+                assertEquals(name, size, inflater.inflate(inflated));
+                assertTrue(name, inflater.finished());
+                inflater.end();
+                assertTrue(name, Arrays.equals(expected, inflated));
+            }
+        }
+        assertEquals(jars.size(), records);
+    }
+
+    private byte[] jar(int padding, String name) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream stream = new ZipOutputStream(bytes);
+        try {
+            stream.putNextEntry(new ZipEntry(name));
+            stream.write(new byte[padding]);
+            stream.closeEntry();
+        } finally {
+            stream.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private byte[] read(InputStream stream) throws IOException {
+        try {
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while (-1 != (n = stream.read(buffer))) {
+                contents.write(buffer, 0, n);
+            }
+            return contents.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+
+    private void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+}
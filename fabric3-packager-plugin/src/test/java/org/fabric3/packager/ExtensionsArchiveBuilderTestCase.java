@@ -0,0 +1,208 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.packager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests writing the extensions archive from extension jars and profile distributions.
+ */
+public class ExtensionsArchiveBuilderTestCase extends TestCase {
+    private File directory;
+    private File profile;
+    private File extension;
+    private File other;
+
+    public void testStoredEntries() throws Exception {
+        ExtensionsArchiveBuilder builder = new ExtensionsArchiveBuilder();
+        builder.addProfile(profile);
+        builder.addExtension(extension);
+        builder.addExtension(other);
+        assertEquals(3, builder.getEntryCount());
+        File archive = new File(directory, "extensions.jar");
+        builder.write(archive);
+
+        ZipFile zipFile = new ZipFile(archive);
+        try {
+            List<String> names = new ArrayList<>();
+            Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
+            while (enumeration.hasMoreElements()) {
+                ZipEntry entry = enumeration.nextElement();
+                names.add(entry.getName());
+                byte[] contents = read(zipFile.getInputStream(entry));
+                assertEquals(ZipEntry.STORED, entry.getMethod());
+                assertEquals(contents.length, entry.getSize());
+                assertEquals(contents.length, entry.getCompressedSize());
+                assertEquals(checksum(contents), entry.getCrc());
+            }
+            Collections.sort(names);
+            assertEquals(Arrays.asList("a.jar", "b.jar", "c.jar"), names);
+
+            // the extension replaces the profile entry of the same name
+            assertTrue(Arrays.equals(Files.readAllBytes(extension.toPath()), read(zipFile.getInputStream(zipFile.getEntry("b.jar")))));
+            assertTrue(Arrays.equals(jar("org/fabric3/a/A.class"), read(zipFile.getInputStream(zipFile.getEntry("a.jar")))));
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    public void testNonJarExtensionIgnored() throws Exception {
+        ExtensionsArchiveBuilder builder = new ExtensionsArchiveBuilder();
+        builder.addExtension(other);
+        assertEquals(0, builder.getEntryCount());
+    }
+
+    public void testIndexed() throws Exception {
+        ExtensionsArchiveBuilder builder = new ExtensionsArchiveBuilder();
+        builder.setIndexed(true);
+        builder.addProfile(profile);
+        builder.addExtension(extension);
+        File archive = new File(directory, "extensions.jar");
+        builder.write(archive);
+
+        ZipFile zipFile = new ZipFile(archive);
+        try {
+            String index = new String(read(zipFile.getInputStream(zipFile.getEntry(ExtensionIndex.INDEX_ENTRY))), "UTF-8");
+            assertTrue(index.contains("P\ta.jar\torg.fabric3.a\n"));
+            assertTrue(index.contains("P\tb.jar\torg.fabric3.override\n"));
+            assertFalse(index.contains("org.fabric3.b\n"));
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    public void testTimestampReproducible() throws Exception {
+        ExtensionsArchiveBuilder builder = new ExtensionsArchiveBuilder();
+        builder.setTimestamp(1420070400000L);
+        builder.setIndexed(true);
+        builder.addProfile(profile);
+        builder.addExtension(extension);
+        File first = new File(directory, "first.jar");
+        builder.write(first);
+
+        // add the inputs in a different order with different modification times
+        assertTrue(extension.setLastModified(extension.lastModified() - 60000));
+        assertTrue(profile.setLastModified(profile.lastModified() - 120000));
+        builder = new ExtensionsArchiveBuilder();
+        builder.setTimestamp(1420070400000L);
+        builder.setIndexed(true);
+        builder.addExtension(extension);
+        builder.addProfile(profile);
+        builder.addExtension(extension);
+        File second = new File(directory, "second.jar");
+        builder.write(second);
+
+        assertTrue(Arrays.equals(Files.readAllBytes(first.toPath()), Files.readAllBytes(second.toPath())));
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = Files.createTempDirectory("extensions").toFile();
+        profile = new File(directory, "profile-bin.zip");
+        ZipOutputStream stream = new ZipOutputStream(new FileOutputStream(profile));
+        try {
+            putEntry(stream, "extensions/a.jar", jar("org/fabric3/a/A.class"));
+            putEntry(stream, "extensions/b.jar", jar("org/fabric3/b/B.class"));
+            putEntry(stream, "extensions/c.jar", jar("org/fabric3/c/C.class"));
+            // only jars directly in the extensions directory are included
+            putEntry(stream, "extensions/nested/d.jar", jar("org/fabric3/d/D.class"));
+            putEntry(stream, "extensions/readme.txt", "readme".getBytes());
+            putEntry(stream, "lib/e.jar", jar("org/fabric3/e/E.class"));
+        } finally {
+            stream.close();
+        }
+        extension = new File(directory, "b.jar");
+        Files.write(extension.toPath(), jar("org/fabric3/override/B.class"));
+        other = new File(directory, "b.pom");
+        Files.write(other.toPath(), "<project/>".getBytes());
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        delete(directory);
+    }
+
+    private byte[] jar(String... names) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream stream = new ZipOutputStream(bytes);
+        try {
+            for (String name : names) {
+                ZipEntry entry = new ZipEntry(name);
+                entry.setTime(0);
+                stream.putNextEntry(entry);
+                stream.write(name.getBytes());
+                stream.closeEntry();
+            }
+        } finally {
+            stream.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private void putEntry(ZipOutputStream stream, String name, byte[] contents) throws IOException {
+        stream.putNextEntry(new ZipEntry(name));
+        stream.write(contents);
+        stream.closeEntry();
+    }
+
+    private byte[] read(InputStream stream) throws IOException {
+        try {
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while (-1 != (n = stream.read(buffer))) {
+                contents.write(buffer, 0, n);
+            }
+            return contents.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+
+    private long checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    private void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.packager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that the extensions archive written from a staging directory is reproducible when an output timestamp is set.
+ */
+public class Fabric3PackagerMojoTestCase extends TestCase {
+    private static final long TIMESTAMP = 1420070400000L;
+    private static final String[] NAMES = {"extension-c.jar", "extension-a.jar", "extension-b.jar", "extension-d.jar"};
+
+    private File directory;
+
+    public void testStagedArchiveReproducible() throws Exception {
+        Fabric3PackagerMojo mojo = new Fabric3PackagerMojo();
+        mojo.extensionIndex = true;
+        File first = new File(directory, "first");
+        mojo.createExtensionsArchive(stage("first-extensions", false), mkdir(first), TIMESTAMP);
+        File second = new File(directory, "second");
+        mojo.createExtensionsArchive(stage("second-extensions", true), mkdir(second), TIMESTAMP);
+        assertIdentical(first, second);
+    }
+
+    public void testParallelArchiveReproducible() throws Exception {
+        Fabric3PackagerMojo mojo = new Fabric3PackagerMojo();
+        mojo.extensionIndex = true;
+        mojo.compressionThreads = 1;
+        File first = new File(directory, "first");
+        mojo.compressExtensionsArchive(stage("first-extensions", false), mkdir(first), TIMESTAMP);
+        mojo.compressionThreads = 4;
+        File second = new File(directory, "second");
+        mojo.compressExtensionsArchive(stage("second-extensions", true), mkdir(second), TIMESTAMP);
+        assertIdentical(first, second);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = Files.createTempDirectory("packager").toFile();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        delete(directory);
+    }
+
+    /**
+     * Stages the extension jars, creating them in forward or reverse order with different modification times.
+     */
+    private File stage(String name, boolean reverse) throws IOException {
+        File staging = mkdir(new File(directory, name));
+        for (int i = 0; i < NAMES.length; i++) {
+            String jarName = NAMES[reverse ? NAMES.length - 1 - i : i];
+            File file = new File(staging, jarName);
+            Files.write(file.toPath(), jar("org/fabric3/" + jarName.substring(0, jarName.length() - 4).replace('-', '/') + "/Extension.class"));
+            assertTrue(file.setLastModified(TIMESTAMP + (reverse ? i : -i) * 60000L));
+        }
+        return staging;
+    }
+
+    private void assertIdentical(File first, File second) throws IOException {
+        byte[] firstBytes = Files.readAllBytes(new File(first, Fabric3PackagerMojo.F3_EXTENSIONS_JAR).toPath());
+        byte[] secondBytes = Files.readAllBytes(new File(second, Fabric3PackagerMojo.F3_EXTENSIONS_JAR).toPath());
+        assertTrue(Arrays.equals(firstBytes, secondBytes));
+    }
+
+    private byte[] jar(String name) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream stream = new ZipOutputStream(bytes);
+        try {
+            ZipEntry entry = new ZipEntry(name);
+            entry.setTime(TIMESTAMP);
+            stream.putNextEntry(entry);
+            stream.write(name.getBytes());
+            stream.closeEntry();
+        } finally {
+            stream.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private File mkdir(File file) {
+        assertTrue(file.mkdirs());
+        return file;
+    }
+
+    private void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+}
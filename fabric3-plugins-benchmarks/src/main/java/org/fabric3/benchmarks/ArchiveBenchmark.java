@@ -0,0 +1,120 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.fabric3.assembly.FileHelper;
+import org.fabric3.packager.ExtensionsArchiveBuilder;
+import org.fabric3.plugins.common.FileInstaller;
+import org.fabric3.plugins.common.ZipExtractor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures writing f3.extensions.jar from a staging directory with deflated entries, as the packager does by default, against streaming it from the
+ * profile and extension jars with {@link ExtensionsArchiveBuilder}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ArchiveBenchmark {
+    private static final int STAGING_BUFFER = 2048;
+
+    private File work;
+    private File profile;
+    private File[] extensions;
+    private File stagingDirectory;
+    private File archive;
+
+    @Setup
+    public void setUp() throws IOException {
+        work = Distributions.createWorkDirectory("archive");
+        profile = Distributions.createProfile(new File(work, "profile.zip"));
+        extensions = Distributions.createExtensions(new File(work, "extensions"), 20, 60);
+        stagingDirectory = new File(work, "staging");
+        ZipExtractor extractor = new ZipExtractor(1);
+        try {
+            extractor.extract(profile, stagingDirectory);
+        } finally {
+            extractor.shutdown();
+        }
+        stagingDirectory = new File(stagingDirectory, "extensions");
+        for (File extension : extensions) {
+            FileInstaller.copy(extension, new File(stagingDirectory, extension.getName()));
+        }
+        archive = new File(work, "f3.extensions.jar");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileHelper.deleteDirectory(work);
+    }
+
+    @Benchmark
+    public void staged() throws IOException {
+        JarOutputStream jarStream = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(archive)));
+        try {
+            byte[] buffer = new byte[STAGING_BUFFER];
+            for (File file : stagingDirectory.listFiles()) {
+                jarStream.putNextEntry(new JarEntry(file.getName()));
+                InputStream stream = new FileInputStream(file);
+                try {
+                    int n;
+                    while (-1 != (n = stream.read(buffer))) {
+                        jarStream.write(buffer, 0, n);
+                    }
+                } finally {
+                    stream.close();
+                }
+            }
+        } finally {
+            jarStream.close();
+        }
+    }
+
+    @Benchmark
+    public void streamed() throws IOException {
+        ExtensionsArchiveBuilder builder = new ExtensionsArchiveBuilder();
+        builder.addProfile(profile);
+        for (File extension : extensions) {
+            builder.addExtension(extension);
+        }
+        builder.write(archive);
+    }
+
+}
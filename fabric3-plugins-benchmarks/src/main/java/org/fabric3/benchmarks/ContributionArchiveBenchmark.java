@@ -0,0 +1,155 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.fabric3.assembly.FileHelper;
+import org.fabric3.plugins.common.ParallelArchiveWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures writing a contribution archive with a single deflating pass, as the Maven archiver does by default, against the parallel compression path of the
+ * contribution plugin, which writes the archive with stored entries and then rewrites it with {@link ParallelArchiveWriter}. The cost of the extra pass is
+ * the difference between the stored-then-rewritten and the parallel-only results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ContributionArchiveBenchmark {
+    private File work;
+    private File classesDirectory;
+    private List<String> names = new ArrayList<>();
+    private File archive;
+    private File rewritten;
+
+    @Setup
+    public void setUp() throws IOException {
+        work = Distributions.createWorkDirectory("contribution");
+        classesDirectory = new File(work, "classes");
+        File packageDirectory = new File(classesDirectory, "org/fabric3/synthetic");
+        packageDirectory.mkdirs();
+        for (int i = 0; i < 200; i++) {
+            Distributions.createFile(new File(packageDirectory, "Component" + i + ".class"), 4096);
+        }
+        Distributions.createExtensions(new File(classesDirectory, "META-INF/lib"), 30, 80);
+        collect(classesDirectory, "");
+        archive = new File(work, "contribution.jar");
+        rewritten = new File(work, "contribution.jar.tmp");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileHelper.deleteDirectory(work);
+    }
+
+    @Benchmark
+    public void deflated() throws IOException {
+        ZipOutputStream stream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(archive)));
+        try {
+            for (String name : names) {
+                stream.putNextEntry(new ZipEntry(name));
+                stream.write(Files.readAllBytes(new File(classesDirectory, name).toPath()));
+                stream.closeEntry();
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Benchmark
+    public void storedThenParallel() throws IOException {
+        ZipOutputStream stream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(archive)));
+        try {
+            for (String name : names) {
+                byte[] contents = Files.readAllBytes(new File(classesDirectory, name).toPath());
+                CRC32 crc = new CRC32();
+                crc.update(contents);
+                ZipEntry entry = new ZipEntry(name);
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(contents.length);
+                entry.setCrc(crc.getValue());
+                stream.putNextEntry(entry);
+                stream.write(contents);
+                stream.closeEntry();
+            }
+        } finally {
+            stream.close();
+        }
+        ZipFile zipFile = new ZipFile(archive);
+        ParallelArchiveWriter writer = new ParallelArchiveWriter(rewritten, 0);
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                writer.addEntry(zipFile, entries.nextElement());
+            }
+            writer.finish();
+        } finally {
+            writer.close();
+            zipFile.close();
+        }
+    }
+
+    @Benchmark
+    public void parallel() throws IOException {
+        ParallelArchiveWriter writer = new ParallelArchiveWriter(archive, 0);
+        try {
+            for (String name : names) {
+                writer.addFile(name, new File(classesDirectory, name));
+            }
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void collect(File directory, String path) {
+        for (File file : directory.listFiles()) {
+            if (file.isDirectory()) {
+                collect(file, path + file.getName() + "/");
+            } else {
+                names.add(path + file.getName());
+            }
+        }
+    }
+
+}
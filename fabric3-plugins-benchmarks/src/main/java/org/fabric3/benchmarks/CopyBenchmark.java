@@ -0,0 +1,113 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.fabric3.assembly.FileHelper;
+import org.fabric3.plugins.common.FileInstaller;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures installing an artifact into an image by stream copy with various buffer sizes, by channel transfer and by hard link.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CopyBenchmark {
+
+    @Param({"65536", "1048576", "16777216"})
+    public int size;
+
+    private File work;
+    private File source;
+    private File target;
+    private FileInstaller channelInstaller;
+    private FileInstaller linkInstaller;
+
+    /**
+     * The buffer used by the stream copy.
+     */
+    @State(Scope.Benchmark)
+    public static class Buffer {
+        @Param({"2048", "8192", "65536"})
+        public int bufferSize;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        work = Distributions.createWorkDirectory("copy");
+        source = Distributions.createFile(new File(work, "source.jar"), size);
+        File directory = new File(work, "image");
+        directory.mkdirs();
+        target = new File(directory, source.getName());
+        channelInstaller = new FileInstaller(FileInstaller.LinkMode.COPY);
+        linkInstaller = new FileInstaller(FileInstaller.LinkMode.HARDLINK);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileHelper.deleteDirectory(work);
+    }
+
+    @Benchmark
+    public void stream(Buffer buffer) throws IOException {
+        InputStream input = new FileInputStream(source);
+        OutputStream output = new FileOutputStream(target);
+        try {
+            byte[] bytes = new byte[buffer.bufferSize];
+            int n;
+            while (-1 != (n = input.read(bytes))) {
+                output.write(bytes, 0, n);
+            }
+        } finally {
+            output.close();
+            input.close();
+        }
+    }
+
+    @Benchmark
+    public File transfer() throws IOException {
+        return channelInstaller.install(source, target.getParentFile());
+    }
+
+    @Benchmark
+    public File hardLink() throws IOException {
+        return linkInstaller.install(source, target.getParentFile());
+    }
+
+}
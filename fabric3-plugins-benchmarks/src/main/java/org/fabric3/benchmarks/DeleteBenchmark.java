@@ -0,0 +1,77 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.fabric3.assembly.FileHelper;
+import org.fabric3.plugins.common.ZipExtractor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures deleting an extracted runtime image with {@link FileHelper#deleteDirectory(File)}. A fresh image is extracted before each measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+public class DeleteBenchmark {
+    private File work;
+    private File runtime;
+    private File image;
+    private ZipExtractor extractor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        work = Distributions.createWorkDirectory("delete");
+        runtime = Distributions.createRuntime(new File(work, "runtime.zip"));
+        extractor = new ZipExtractor(0);
+    }
+
+    @Setup(Level.Iteration)
+    public void extract() throws IOException {
+        image = new File(work, "image");
+        extractor.extract(runtime, image);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        extractor.shutdown();
+        FileHelper.deleteDirectory(work);
+    }
+
+    @Benchmark
+    public void deleteDirectory() throws IOException {
+        FileHelper.deleteDirectory(image);
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates synthetic archives shaped like Fabric3 runtime and profile distributions.
+ *
+ * Distributions contain nested jars whose entries are filled with bytes drawn from a small alphabet so that they compress roughly as well as class files. A
+ * fixed seed is used so every run measures the same content.
+ */
+public class Distributions {
+    private static final long SEED = 0xFAB3L;
+    private static final int CLASS_SIZE = 2048;
+
+    protected Distributions() {
+    }
+
+    /**
+     * Creates a runtime distribution with boot, host, lib and extension jars, configuration files and launcher scripts.
+     *
+     * @param file the distribution file
+     * @return the distribution file
+     * @throws IOException if the distribution cannot be written
+     */
+    public static File createRuntime(File file) throws IOException {
+        Random random = new Random(SEED);
+        ZipOutputStream stream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            putManifest(stream);
+            putJars(stream, "boot/", 12, 60, random);
+            putJars(stream, "host/", 6, 40, random);
+            putJars(stream, "lib/", 25, 40, random);
+            putJars(stream, "extensions/", 70, 80, random);
+            for (int i = 0; i < 10; i++) {
+                putEntry(stream, "config/config" + i + ".xml", content(4096, random));
+            }
+            putEntry(stream, "runtimes/vm/config/systemConfig.xml", content(2048, random));
+            putEntry(stream, "bin/server.sh", content(1024, random));
+            putEntry(stream, "bin/server.bat", content(1024, random));
+        } finally {
+            stream.close();
+        }
+        return file;
+    }
+
+    /**
+     * Creates a profile distribution containing extension jars.
+     *
+     * @param file the distribution file
+     * @return the distribution file
+     * @throws IOException if the distribution cannot be written
+     */
+    public static File createProfile(File file) throws IOException {
+        Random random = new Random(SEED + 1);
+        ZipOutputStream stream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            putManifest(stream);
+            putJars(stream, "extensions/", 15, 75, random);
+        } finally {
+            stream.close();
+        }
+        return file;
+    }
+
+    /**
+     * Creates extension jars in a directory.
+     *
+     * @param directory the directory
+     * @param count     the number of jars
+     * @param classes   the number of class entries in each jar
+     * @return the jar files
+     * @throws IOException if a jar cannot be written
+     */
+    public static File[] createExtensions(File directory, int count, int classes) throws IOException {
+        Random random = new Random(SEED + 2);
+        directory.mkdirs();
+        File[] files = new File[count];
+        for (int i = 0; i < count; i++) {
+            files[i] = new File(directory, "extension" + i + ".jar");
+            OutputStream stream = new FileOutputStream(files[i]);
+            try {
+                stream.write(jar(classes, random));
+            } finally {
+                stream.close();
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Creates a file of the given size.
+     *
+     * @param file the file
+     * @param size the size in bytes
+     * @return the file
+     * @throws IOException if the file cannot be written
+     */
+    public static File createFile(File file, int size) throws IOException {
+        OutputStream stream = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            stream.write(content(size, new Random(SEED + 3)));
+        } finally {
+            stream.close();
+        }
+        return file;
+    }
+
+    /**
+     * Creates a temporary working directory.
+     *
+     * @param prefix the directory name prefix
+     * @return the directory
+     * @throws IOException if the directory cannot be created
+     */
+    public static File createWorkDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdirs()) {
+            throw new IOException("Unable to create directory: " + directory);
+        }
+        return directory;
+    }
+
+    private static void putManifest(ZipOutputStream stream) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+        stream.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+        manifest.write(stream);
+        stream.closeEntry();
+    }
+
+    private static void putJars(ZipOutputStream stream, String directory, int count, int classes, Random random) throws IOException {
+        stream.putNextEntry(new ZipEntry(directory));
+        stream.closeEntry();
+        for (int i = 0; i < count; i++) {
+            putEntry(stream, directory + directory.substring(0, directory.length() - 1) + i + ".jar", jar(classes, random));
+        }
+    }
+
+    private static void putEntry(ZipOutputStream stream, String name, byte[] contents) throws IOException {
+        stream.putNextEntry(new ZipEntry(name));
+        stream.write(contents);
+        stream.closeEntry();
+    }
+
+    private static byte[] jar(int classes, Random random) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JarOutputStream stream = new JarOutputStream(bytes);
+        for (int i = 0; i < classes; i++) {
+            stream.putNextEntry(new JarEntry("org/fabric3/synthetic/Class" + i + ".class"));
+            stream.write(content(CLASS_SIZE / 2 + random.nextInt(CLASS_SIZE), random));
+            stream.closeEntry();
+        }
+        stream.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] content(int size, Random random) {
+        byte[] contents = new byte[size];
+        for (int i = 0; i < size; i++) {
+            contents[i] = (byte) ('a' + random.nextInt(16));
+        }
+        return contents;
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.fabric3.assembly.FileHelper;
+import org.fabric3.plugins.common.ZipExtractor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures extracting runtime and profile distributions with {@link ZipExtractor} against the sequential loop it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ExtractBenchmark {
+    private static final int SEQUENTIAL_BUFFER = 2048;
+
+    @Param({"runtime", "profile"})
+    public String distribution;
+
+    private File work;
+    private File archive;
+    private File target;
+
+    /**
+     * The extractor, parameterized by the number of worker threads.
+     */
+    @State(Scope.Benchmark)
+    public static class Extractor {
+        @Param({"1", "2", "4", "8"})
+        public int threads;
+
+        private ZipExtractor extractor;
+
+        @Setup
+        public void setUp() {
+            extractor = new ZipExtractor(threads);
+        }
+
+        @TearDown
+        public void tearDown() {
+            extractor.shutdown();
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        work = Distributions.createWorkDirectory("extract");
+        archive = new File(work, distribution + ".zip");
+        if ("runtime".equals(distribution)) {
+            Distributions.createRuntime(archive);
+        } else {
+            Distributions.createProfile(archive);
+        }
+        target = new File(work, "image");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileHelper.deleteDirectory(work);
+    }
+
+    @Benchmark
+    public void parallel(Extractor extractor) throws IOException {
+        extractor.extractor.extract(archive, target);
+    }
+
+    /**
+     * The single-threaded extraction loop previously used by the assembly and packager mojos.
+     *
+     * @throws IOException if there is an error extracting the archive
+     */
+    @Benchmark
+    public void sequential() throws IOException {
+        ZipFile zipFile = new ZipFile(archive);
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                File file = new File(target, entry.getName());
+                if (entry.isDirectory()) {
+                    file.mkdirs();
+                    continue;
+                }
+                if (entry.getName().toUpperCase().endsWith(".MF")) {
+                    continue;
+                }
+                file.getParentFile().mkdirs();
+                InputStream sourceStream = zipFile.getInputStream(entry);
+                OutputStream targetStream = new FileOutputStream(file);
+                try {
+                    byte[] buffer = new byte[SEQUENTIAL_BUFFER];
+                    int n;
+                    while (-1 != (n = sourceStream.read(buffer))) {
+                        targetStream.write(buffer, 0, n);
+                    }
+                } finally {
+                    targetStream.close();
+                    sourceStream.close();
+                }
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+}
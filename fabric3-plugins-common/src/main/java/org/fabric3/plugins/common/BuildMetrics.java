@@ -0,0 +1,278 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.plugins.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Records wall time, bytes read and written, and entry counts for the phases of a build and the artifacts processed in each phase.
+ *
+ * Samples may be recorded concurrently. A summary table can be written to the Maven log and the full set of samples can be written as a JSON report with
+ * {@link Json}.
+ */
+public class BuildMetrics {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int SLOWEST = 10;
+
+    /**
+     * The build phases that are measured.
+     */
+    public enum Phase {
+        RESOLVE, EXTRACT, COPY, ARCHIVE, DELETE;
+
+        public String toString() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    private String goal;
+    private long start = System.nanoTime();
+    private List<Sample> samples = new ArrayList<>();
+
+    /**
+     * Constructor.
+     *
+     * @param goal the goal being measured
+     */
+    public BuildMetrics(String goal) {
+        this.goal = goal;
+    }
+
+    /**
+     * Starts timing an item. The sample is recorded when it is stopped.
+     *
+     * @param phase the build phase
+     * @param item  the artifact or other item being processed
+     * @return the sample
+     */
+    public Sample start(Phase phase, String item) {
+        return new Sample(this, phase, item);
+    }
+
+    /**
+     * Logs a summary of each phase followed by the slowest items.
+     *
+     * @param log  the Maven log
+     * @param info true to log at info level, false to log at debug level
+     */
+    public void log(Log log, boolean info) {
+        if (!info && !log.isDebugEnabled()) {
+            return;
+        }
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("Build metrics for %s (%d ms total)", goal, toMillis(System.nanoTime() - start)));
+        lines.add(String.format("  %-8s %6s %10s %12s %12s %8s %9s", "phase", "items", "time (ms)", "read (KB)", "written (KB)", "entries", "MB/s"));
+        for (Phase phase : Phase.values()) {
+            Totals totals = getTotals(phase);
+            if (totals.items == 0) {
+                continue;
+            }
+            lines.add(String.format("  %-8s %6d %10d %12d %12d %8d %9.1f",
+                                    phase,
+                                    totals.items,
+                                    toMillis(totals.nanos),
+                                    totals.bytesRead / 1024,
+                                    totals.bytesWritten / 1024,
+                                    totals.entries,
+                                    throughput(totals.bytesRead + totals.bytesWritten, totals.nanos)));
+        }
+        List<Sample> slowest = getSamples();
+        Collections.sort(slowest, new Comparator<Sample>() {
+            public int compare(Sample first, Sample second) {
+                return Long.compare(second.nanos, first.nanos);
+            }
+        });
+        if (!slowest.isEmpty()) {
+            lines.add("  slowest items:");
+        }
+        for (Sample sample : slowest.subList(0, Math.min(SLOWEST, slowest.size()))) {
+            lines.add(String.format("  %-8s %8d ms %12d KB %8d entries  %s",
+                                    sample.phase,
+                                    toMillis(sample.nanos),
+                                    (sample.bytesRead + sample.bytesWritten) / 1024,
+                                    sample.entries,
+                                    sample.item));
+        }
+        for (String line : lines) {
+            if (info) {
+                log.info(line);
+            } else {
+                log.debug(line);
+            }
+        }
+    }
+
+    /**
+     * Writes the phase totals and all samples as JSON.
+     *
+     * @param file the report file
+     * @throws IOException if there is an error writing the report
+     */
+    public void write(File file) throws IOException {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("goal", goal);
+        report.put("millis", toMillis(System.nanoTime() - start));
+        List<Object> phases = new ArrayList<>();
+        for (Phase phase : Phase.values()) {
+            Totals totals = getTotals(phase);
+            Map<String, Object> object = new LinkedHashMap<>();
+            object.put("phase", phase.toString());
+            object.put("items", totals.items);
+            phases.add(fields(object, totals.nanos, totals.bytesRead, totals.bytesWritten, totals.entries));
+        }
+        report.put("phases", phases);
+        List<Object> items = new ArrayList<>();
+        for (Sample sample : getSamples()) {
+            Map<String, Object> object = new LinkedHashMap<>();
+            object.put("phase", sample.phase.toString());
+            object.put("item", sample.item);
+            items.add(fields(object, sample.nanos, sample.bytesRead, sample.bytesWritten, sample.entries));
+        }
+        report.put("items", items);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), Json.write(report).getBytes(UTF8));
+    }
+
+    private synchronized void record(Sample sample) {
+        samples.add(sample);
+    }
+
+    private synchronized List<Sample> getSamples() {
+        return new ArrayList<>(samples);
+    }
+
+    private Totals getTotals(Phase phase) {
+        Totals totals = new Totals();
+        for (Sample sample : getSamples()) {
+            if (sample.phase == phase) {
+                totals.items++;
+                totals.nanos += sample.nanos;
+                totals.bytesRead += sample.bytesRead;
+                totals.bytesWritten += sample.bytesWritten;
+                totals.entries += sample.entries;
+            }
+        }
+        return totals;
+    }
+
+    private Map<String, Object> fields(Map<String, Object> object, long nanos, long bytesRead, long bytesWritten, long entries) {
+        object.put("millis", toMillis(nanos));
+        object.put("bytesRead", bytesRead);
+        object.put("bytesWritten", bytesWritten);
+        object.put("entries", entries);
+        return object;
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos / 1000000;
+    }
+
+    private static double throughput(long bytes, long nanos) {
+        return nanos == 0 ? 0 : (bytes / (1024.0 * 1024.0)) / (nanos / 1000000000.0);
+    }
+
+    /**
+     * The measurements for a single item in a phase.
+     */
+    public static class Sample {
+        private BuildMetrics metrics;
+        private Phase phase;
+        private String item;
+        private long started;
+        private long nanos;
+        private long bytesRead;
+        private long bytesWritten;
+        private long entries;
+        private boolean stopped;
+
+        private Sample(BuildMetrics metrics, Phase phase, String item) {
+            this.metrics = metrics;
+            this.phase = phase;
+            this.item = item;
+            this.started = System.nanoTime();
+        }
+
+        /**
+         * Adds to the number of bytes read.
+         *
+         * @param bytes the number of bytes
+         * @return this sample
+         */
+        public Sample read(long bytes) {
+            bytesRead += bytes;
+            return this;
+        }
+
+        /**
+         * Adds to the number of bytes written.
+         *
+         * @param bytes the number of bytes
+         * @return this sample
+         */
+        public Sample written(long bytes) {
+            bytesWritten += bytes;
+            return this;
+        }
+
+        /**
+         * Adds to the number of entries or files processed.
+         *
+         * @param count the number of entries
+         * @return this sample
+         */
+        public Sample entries(long count) {
+            entries += count;
+            return this;
+        }
+
+        /**
+         * Stops timing and records the sample. Subsequent calls have no effect.
+         */
+        public void stop() {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            nanos = System.nanoTime() - started;
+            metrics.record(this);
+        }
+    }
+
+    /**
+     * The totals for a phase.
+     */
+    private static class Totals {
+        private int items;
+        private long nanos;
+        private long bytesRead;
+        private long bytesWritten;
+        private long entries;
+    }
+
+}
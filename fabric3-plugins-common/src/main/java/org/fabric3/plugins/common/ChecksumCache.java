@@ -0,0 +1,151 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.plugins.common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.SessionData;
+
+/**
+ * Caches the SHA-256 checksums of source files in the repository session so that each file is read for its checksum at most once per build, across modules
+ * and plugin executions.
+ *
+ * Checksums are keyed by the absolute path, size and modification time of the file, so a file that changes is read again. Callers that already read a file,
+ * for example to copy it, compute its checksum in the same pass with {@link #createDigest()} and record it with {@link #put(File, String)}. Like the
+ * {@link ResolutionCache}, the cache holds only JDK types so that it can be shared by the Fabric3 plugins.
+ */
+public class ChecksumCache {
+    private static final String KEY = "org.fabric3.plugins.checksums";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int BUFFER = 64 * 1024;
+
+    private ConcurrentMap<String, String> checksums;
+
+    /**
+     * Constructor.
+     *
+     * @param session the current repository session, which holds the cache
+     */
+    public ChecksumCache(RepositorySystemSession session) {
+        this.checksums = getChecksums(session);
+    }
+
+    /**
+     * Returns the cached checksum of a file.
+     *
+     * @param file the file
+     * @return the checksum as lowercase hex or null if the file has not been read
+     */
+    public String get(File file) {
+        return checksums.get(getKey(file));
+    }
+
+    /**
+     * Records the checksum of a file computed by the caller.
+     *
+     * @param file     the file
+     * @param checksum the checksum as lowercase hex
+     */
+    public void put(File file, String checksum) {
+        checksums.put(getKey(file), checksum);
+    }
+
+    /**
+     * Returns the checksum of a file, reading it if it is not cached.
+     *
+     * @param file the file
+     * @return the checksum as lowercase hex
+     * @throws IOException if the file cannot be read
+     */
+    public String compute(File file) throws IOException {
+        String key = getKey(file);
+        String checksum = checksums.get(key);
+        if (checksum != null) {
+            return checksum;
+        }
+        MessageDigest digest = createDigest();
+        InputStream stream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER];
+            int n;
+            while ((n = stream.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            stream.close();
+        }
+        checksum = toHex(digest.digest());
+        checksums.put(key, checksum);
+        return checksum;
+    }
+
+    /**
+     * Returns a new SHA-256 digest.
+     *
+     * @return the digest
+     */
+    public static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Returns a digest as lowercase hex.
+     *
+     * @param bytes the digest
+     * @return the hex string
+     */
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private String getKey(File file) {
+        return file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentMap<String, String> getChecksums(RepositorySystemSession session) {
+        SessionData data = session.getData();
+        while (true) {
+            Object current = data.get(KEY);
+            if (current != null) {
+                return (ConcurrentMap<String, String>) current;
+            }
+            ConcurrentMap<String, String> checksums = new ConcurrentHashMap<>();
+            if (data.set(KEY, null, checksums)) {
+                return checksums;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.plugins.common;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Tracks the number of bytes written to an underlying stream, for example to record the offsets of archive entries or the size of a compressed layer.
+ */
+public class CountingOutputStream extends FilterOutputStream {
+    private long count;
+
+    /**
+     * Constructor.
+     *
+     * @param out the underlying stream
+     */
+    public CountingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Returns the number of bytes written.
+     *
+     * @return the number of bytes
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public void write(int b) throws IOException {
+        out.write(b);
+        count++;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        count += len;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.plugins.common;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+
+/**
+ * Installs files into a target directory by copying or linking them.
+ *
+ * Copies are made with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} so the kernel can move the bytes without passing them
+ * through the heap, unless a digest of the contents is computed during the copy. Hard links fall back to a copy when the source and target are on different
+ * file systems or linking is not supported.
+ *
+ * An existing target is always replaced rather than written through, since it may be a link into the local repository. A failure to close a copied target,
+ * such as a failed flush on a full disk, fails the copy.
+ */
+public class FileInstaller {
+    private static final int BUFFER = 64 * 1024;
+
+    /**
+     * The ways a file can be installed.
+     */
+    public enum LinkMode {
+        COPY, HARDLINK, SYMLINK;
+
+        /**
+         * Returns the mode for a configuration value.
+         *
+         * @param value the value, case insensitive
+         * @return the mode
+         * @throws IllegalArgumentException if the value is not a valid mode
+         */
+        public static LinkMode parse(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    private LinkMode mode;
+
+    /**
+     * Constructor.
+     *
+     * @param mode the install mode
+     */
+    public FileInstaller(LinkMode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Installs a file into a directory using the configured mode. The installed file has the same name as the source.
+     *
+     * @param source    the source file
+     * @param directory the target directory
+     * @return the installed file
+     * @throws IOException if there is an error installing the file
+     */
+    public File install(File source, File directory) throws IOException {
+        File target = new File(directory, source.getName());
+        Path targetPath = target.toPath();
+        Files.deleteIfExists(targetPath);
+        switch (mode) {
+            case SYMLINK:
+                Files.createSymbolicLink(targetPath, source.getAbsoluteFile().toPath());
+                break;
+            case HARDLINK:
+                try {
+                    Files.createLink(targetPath, source.toPath());
+                } catch (IOException | UnsupportedOperationException e) {
+                    // different file stores or links not supported
+                    copy(source, target);
+                }
+                break;
+            default:
+                copy(source, target);
+        }
+        return target;
+    }
+
+    /**
+     * Copies a file, replacing the target if it exists.
+     *
+     * @param source the source file
+     * @param target the target file
+     * @throws IOException if there is an error copying the file
+     */
+    public static void copy(File source, File target) throws IOException {
+        Files.deleteIfExists(target.toPath());
+        FileChannel sourceChannel = null;
+        FileChannel targetChannel = null;
+        try {
+            sourceChannel = new FileInputStream(source).getChannel();
+            targetChannel = new FileOutputStream(target).getChannel();
+            long size = sourceChannel.size();
+            long position = 0;
+            while (position < size) {
+                position += sourceChannel.transferTo(position, size - position, targetChannel);
+            }
+            targetChannel.close();
+            targetChannel = null;
+        } finally {
+            // the target is only still open if the copy has already failed
+            close(targetChannel);
+            close(sourceChannel);
+        }
+    }
+
+    /**
+     * Copies a file, replacing the target if it exists, and updates a digest with its contents in the same pass so the file does not need to be read again
+     * to compute its checksum.
+     *
+     * @param source the source file
+     * @param target the target file
+     * @param digest the digest to update
+     * @throws IOException if there is an error copying the file
+     */
+    public static void copy(File source, File target, MessageDigest digest) throws IOException {
+        Files.deleteIfExists(target.toPath());
+        InputStream sourceStream = null;
+        OutputStream targetStream = null;
+        try {
+            sourceStream = new FileInputStream(source);
+            targetStream = new FileOutputStream(target);
+            byte[] buffer = new byte[BUFFER];
+            int n;
+            while ((n = sourceStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+                targetStream.write(buffer, 0, n);
+            }
+            targetStream.close();
+            targetStream = null;
+        } finally {
+            // the target is only still open if the copy has already failed
+            close(targetStream);
+            close(sourceStream);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+}
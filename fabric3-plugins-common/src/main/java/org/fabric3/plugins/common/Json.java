@@ -0,0 +1,333 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.plugins.common;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes JSON documents, such as the documents of an OCI image layout and the build metrics report.
+ *
+ * Objects are read as ordered maps, arrays as lists, integers as longs and other numbers as big decimals. Documents are written without whitespace, keeping
+ * the order of object members, so the same value always produces the same bytes.
+ */
+public class Json {
+
+    protected Json() {
+    }
+
+    /**
+     * Parses a JSON document.
+     *
+     * @param text the document
+     * @return the value
+     * @throws IOException if the document is not valid JSON
+     */
+    public static Object parse(String text) throws IOException {
+        Parser parser = new Parser(text);
+        Object value = parser.readValue();
+        parser.skipWhitespace();
+        if (parser.position < text.length()) {
+            throw parser.error("Unexpected content");
+        }
+        return value;
+    }
+
+    /**
+     * Writes a value as JSON. The value may be a map with string keys, a list, a string, a number, a boolean or null.
+     *
+     * @param value the value
+     * @return the document
+     */
+    public static String write(Object value) {
+        StringBuilder builder = new StringBuilder();
+        write(value, builder);
+        return builder.toString();
+    }
+
+    /**
+     * Returns the object member of an object, creating it if it is not present.
+     *
+     * @param object the object
+     * @param name   the member name
+     * @return the member
+     * @throws IOException if the member is not an object
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> getObject(Map<String, Object> object, String name) throws IOException {
+        Object member = object.get(name);
+        if (member == null) {
+            Map<String, Object> created = new LinkedHashMap<>();
+            object.put(name, created);
+            return created;
+        } else if (!(member instanceof Map)) {
+            throw new IOException("Expected an object for " + name);
+        }
+        return (Map<String, Object>) member;
+    }
+
+    /**
+     * Returns the array member of an object, creating it if it is not present.
+     *
+     * @param object the object
+     * @param name   the member name
+     * @return the member
+     * @throws IOException if the member is not an array
+     */
+    @SuppressWarnings("unchecked")
+    public static List<Object> getArray(Map<String, Object> object, String name) throws IOException {
+        Object member = object.get(name);
+        if (member == null) {
+            List<Object> created = new ArrayList<>();
+            object.put(name, created);
+            return created;
+        } else if (!(member instanceof List)) {
+            throw new IOException("Expected an array for " + name);
+        }
+        return (List<Object>) member;
+    }
+
+    private static void write(Object value, StringBuilder builder) {
+        if (value == null) {
+            builder.append("null");
+        } else if (value instanceof String) {
+            quote((String) value, builder);
+        } else if (value instanceof Number || value instanceof Boolean) {
+            builder.append(value);
+        } else if (value instanceof Map) {
+            builder.append('{');
+            String separator = "";
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                builder.append(separator);
+                quote(entry.getKey().toString(), builder);
+                builder.append(':');
+                write(entry.getValue(), builder);
+                separator = ",";
+            }
+            builder.append('}');
+        } else if (value instanceof List) {
+            builder.append('[');
+            String separator = "";
+            for (Object element : (List<?>) value) {
+                builder.append(separator);
+                write(element, builder);
+                separator = ",";
+            }
+            builder.append(']');
+        } else {
+            throw new IllegalArgumentException("Unsupported JSON value: " + value.getClass().getName());
+        }
+    }
+
+    private static void quote(String value, StringBuilder builder) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+
+    /**
+     * A recursive descent parser over the document text.
+     */
+    private static class Parser {
+        private String text;
+        private int position;
+
+        private Parser(String text) {
+            this.text = text;
+        }
+
+        private Object readValue() throws IOException {
+            skipWhitespace();
+            if (position >= text.length()) {
+                throw error("Unexpected end of document");
+            }
+            char c = text.charAt(position);
+            switch (c) {
+                case '{':
+                    return readObject();
+                case '[':
+                    return readArray();
+                case '"':
+                    return readString();
+                case 't':
+                    expect("true");
+                    return Boolean.TRUE;
+                case 'f':
+                    expect("false");
+                    return Boolean.FALSE;
+                case 'n':
+                    expect("null");
+                    return null;
+                default:
+                    return readNumber();
+            }
+        }
+
+        private Map<String, Object> readObject() throws IOException {
+            Map<String, Object> object = new LinkedHashMap<>();
+            position++;
+            skipWhitespace();
+            if (peek() == '}') {
+                position++;
+                return object;
+            }
+            while (true) {
+                skipWhitespace();
+                if (peek() != '"') {
+                    throw error("Expected a member name");
+                }
+                String name = readString();
+                skipWhitespace();
+                if (peek() != ':') {
+                    throw error("Expected ':'");
+                }
+                position++;
+                object.put(name, readValue());
+                skipWhitespace();
+                char c = peek();
+                position++;
+                if (c == '}') {
+                    return object;
+                } else if (c != ',') {
+                    throw error("Expected ',' or '}'");
+                }
+            }
+        }
+
+        private List<Object> readArray() throws IOException {
+            List<Object> array = new ArrayList<>();
+            position++;
+            skipWhitespace();
+            if (peek() == ']') {
+                position++;
+                return array;
+            }
+            while (true) {
+                array.add(readValue());
+                skipWhitespace();
+                char c = peek();
+                position++;
+                if (c == ']') {
+                    return array;
+                } else if (c != ',') {
+                    throw error("Expected ',' or ']'");
+                }
+            }
+        }
+
+        private String readString() throws IOException {
+            StringBuilder builder = new StringBuilder();
+            position++;
+            while (true) {
+                char c = peek();
+                position++;
+                if (c == '"') {
+                    return builder.toString();
+                } else if (c == '\\') {
+                    char escaped = peek();
+                    position++;
+                    switch (escaped) {
+                        case 'b':
+                            builder.append('\b');
+                            break;
+                        case 'f':
+                            builder.append('\f');
+                            break;
+                        case 'n':
+                            builder.append('\n');
+                            break;
+                        case 'r':
+                            builder.append('\r');
+                            break;
+                        case 't':
+                            builder.append('\t');
+                            break;
+                        case 'u':
+                            if (position + 4 > text.length()) {
+                                throw error("Invalid escape");
+                            }
+                            try {
+                                builder.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                            } catch (NumberFormatException e) {
+                                throw error("Invalid escape");
+                            }
+                            position += 4;
+                            break;
+                        default:
+                            builder.append(escaped);
+                    }
+                } else {
+                    builder.append(c);
+                }
+            }
+        }
+
+        private Number readNumber() throws IOException {
+            int start = position;
+            while (position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0) {
+                position++;
+            }
+            String number = text.substring(start, position);
+            try {
+                if (number.matches("-?\\d+") && number.length() < 19) {
+                    return Long.parseLong(number);
+                }
+                return new BigDecimal(number);
+            } catch (NumberFormatException e) {
+                throw error("Invalid value");
+            }
+        }
+
+        private void expect(String literal) throws IOException {
+            if (!text.startsWith(literal, position)) {
+                throw error("Invalid value");
+            }
+            position += literal.length();
+        }
+
+        private char peek() throws IOException {
+            if (position >= text.length()) {
+                throw error("Unexpected end of document");
+            }
+            return text.charAt(position);
+        }
+
+        private void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        private IOException error(String message) {
+            return new IOException(message + " at offset " + position);
+        }
+    }
+
+}
@@ -0,0 +1,339 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.plugins.common;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reads a zip archive through a read-only memory mapping.
+ *
+ * The central directory is parsed directly from the mapping. Stored entries are copied from the mapping through a caller-supplied heap buffer, so that their
+ * CRC-32 is computed in the same pass; deflated entries are inflated with a caller-supplied {@link Inflater} so that inflaters can be pooled. The CRC-32 of
+ * each entry is checked as it is written. The mapping may be read by several threads at once, since each read works on its own view of the buffer.
+ *
+ * A mapping keeps the archive open, and on Windows prevents it from being deleted or replaced, until it is released. {@link #close()} releases the mapping
+ * immediately where the JVM allows it and otherwise leaves it to be released when the buffer is garbage collected. It must not be called while entries are
+ * being extracted.
+ *
+ * Archives that need zip64 extensions, are larger than 2 GB, or contain encrypted entries are not supported; {@link #open(File)} returns null for them so
+ * callers can fall back to {@link java.util.zip.ZipFile}.
+ */
+public class MappedZip implements Closeable {
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CEN_SIGNATURE = 0x02014b50;
+    private static final int LOC_SIGNATURE = 0x04034b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int CEN_SIZE = 46;
+    private static final int LOC_SIZE = 30;
+    private static final int MAX_COMMENT = 0xffff;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File file;
+    private MappedByteBuffer mapping;
+    private ByteBuffer buffer;
+    private List<Entry> entries;
+
+    /**
+     * An entry in the central directory.
+     */
+    public static class Entry extends ZipEntry {
+        private long localOffset;
+
+        private Entry(String name, long localOffset) {
+            super(name);
+            this.localOffset = localOffset;
+        }
+    }
+
+    private MappedZip(File file, MappedByteBuffer mapping, List<Entry> entries) {
+        this.file = file;
+        this.mapping = mapping;
+        this.buffer = mapping;
+        this.entries = entries;
+    }
+
+    /**
+     * Maps an archive and reads its central directory.
+     *
+     * @param file the archive
+     * @return the archive or null if it uses features this reader does not support
+     * @throws IOException if the archive cannot be read or is not a valid zip file
+     */
+    public static MappedZip open(File file) throws IOException {
+        MappedByteBuffer buffer;
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return null;
+            }
+            // the mapping remains valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            stream.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        List<Entry> entries = null;
+        try {
+            entries = readDirectory(file, buffer);
+        } finally {
+            if (entries == null) {
+                unmap(buffer);
+            }
+        }
+        return entries == null ? null : new MappedZip(file, buffer, entries);
+    }
+
+    /**
+     * Reads the central directory of a mapped archive.
+     *
+     * @param file   the archive
+     * @param buffer the mapping
+     * @return the entries or null if the archive uses features this reader does not support
+     * @throws IOException if the archive is not a valid zip file
+     */
+    private static List<Entry> readDirectory(File file, ByteBuffer buffer) throws IOException {
+        int eocd = findEndOfCentralDirectory(buffer);
+        if (eocd < 0) {
+            throw new ZipException("Not a zip file: " + file);
+        }
+        int count = buffer.getShort(eocd + 10) & 0xffff;
+        long directorySize = buffer.getInt(eocd + 12) & 0xffffffffL;
+        long directoryOffset = buffer.getInt(eocd + 16) & 0xffffffffL;
+        if (count == 0xffff || directorySize == 0xffffffffL || directoryOffset == 0xffffffffL) {
+            // zip64
+            return null;
+        }
+        if (directoryOffset + directorySize > eocd) {
+            throw new ZipException("Invalid central directory: " + file);
+        }
+        List<Entry> entries = new ArrayList<>(count);
+        int position = (int) directoryOffset;
+        byte[] nameBytes = new byte[256];
+        for (int i = 0; i < count; i++) {
+            if (position + CEN_SIZE > eocd || buffer.getInt(position) != CEN_SIGNATURE) {
+                throw new ZipException("Invalid central directory entry in " + file);
+            }
+            int flags = buffer.getShort(position + 8) & 0xffff;
+            int method = buffer.getShort(position + 10) & 0xffff;
+            long crc = buffer.getInt(position + 16) & 0xffffffffL;
+            long compressedSize = buffer.getInt(position + 20) & 0xffffffffL;
+            long size = buffer.getInt(position + 24) & 0xffffffffL;
+            int nameLength = buffer.getShort(position + 28) & 0xffff;
+            int extraLength = buffer.getShort(position + 30) & 0xffff;
+            int commentLength = buffer.getShort(position + 32) & 0xffff;
+            if ((long) position + CEN_SIZE + nameLength + extraLength + commentLength > eocd) {
+                throw new ZipException("Invalid central directory entry in " + file);
+            }
+            long localOffset = buffer.getInt(position + 42) & 0xffffffffL;
+            if ((flags & 1) != 0 || compressedSize == 0xffffffffL || size == 0xffffffffL || localOffset == 0xffffffffL) {
+                // encrypted or zip64
+                return null;
+            }
+            if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+                return null;
+            }
+            if (nameBytes.length < nameLength) {
+                nameBytes = new byte[nameLength];
+            }
+            ByteBuffer view = buffer.duplicate();
+            view.position(position + CEN_SIZE);
+            view.get(nameBytes, 0, nameLength);
+            Entry entry = new Entry(new String(nameBytes, 0, nameLength, UTF8), localOffset);
+            entry.setMethod(method);
+            entry.setCrc(crc);
+            entry.setSize(size);
+            entry.setCompressedSize(compressedSize);
+            entries.add(entry);
+            position += CEN_SIZE + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    /**
+     * Releases the mapping. Entries must not be extracted once the mapping has been released.
+     */
+    public void close() {
+        if (mapping != null) {
+            buffer = null;
+            unmap(mapping);
+            mapping = null;
+        }
+    }
+
+    /**
+     * Returns the entries in central directory order.
+     *
+     * @return the entries
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Writes the contents of an entry to a file, replacing the file if it exists. The CRC-32 of the contents is computed as they are written and checked
+     * against the central directory.
+     *
+     * @param entry    the entry
+     * @param target   the target file
+     * @param inflater the inflater for deflated entries, which is reset before use
+     * @param input    a buffer for compressed data
+     * @param output   a buffer for inflated data
+     * @throws IOException if there is an error reading the entry or writing the file, or the contents do not match the recorded CRC-32
+     */
+    public void extract(Entry entry, File target, Inflater inflater, byte[] input, byte[] output) throws IOException {
+        ByteBuffer data = getData(entry);
+        CRC32 crc = new CRC32();
+        FileOutputStream stream = new FileOutputStream(target);
+        try {
+            if (entry.getMethod() == ZipEntry.STORED) {
+                // copied through the output buffer so the checksum is computed in the same pass
+                while (data.hasRemaining()) {
+                    int length = Math.min(data.remaining(), output.length);
+                    data.get(output, 0, length);
+                    crc.update(output, 0, length);
+                    stream.write(output, 0, length);
+                }
+            } else {
+                inflate(entry, data, stream, inflater, input, output, crc);
+            }
+        } finally {
+            stream.close();
+        }
+        if (crc.getValue() != entry.getCrc()) {
+            throw new ZipException("Invalid CRC-32 for " + entry.getName() + " in " + file);
+        }
+    }
+
+    private void inflate(Entry entry, ByteBuffer data, FileOutputStream stream, Inflater inflater, byte[] input, byte[] output, CRC32 crc)
+            throws IOException {
+        inflater.reset();
+        long written = 0;
+        boolean padded = false;
+        try {
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    int length = Math.min(data.remaining(), input.length);
+                    if (length > 0) {
+                        data.get(input, 0, length);
+                        inflater.setInput(input, 0, length);
+                    } else if (!padded) {
+                        // raw inflaters may need one byte past the end of the compressed data
+                        input[0] = 0;
+                        inflater.setInput(input, 0, 1);
+                        padded = true;
+                    } else {
+                        throw new ZipException("Unexpected end of entry " + entry.getName() + " in " + file);
+                    }
+                }
+                int n = inflater.inflate(output);
+                if (n > 0) {
+                    crc.update(output, 0, n);
+                    stream.write(output, 0, n);
+                    written += n;
+                } else if (inflater.needsDictionary()) {
+                    throw new ZipException("Invalid compressed data for " + entry.getName() + " in " + file);
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid compressed data for " + entry.getName() + " in " + file + ": " + e.getMessage());
+        }
+        if (written != entry.getSize()) {
+            throw new ZipException("Invalid size for " + entry.getName() + " in " + file);
+        }
+    }
+
+    private ByteBuffer getData(Entry entry) throws ZipException {
+        ByteBuffer buffer = this.buffer;
+        if (buffer == null) {
+            throw new ZipException("Mapping of " + file + " has been released");
+        }
+        long offset = entry.localOffset;
+        if (offset + LOC_SIZE > buffer.limit() || buffer.getInt((int) offset) != LOC_SIGNATURE) {
+            throw new ZipException("Invalid local header for " + entry.getName() + " in " + file);
+        }
+        int nameLength = buffer.getShort((int) offset + 26) & 0xffff;
+        int extraLength = buffer.getShort((int) offset + 28) & 0xffff;
+        long start = offset + LOC_SIZE + nameLength + extraLength;
+        long end = start + entry.getCompressedSize();
+        if (end > buffer.limit()) {
+            throw new ZipException("Truncated entry " + entry.getName() + " in " + file);
+        }
+        ByteBuffer data = buffer.duplicate();
+        data.limit((int) end);
+        data.position((int) start);
+        return data;
+    }
+
+    /**
+     * Releases a mapping without waiting for it to be garbage collected. The JDK provides no supported way to do this, so the buffer cleaner is invoked
+     * reflectively; if that is not permitted the mapping is released when the buffer is collected.
+     */
+    private static void unmap(MappedByteBuffer mapping) {
+        try {
+            try {
+                // Java 9 and later
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                invokeCleaner.invoke(field.get(null), mapping);
+            } catch (NoSuchMethodException e) {
+                // Java 8 and earlier
+                Method cleanerMethod = mapping.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(mapping);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (Exception e) {
+            // not permitted by the JVM; the mapping is released when the buffer is collected
+        }
+    }
+
+    private static int findEndOfCentralDirectory(ByteBuffer buffer) {
+        int last = buffer.limit() - EOCD_SIZE;
+        int first = Math.max(0, last - MAX_COMMENT);
+        for (int position = last; position >= first; position--) {
+            if (buffer.getInt(position) == EOCD_SIGNATURE) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+}
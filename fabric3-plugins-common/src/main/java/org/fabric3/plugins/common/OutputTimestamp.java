@@ -0,0 +1,64 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.plugins.common;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+/**
+ * Helper methods for working with the timestamp used to produce reproducible archives.
+ */
+public class OutputTimestamp {
+
+    protected OutputTimestamp() {
+    }
+
+    /**
+     * Parses an output timestamp, which may be an ISO 8601 date-time with an offset, such as <code>2015-01-01T00:00:00Z</code>, or a number of seconds since
+     * the epoch.
+     *
+     * @param value the timestamp
+     * @return the timestamp in milliseconds since the epoch
+     * @throws IllegalArgumentException if the timestamp is not valid
+     */
+    public static long parse(String value) {
+        String trimmed = value.trim();
+        if (trimmed.matches("\\d+")) {
+            return Long.parseLong(trimmed) * 1000;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX");
+        format.setLenient(false);
+        try {
+            return format.parse(trimmed).getTime();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Invalid output timestamp: " + value);
+        }
+    }
+
+    /**
+     * Converts a timestamp to the value to set on a zip entry. Zip entries store local date and time fields, so the timestamp is shifted by the default
+     * time zone offset to produce the same bytes regardless of where the build runs.
+     *
+     * @param timestamp the timestamp in milliseconds since the epoch
+     * @return the zip entry time
+     */
+    public static long toZipTime(long timestamp) {
+        return timestamp - TimeZone.getDefault().getOffset(timestamp);
+    }
+
+}
@@ -0,0 +1,659 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.plugins.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Writes a zip archive, compressing entries in parallel on a worker pool.
+ *
+ * Each entry is compressed independently as soon as it is added. The compressed blocks are then appended in the order the entries were added, with their
+ * CRCs and sizes in the local header, so the archive does not depend on the number of threads. Files larger than 16 MB, or of unknown size, are compressed
+ * on the writing thread as they are read rather than held in memory; their local header is completed once the data has been written.
+ *
+ * The entries waiting to be written are limited by the memory they may hold rather than by their number. An entry being compressed holds its contents and
+ * its compressed form, so twice its size is reserved until it is written, and no more than 64 MB is reserved at a time. Entries are written, waiting for
+ * their compression to complete, until there is room for the next entry.
+ *
+ * Compression rules select the method and level by entry name. Entries that do not match a rule are deflated at the default level, and deflated entries that
+ * do not shrink are stored. Archives that would need zip64 extensions are not supported.
+ */
+public class ParallelArchiveWriter implements Closeable {
+    private static final int LOC_SIGNATURE = 0x04034b50;
+    private static final int CEN_SIGNATURE = 0x02014b50;
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int VERSION = 20;
+    private static final int UTF8_FLAG = 0x0800;
+    private static final int DIRECTORY_ATTRIBUTE = 0x10;
+    private static final long MAX_OFFSET = 0xffffffffL;
+    private static final int MAX_ENTRIES = 0xffff;
+    private static final int BUFFER = 64 * 1024;
+    private static final long MAX_BUFFERED = 16 * 1024 * 1024;
+    private static final long MAX_RESERVED = 4 * MAX_BUFFERED;
+    private static final long TERMINATION_TIMEOUT = 60;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File archive;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long position;
+    private ExecutorService executor;
+    private int window;
+    private long reserved;
+    private Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private List<Rule> rules = new ArrayList<>();
+    private long timestamp = -1;
+    private Deque<Entry> pending = new ArrayDeque<>();
+    private List<Entry> written = new ArrayList<>();
+    private ByteBuffer header = ByteBuffer.allocate(BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * An archive entry. The location, sizes and CRC are available once the entry has been written.
+     */
+    public static class Entry {
+        private String name;
+        private byte[] nameBytes;
+        private int method;
+        private int level;
+        private long dosTime;
+        private Source source;
+        private Future<byte[]> data;
+        private long reservation;
+        private long headerOffset;
+        private long offset;
+        private long size;
+        private long compressedSize;
+        private long crc;
+
+        private Entry(String name, int method, int level, long time, Source source) {
+            this.name = name;
+            this.nameBytes = name.getBytes(UTF8);
+            this.method = method;
+            this.level = level;
+            this.dosTime = toDosTime(time);
+            this.source = source;
+        }
+
+        /**
+         * Returns the entry name.
+         *
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the compression method, {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}.
+         *
+         * @return the method
+         */
+        public int getMethod() {
+            return method;
+        }
+
+        /**
+         * Returns the offset of the entry data in the archive.
+         *
+         * @return the offset
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Returns the uncompressed size.
+         *
+         * @return the size
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns the compressed size.
+         *
+         * @return the compressed size
+         */
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        /**
+         * Returns the CRC-32 of the uncompressed data.
+         *
+         * @return the CRC
+         */
+        public long getCrc() {
+            return crc;
+        }
+
+        private boolean isDirectory() {
+            return source == null;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param archive the archive to write, which is replaced if it exists
+     * @param threads the number of compression threads. If less than 1, the number of available processors is used.
+     * @throws IOException if the archive cannot be created
+     */
+    public ParallelArchiveWriter(File archive, int threads) throws IOException {
+        int parallelism = threads < 1 ? Runtime.getRuntime().availableProcessors() : threads;
+        this.archive = archive;
+        this.file = new RandomAccessFile(archive, "rw");
+        this.file.setLength(0);
+        this.channel = file.getChannel();
+        this.executor = Executors.newFixedThreadPool(parallelism);
+        // bounds the number of entries waiting to be written; the memory they hold is bounded by MAX_RESERVED
+        this.window = parallelism * 4;
+    }
+
+    /**
+     * Adds a compression rule. A rule has the form <code>pattern=method</code>, where the method is <code>stored</code>, <code>deflated</code> or a
+     * deflate level from 0 to 9. The pattern may use <code>*</code> and <code>?</code> within a path segment and <code>**</code> across segments. A pattern
+     * without a <code>/</code> is matched against the last segment of the entry name, so <code>*.jar</code> matches jars in any directory. The first
+     * matching rule applies.
+     *
+     * @param rule the rule
+     * @throws IllegalArgumentException if the rule is not valid
+     */
+    public void addRule(String rule) {
+        int separator = rule.lastIndexOf('=');
+        if (separator <= 0) {
+            throw new IllegalArgumentException("Invalid compression rule: " + rule);
+        }
+        String pattern = rule.substring(0, separator).trim();
+        String value = rule.substring(separator + 1).trim().toLowerCase();
+        int method;
+        int level = Deflater.DEFAULT_COMPRESSION;
+        if ("stored".equals(value)) {
+            method = ZipEntry.STORED;
+        } else if ("deflated".equals(value)) {
+            method = ZipEntry.DEFLATED;
+        } else if (value.matches("[0-9]")) {
+            method = ZipEntry.DEFLATED;
+            level = Integer.parseInt(value);
+        } else {
+            throw new IllegalArgumentException("Invalid compression rule: " + rule);
+        }
+        // directory tree wildcards are replaced first so that their expansion is not matched as a segment wildcard
+        String regex = Pattern.quote(pattern).replace("**", "\u0000").replace("*", "\\E[^/]*\\Q").replace("?", "\\E[^/]\\Q").replace("\u0000", "\\E.*\\Q");
+        rules.add(new Rule(Pattern.compile(regex), pattern.indexOf('/') < 0, method, level));
+    }
+
+    /**
+     * Sets the time for all entries. Otherwise files keep their modification time and copied entries keep their original time.
+     *
+     * @param timestamp the time in milliseconds since the epoch, as returned by {@link OutputTimestamp#toZipTime(long)}
+     */
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Adds a directory entry.
+     *
+     * @param name the directory name
+     * @return the entry
+     * @throws IOException if there is an error writing a preceding entry
+     */
+    public Entry addDirectory(String name) throws IOException {
+        String directory = name.endsWith("/") ? name : name + "/";
+        Entry entry = new Entry(directory, ZipEntry.STORED, 0, getTime(System.currentTimeMillis()), null);
+        return add(entry);
+    }
+
+    /**
+     * Adds a file.
+     *
+     * @param name the entry name
+     * @param file the file
+     * @return the entry
+     * @throws IOException if there is an error writing a preceding entry
+     */
+    public Entry addFile(String name, final File file) throws IOException {
+        Source source = new Source() {
+            public InputStream open() throws IOException {
+                return new FileInputStream(file);
+            }
+
+            public long length() {
+                return file.length();
+            }
+        };
+        return add(createEntry(name, getTime(file.lastModified()), source));
+    }
+
+    /**
+     * Adds an entry with the given contents.
+     *
+     * @param name     the entry name
+     * @param contents the contents
+     * @return the entry
+     * @throws IOException if there is an error writing a preceding entry
+     */
+    public Entry addBytes(String name, final byte[] contents) throws IOException {
+        Source source = new Source() {
+            public InputStream open() {
+                return new ByteArrayInputStream(contents);
+            }
+
+            public long length() {
+                return contents.length;
+            }
+        };
+        return add(createEntry(name, getTime(System.currentTimeMillis()), source));
+    }
+
+    /**
+     * Adds a copy of an entry in another archive. The entry is read from the archive when it is compressed, so the archive must remain open until this
+     * writer is flushed.
+     *
+     * @param zipFile the archive
+     * @param zipEntry the entry
+     * @return the entry
+     * @throws IOException if there is an error writing a preceding entry
+     */
+    public Entry addEntry(final ZipFile zipFile, final ZipEntry zipEntry) throws IOException {
+        long time = zipEntry.getTime() < 0 ? System.currentTimeMillis() : zipEntry.getTime();
+        if (zipEntry.isDirectory()) {
+            return add(new Entry(zipEntry.getName(), ZipEntry.STORED, 0, getTime(time), null));
+        }
+        Source source = new Source() {
+            public InputStream open() throws IOException {
+                return zipFile.getInputStream(zipEntry);
+            }
+
+            public long length() {
+                return zipEntry.getSize();
+            }
+        };
+        return add(createEntry(zipEntry.getName(), getTime(time), source));
+    }
+
+    /**
+     * Writes all added entries to the archive so that their locations are known.
+     *
+     * @throws IOException if there is an error compressing or writing an entry
+     */
+    public void flush() throws IOException {
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+    }
+
+    /**
+     * Writes the remaining entries and the central directory. The writer must still be closed.
+     *
+     * @throws IOException if there is an error writing the archive
+     */
+    public void finish() throws IOException {
+        flush();
+        long directoryOffset = position;
+        for (Entry entry : written) {
+            header.clear();
+            header.putInt(CEN_SIGNATURE);
+            header.putShort((short) VERSION);
+            header.putShort((short) VERSION);
+            header.putShort((short) UTF8_FLAG);
+            header.putShort((short) entry.method);
+            header.putInt((int) entry.dosTime);
+            header.putInt((int) entry.crc);
+            header.putInt((int) entry.compressedSize);
+            header.putInt((int) entry.size);
+            header.putShort((short) entry.nameBytes.length);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putInt(entry.isDirectory() ? DIRECTORY_ATTRIBUTE : 0);
+            header.putInt((int) entry.headerOffset);
+            header.put(entry.nameBytes);
+            writeHeader();
+        }
+        long directorySize = position - directoryOffset;
+        checkOffset(position);
+        header.clear();
+        header.putInt(EOCD_SIGNATURE);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putShort((short) written.size());
+        header.putShort((short) written.size());
+        header.putInt((int) directorySize);
+        header.putInt((int) directoryOffset);
+        header.putShort((short) 0);
+        writeHeader();
+    }
+
+    /**
+     * Stops the compression threads and closes the archive file. Entries that have not been written are discarded.
+     */
+    public void close() {
+        executor.shutdownNow();
+        try {
+            // deflaters held by running tasks are returned to the pool when the tasks complete
+            executor.awaitTermination(TERMINATION_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) {
+            deflater.end();
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private Entry createEntry(String name, long time, Source source) {
+        int method = ZipEntry.DEFLATED;
+        int level = Deflater.DEFAULT_COMPRESSION;
+        String fileName = name.substring(name.lastIndexOf('/') + 1);
+        for (Rule rule : rules) {
+            if (rule.pattern.matcher(rule.fileName ? fileName : name).matches()) {
+                method = rule.method;
+                level = rule.level;
+                break;
+            }
+        }
+        return new Entry(name, method, level, time, source);
+    }
+
+    private Entry add(final Entry entry) throws IOException {
+        if (written.size() + pending.size() >= MAX_ENTRIES) {
+            throw new IOException("Too many entries for " + archive + ": zip64 archives are not supported");
+        }
+        long length = entry.source == null ? -1 : entry.source.length();
+        if (length >= 0 && length <= MAX_BUFFERED) {
+            entry.reservation = 2 * length;
+            while (!pending.isEmpty() && reserved + entry.reservation > MAX_RESERVED) {
+                writeNext();
+            }
+            reserved += entry.reservation;
+            entry.data = executor.submit(new Callable<byte[]>() {
+                public byte[] call() throws IOException {
+                    return compress(entry);
+                }
+            });
+        }
+        pending.add(entry);
+        if (pending.size() > window) {
+            writeNext();
+        }
+        return entry;
+    }
+
+    /**
+     * Reads and compresses an entry on a worker thread.
+     */
+    private byte[] compress(Entry entry) throws IOException {
+        byte[] contents = read(entry.source.open());
+        CRC32 crc = new CRC32();
+        crc.update(contents);
+        entry.crc = crc.getValue();
+        entry.size = contents.length;
+        if (entry.method == ZipEntry.DEFLATED) {
+            Deflater deflater = getDeflater(entry.level);
+            try {
+                deflater.setInput(contents);
+                deflater.finish();
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, contents.length / 2));
+                byte[] buffer = new byte[Math.min(BUFFER, Math.max(64, contents.length))];
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    compressed.write(buffer, 0, n);
+                }
+                if (compressed.size() < contents.length) {
+                    entry.compressedSize = compressed.size();
+                    return compressed.toByteArray();
+                }
+                entry.method = ZipEntry.STORED;
+            } finally {
+                deflaters.add(deflater);
+            }
+        }
+        entry.compressedSize = contents.length;
+        return contents;
+    }
+
+    private void writeNext() throws IOException {
+        Entry entry = pending.removeFirst();
+        entry.headerOffset = position;
+        checkOffset(position);
+        if (entry.isDirectory()) {
+            writeLocalHeader(entry);
+            entry.offset = position;
+        } else if (entry.data != null) {
+            byte[] data = getData(entry);
+            writeLocalHeader(entry);
+            entry.offset = position;
+            write(ByteBuffer.wrap(data));
+            entry.data = null;
+            reserved -= entry.reservation;
+        } else {
+            writeLocalHeader(entry);
+            entry.offset = position;
+            stream(entry);
+            // complete the CRC and sizes in the local header
+            ByteBuffer sizes = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            sizes.putInt((int) entry.crc).putInt((int) entry.compressedSize).putInt((int) entry.size).flip();
+            long sizesOffset = entry.headerOffset + 14;
+            while (sizes.hasRemaining()) {
+                sizesOffset += channel.write(sizes, sizesOffset);
+            }
+        }
+        checkOffset(position);
+        written.add(entry);
+    }
+
+    /**
+     * Compresses a large entry on the writing thread as it is read.
+     */
+    private void stream(Entry entry) throws IOException {
+        byte[] buffer = new byte[BUFFER];
+        byte[] output = new byte[BUFFER];
+        CRC32 crc = new CRC32();
+        long size = 0;
+        long start = position;
+        Deflater deflater = entry.method == ZipEntry.DEFLATED ? getDeflater(entry.level) : null;
+        InputStream stream = entry.source.open();
+        try {
+            int n;
+            while (-1 != (n = stream.read(buffer))) {
+                crc.update(buffer, 0, n);
+                size += n;
+                if (deflater == null) {
+                    write(ByteBuffer.wrap(buffer, 0, n));
+                } else {
+                    deflater.setInput(buffer, 0, n);
+                    while (!deflater.needsInput()) {
+                        write(ByteBuffer.wrap(output, 0, deflater.deflate(output)));
+                    }
+                }
+            }
+            if (deflater != null) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    write(ByteBuffer.wrap(output, 0, deflater.deflate(output)));
+                }
+            }
+        } finally {
+            stream.close();
+            if (deflater != null) {
+                deflaters.add(deflater);
+            }
+        }
+        entry.crc = crc.getValue();
+        entry.size = size;
+        entry.compressedSize = position - start;
+        if (size > MAX_OFFSET) {
+            throw new IOException("Entry " + entry.name + " is too large for " + archive + ": zip64 archives are not supported");
+        }
+    }
+
+    private void writeLocalHeader(Entry entry) throws IOException {
+        header.clear();
+        header.putInt(LOC_SIGNATURE);
+        header.putShort((short) VERSION);
+        header.putShort((short) UTF8_FLAG);
+        header.putShort((short) entry.method);
+        header.putInt((int) entry.dosTime);
+        header.putInt((int) entry.crc);
+        header.putInt((int) entry.compressedSize);
+        header.putInt((int) entry.size);
+        header.putShort((short) entry.nameBytes.length);
+        header.putShort((short) 0);
+        header.put(entry.nameBytes);
+        writeHeader();
+    }
+
+    private void writeHeader() throws IOException {
+        header.flip();
+        write(header);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer);
+        }
+    }
+
+    private byte[] getData(Entry entry) throws IOException {
+        try {
+            return entry.data.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing " + entry.name);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Error compressing " + entry.name, cause);
+        }
+    }
+
+    private Deflater getDeflater(int level) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        } else {
+            deflater.reset();
+            deflater.setLevel(level);
+        }
+        return deflater;
+    }
+
+    private long getTime(long time) {
+        return timestamp >= 0 ? timestamp : time;
+    }
+
+    private void checkOffset(long offset) throws IOException {
+        if (offset > MAX_OFFSET) {
+            throw new IOException("Archive is too large: " + archive + ": zip64 archives are not supported");
+        }
+    }
+
+    private static byte[] read(InputStream stream) throws IOException {
+        try {
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            byte[] buffer = new byte[BUFFER];
+            int n;
+            while (-1 != (n = stream.read(buffer))) {
+                contents.write(buffer, 0, n);
+            }
+            return contents.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static long toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21 | calendar.get(Calendar.DAY_OF_MONTH) << 16
+               | calendar.get(Calendar.HOUR_OF_DAY) << 11 | calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    /**
+     * Provides the contents of an entry.
+     */
+    private interface Source {
+
+        InputStream open() throws IOException;
+
+        long length();
+    }
+
+    /**
+     * Selects the compression method and level for matching entry names.
+     */
+    private static class Rule {
+        private Pattern pattern;
+        private boolean fileName;
+        private int method;
+        private int level;
+
+        private Rule(Pattern pattern, boolean fileName, int method, int level) {
+            this.pattern = pattern;
+            this.fileName = fileName;
+            this.method = method;
+            this.level = level;
+        }
+    }
+
+}
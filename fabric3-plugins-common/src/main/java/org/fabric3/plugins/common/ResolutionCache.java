@@ -0,0 +1,195 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.plugins.common;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.SessionData;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.resolution.ArtifactRequest;
+import org.eclipse.aether.resolution.ArtifactResolutionException;
+import org.eclipse.aether.resolution.ArtifactResult;
+
+/**
+ * Caches resolved artifact files in the repository session so that each artifact is resolved once per build, across modules and plugin executions.
+ *
+ * Entries are keyed by the artifact coordinates and the remote repositories requested. The cache holds only JDK types so that it can be shared by the Fabric3
+ * plugins, which are loaded in separate class realms. Concurrent requests for the same artifact wait for a single resolution. Failed resolutions are not
+ * cached, and an entry whose file no longer exists is resolved again.
+ */
+public class ResolutionCache {
+    private static final String KEY = "org.fabric3.plugins.resolved";
+
+    private RepositorySystem repositorySystem;
+    private RepositorySystemSession session;
+    private ConcurrentMap<String, Future<File>> resolved;
+
+    /**
+     * Constructor.
+     *
+     * @param repositorySystem the repository system
+     * @param session          the current repository session, which holds the cache
+     */
+    public ResolutionCache(RepositorySystem repositorySystem, RepositorySystemSession session) {
+        this.repositorySystem = repositorySystem;
+        this.session = session;
+        this.resolved = getResolved(session);
+    }
+
+    /**
+     * Resolves an artifact, returning the cached file if the artifact has already been resolved.
+     *
+     * @param request the request
+     * @return the resolved file
+     * @throws MojoExecutionException if the artifact cannot be resolved
+     */
+    public File resolve(final ArtifactRequest request) throws MojoExecutionException {
+        String key = getKey(request);
+        while (true) {
+            Future<File> future = resolved.get(key);
+            if (future == null) {
+                FutureTask<File> task = new FutureTask<>(new Callable<File>() {
+                    public File call() throws ArtifactResolutionException {
+                        return repositorySystem.resolveArtifact(session, request).getArtifact().getFile();
+                    }
+                });
+                future = resolved.putIfAbsent(key, task);
+                if (future == null) {
+                    future = task;
+                    task.run();
+                }
+            }
+            File file = get(key, future);
+            if (file.exists()) {
+                return file;
+            }
+            // deleted since it was resolved
+            resolved.remove(key, future);
+        }
+    }
+
+    /**
+     * Resolves a batch of artifacts. Artifacts that are not cached are resolved as a single batch.
+     *
+     * @param requests the requests
+     * @return the resolved files in request order
+     * @throws MojoExecutionException if an artifact cannot be resolved
+     */
+    public List<File> resolve(List<ArtifactRequest> requests) throws MojoExecutionException {
+        List<File> files = new ArrayList<>();
+        List<ArtifactRequest> missing = new ArrayList<>();
+        for (ArtifactRequest request : requests) {
+            File file = getCached(getKey(request));
+            files.add(file);
+            if (file == null) {
+                missing.add(request);
+            }
+        }
+        if (missing.isEmpty()) {
+            return files;
+        }
+        List<ArtifactResult> results;
+        try {
+            results = repositorySystem.resolveArtifacts(session, missing);
+        } catch (ArtifactResolutionException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+        int index = 0;
+        for (int i = 0; i < files.size(); i++) {
+            if (files.get(i) == null) {
+                File file = results.get(index++).getArtifact().getFile();
+                put(getKey(requests.get(i)), file);
+                files.set(i, file);
+            }
+        }
+        return files;
+    }
+
+    private File getCached(String key) throws MojoExecutionException {
+        Future<File> future = resolved.get(key);
+        if (future == null) {
+            return null;
+        }
+        File file = get(key, future);
+        if (!file.exists()) {
+            resolved.remove(key, future);
+            return null;
+        }
+        return file;
+    }
+
+    private void put(String key, final File file) {
+        FutureTask<File> task = new FutureTask<>(new Callable<File>() {
+            public File call() {
+                return file;
+            }
+        });
+        task.run();
+        Future<File> existing = resolved.putIfAbsent(key, task);
+        if (existing != null && existing.isDone()) {
+            resolved.replace(key, existing, task);
+        }
+    }
+
+    private File get(String key, Future<File> future) throws MojoExecutionException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted resolving " + key, e);
+        } catch (ExecutionException e) {
+            resolved.remove(key, future);
+            Throwable cause = e.getCause();
+            throw new MojoExecutionException(cause.getMessage(), cause);
+        }
+    }
+
+    private String getKey(ArtifactRequest request) {
+        StringBuilder builder = new StringBuilder(request.getArtifact().toString());
+        for (RemoteRepository repository : request.getRepositories()) {
+            builder.append('|').append(repository.getId()).append('=').append(repository.getUrl());
+        }
+        return builder.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentMap<String, Future<File>> getResolved(RepositorySystemSession session) {
+        SessionData data = session.getData();
+        while (true) {
+            Object current = data.get(KEY);
+            if (current != null) {
+                return (ConcurrentMap<String, Future<File>>) current;
+            }
+            ConcurrentMap<String, Future<File>> resolved = new ConcurrentHashMap<>();
+            if (data.set(KEY, null, resolved)) {
+                return resolved;
+            }
+        }
+    }
+
+}
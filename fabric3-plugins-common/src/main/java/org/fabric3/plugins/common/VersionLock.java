@@ -0,0 +1,212 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.plugins.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.artifact.Artifact;
+
+/**
+ * Pins the artifacts resolved by a build to concrete versions and checksums so that later builds do not need to look up release or range versions in
+ * repository metadata and resolve the same files.
+ *
+ * Each entry maps the requested coordinates, such as <code>org.fabric3:runtime-standalone:zip:bin:RELEASE</code>, to the version that was resolved and the
+ * SHA-256 checksum of the file. Requests with a locked version are resolved with that version, and the resolved file is checked against the checksum. Entries
+ * are added for requests that are not yet locked; in update mode, all requests are resolved as configured and their entries replaced. Entries for requests not
+ * made by a build are kept, so that plugins and executions can share a lock file.
+ *
+ * Only artifacts resolved from the local repository in a release version are locked. Snapshots and artifacts resolved from the reactor are always resolved as
+ * requested. Checksums are taken from the {@link ChecksumCache}, so a file whose checksum was computed while it was copied into the image is not read again.
+ *
+ * The lock file is a tab-separated UTF-8 text file sorted by requested coordinates, with lines of the form:
+ * <pre>
+ * requested coordinates  version  sha-256
+ * </pre>
+ * Instances are safe for use by concurrent resolvers.
+ */
+public class VersionLock {
+    private static final String HEADER = "# Fabric3 version lock 1";
+    private static final String SNAPSHOT = "SNAPSHOT";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File file;
+    private boolean update;
+    private File localRepository;
+    private ChecksumCache checksums;
+    private Map<String, Entry> entries = new TreeMap<>();
+    private boolean modified;
+
+    /**
+     * Constructor.
+     *
+     * @param file    the lock file
+     * @param update  true if requests should be resolved as configured and their entries replaced
+     * @param session the current repository session, which holds the checksum cache
+     */
+    public VersionLock(File file, boolean update, RepositorySystemSession session) {
+        this.file = file;
+        this.update = update;
+        this.localRepository = session.getLocalRepository().getBasedir().getAbsoluteFile();
+        this.checksums = new ChecksumCache(session);
+    }
+
+    /**
+     * Loads the lock file if it exists.
+     *
+     * @throws IOException if the lock file cannot be read or is not valid
+     */
+    public void load() throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+        List<String> lines = Files.readAllLines(file.toPath(), UTF8);
+        if (lines.isEmpty() || !HEADER.equals(lines.get(0))) {
+            throw new IOException("Invalid lock file: " + file);
+        }
+        for (int i = 1; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.trim().length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t");
+            if (fields.length != 3 || fields[2].length() != 64) {
+                throw new IOException("Invalid lock file entry at line " + (i + 1) + ": " + file);
+            }
+            entries.put(fields[0], new Entry(fields[1], fields[2].toLowerCase(Locale.ENGLISH)));
+        }
+    }
+
+    /**
+     * Writes the lock file if entries have been added or replaced.
+     *
+     * @return true if the lock file was written
+     * @throws IOException if the lock file cannot be written
+     */
+    public synchronized boolean save() throws IOException {
+        if (!modified) {
+            return false;
+        }
+        StringBuilder builder = new StringBuilder(HEADER).append('\n');
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            builder.append(entry.getKey()).append('\t').append(entry.getValue().version).append('\t').append(entry.getValue().checksum).append('\n');
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        Files.write(file.toPath(), builder.toString().getBytes(UTF8));
+        modified = false;
+        return true;
+    }
+
+    /**
+     * Returns the artifact to resolve for a request, which has the locked version if the request is locked.
+     *
+     * @param artifact the requested artifact
+     * @return the artifact to resolve
+     */
+    public synchronized Artifact lock(Artifact artifact) {
+        Entry entry = update ? null : entries.get(artifact.toString());
+        return entry != null ? artifact.setVersion(entry.version) : artifact;
+    }
+
+    /**
+     * Checks a resolved file against the checksum of a locked request, or locks the request if it is not locked or the lock is being updated.
+     *
+     * @param artifact the requested artifact
+     * @param resolved the resolved file
+     * @throws MojoExecutionException if the file does not match the locked checksum or cannot be read
+     */
+    public void verify(Artifact artifact, File resolved) throws MojoExecutionException {
+        String key = artifact.toString();
+        Entry entry;
+        synchronized (this) {
+            entry = update ? null : entries.get(key);
+        }
+        if (entry == null) {
+            String version = getVersion(artifact, resolved);
+            if (version == null) {
+                return;
+            }
+            entry = new Entry(version, checksum(resolved));
+            synchronized (this) {
+                Entry previous = entries.put(key, entry);
+                modified |= previous == null || !previous.version.equals(entry.version) || !previous.checksum.equals(entry.checksum);
+            }
+            return;
+        }
+        String checksum = checksum(resolved);
+        if (!checksum.equals(entry.checksum)) {
+            throw new MojoExecutionException(String.format("Checksum of %s resolved for %s does not match the lock file %s: expected %s but was %s. Run with "
+                                                           + "lockMode update if the artifact has been intentionally changed.",
+                                                           resolved, key, file, entry.checksum, checksum));
+        }
+    }
+
+    /**
+     * Returns the resolved version of a release artifact in the local repository, or null if the artifact should not be locked.
+     *
+     * @param artifact the requested artifact
+     * @param resolved the resolved file
+     * @return the version or null
+     */
+    private String getVersion(Artifact artifact, File resolved) {
+        if (!resolved.isFile() || !resolved.getAbsoluteFile().toPath().startsWith(localRepository.toPath())) {
+            return null;
+        }
+        // files in the local repository are named artifactId-version[-classifier].extension
+        String name = resolved.getName();
+        String prefix = artifact.getArtifactId() + "-";
+        String suffix = (artifact.getClassifier().length() > 0 ? "-" + artifact.getClassifier() : "") + "." + artifact.getExtension();
+        if (!name.startsWith(prefix) || !name.endsWith(suffix) || name.length() <= prefix.length() + suffix.length()) {
+            return null;
+        }
+        String version = name.substring(prefix.length(), name.length() - suffix.length());
+        return version.endsWith(SNAPSHOT) ? null : version;
+    }
+
+    private String checksum(File resolved) throws MojoExecutionException {
+        try {
+            return checksums.compute(resolved);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to read " + resolved, e);
+        }
+    }
+
+    /**
+     * A locked version and checksum.
+     */
+    private static class Entry {
+        private String version;
+        private String checksum;
+
+        private Entry(String version, String checksum) {
+            this.version = version;
+            this.checksum = checksum;
+        }
+    }
+
+}
@@ -0,0 +1,297 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.plugins.common;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Extracts zip archives using a fork-join pool.
+ *
+ * All directories are created up front. File entries are then split into ranges that are inflated in parallel. Archives are read through a single
+ * {@link MappedZip} mapping shared by all workers, with inflaters pooled across ranges and extractions. Archives the mapped reader does not support, such as
+ * zip64 archives, are read with a {@link ZipFile} handle per range. The CRC-32 of each extracted entry is computed as it is written and checked against the
+ * archive, so a corrupt distribution fails the extraction without the extracted files being read again. Manifest entries are skipped. Existing files are
+ * replaced rather than written through, since they may be links into the local repository.
+ *
+ * The mapping is released once all ranges have completed, so the archive can be replaced or deleted after extraction, including on Windows. A failed range
+ * does not cancel the others; the first error is reported once they have all completed.
+ */
+public class ZipExtractor {
+
+    /**
+     * Selects the entries to extract.
+     */
+    public interface EntryFilter {
+
+        /**
+         * Returns true if the entry should be extracted. For a directory entry, returning false skips creating the directory; it is still created if a file
+         * within it is extracted.
+         *
+         * @param entry the file or directory entry
+         * @return true if the entry should be extracted
+         */
+        boolean include(ZipEntry entry);
+    }
+
+    private static final int BUFFER = 64 * 1024;
+    private static final int MIN_RANGE = 16;
+
+    private ForkJoinPool pool;
+    private Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Constructor.
+     *
+     * @param threads the number of worker threads. If less than 1, the number of available processors is used.
+     */
+    public ZipExtractor(int threads) {
+        int parallelism = threads < 1 ? Runtime.getRuntime().availableProcessors() : threads;
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Extracts the contents of a zip file to a target directory.
+     *
+     * @param source      the zip file
+     * @param destination the target directory
+     * @throws IOException if there is an error during extraction
+     */
+    public void extract(File source, File destination) throws IOException {
+        extract(source, destination, null);
+    }
+
+    /**
+     * Extracts the contents of a zip file to a target directory, skipping entries rejected by the filter.
+     *
+     * @param source      the zip file
+     * @param destination the target directory
+     * @param filter      the entry filter or null to extract all entries
+     * @throws IOException if there is an error during extraction
+     */
+    public void extract(File source, File destination, EntryFilter filter) throws IOException {
+        MappedZip zip = MappedZip.open(source);
+        try {
+            List<ZipEntry> entries = new ArrayList<>();
+            if (zip != null) {
+                for (ZipEntry entry : zip.getEntries()) {
+                    select(entry, destination, filter, entries);
+                }
+            } else {
+                ZipFile zipFile = new ZipFile(source);
+                try {
+                    Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
+                    while (enumeration.hasMoreElements()) {
+                        select(enumeration.nextElement(), destination, filter, entries);
+                    }
+                } finally {
+                    close(zipFile);
+                }
+            }
+            if (entries.isEmpty()) {
+                return;
+            }
+            int range = Math.max(MIN_RANGE, entries.size() / (pool.getParallelism() * 4));
+            AtomicReference<IOException> failure = new AtomicReference<>();
+            pool.invoke(new ExtractTask(source, zip, inflaters, destination, entries, 0, entries.size(), range, failure));
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+        } finally {
+            // tasks record failures rather than throwing them, so every task has completed and the mapping is no longer read
+            close(zip);
+        }
+    }
+
+    /**
+     * Releases the worker threads.
+     */
+    public void shutdown() {
+        pool.shutdown();
+        Inflater inflater;
+        while ((inflater = inflaters.poll()) != null) {
+            inflater.end();
+        }
+    }
+
+    private void select(ZipEntry entry, File destination, EntryFilter filter, List<ZipEntry> entries) throws IOException {
+        String name = entry.getName();
+        if (entry.isDirectory()) {
+            if (filter == null || filter.include(entry)) {
+                mkdirs(new File(destination, name));
+            }
+        } else if (!isManifest(name) && (filter == null || filter.include(entry))) {
+            mkdirs(new File(destination, name).getParentFile());
+            entries.add(entry);
+        }
+    }
+
+    private boolean isManifest(String name) {
+        return name.regionMatches(true, name.length() - 3, ".MF", 0, 3);
+    }
+
+    private static void mkdirs(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Unable to create directory: " + directory);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Inflates a range of entries, splitting the range until it is small enough to process on a single worker.
+     */
+    private static class ExtractTask extends RecursiveAction {
+        private static final long serialVersionUID = -3428925447095446235L;
+
+        private File source;
+        private MappedZip zip;
+        private Queue<Inflater> inflaters;
+        private File destination;
+        private List<ZipEntry> entries;
+        private int from;
+        private int to;
+        private int range;
+        private AtomicReference<IOException> failure;
+
+        public ExtractTask(File source,
+                           MappedZip zip,
+                           Queue<Inflater> inflaters,
+                           File destination,
+                           List<ZipEntry> entries,
+                           int from,
+                           int to,
+                           int range,
+                           AtomicReference<IOException> failure) {
+            this.source = source;
+            this.zip = zip;
+            this.inflaters = inflaters;
+            this.destination = destination;
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+            this.range = range;
+            this.failure = failure;
+        }
+
+        protected void compute() {
+            if (to - from > range) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ExtractTask(source, zip, inflaters, destination, entries, from, middle, range, failure),
+                          new ExtractTask(source, zip, inflaters, destination, entries, middle, to, range, failure));
+                return;
+            }
+            if (failure.get() != null) {
+                // another range has failed
+                return;
+            }
+            try {
+                if (zip != null) {
+                    extractMappedRange();
+                } else {
+                    extractRange();
+                }
+            } catch (IOException e) {
+                failure.compareAndSet(null, e);
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, new IOException("Error extracting " + source, e));
+            }
+        }
+
+        private void extractMappedRange() throws IOException {
+            byte[] input = new byte[BUFFER];
+            byte[] output = new byte[BUFFER];
+            Inflater inflater = inflaters.poll();
+            if (inflater == null) {
+                inflater = new Inflater(true);
+            }
+            try {
+                for (int i = from; i < to; i++) {
+                    MappedZip.Entry entry = (MappedZip.Entry) entries.get(i);
+                    File target = new File(destination, entry.getName());
+                    Files.deleteIfExists(target.toPath());
+                    zip.extract(entry, target, inflater, input, output);
+                }
+            } finally {
+                inflaters.add(inflater);
+            }
+        }
+
+        private void extractRange() throws IOException {
+            byte[] buffer = new byte[BUFFER];
+            ZipFile zipFile = new ZipFile(source);
+            try {
+                for (int i = from; i < to; i++) {
+                    ZipEntry entry = entries.get(i);
+                    String name = entry.getName();
+                    File target = new File(destination, name);
+                    Files.deleteIfExists(target.toPath());
+                    CRC32 crc = new CRC32();
+                    InputStream sourceStream = null;
+                    OutputStream targetStream = null;
+                    try {
+                        sourceStream = zipFile.getInputStream(zipFile.getEntry(name));
+                        targetStream = new FileOutputStream(target);
+                        int n;
+                        while (-1 != (n = sourceStream.read(buffer))) {
+                            crc.update(buffer, 0, n);
+                            targetStream.write(buffer, 0, n);
+                        }
+                        targetStream.close();
+                        targetStream = null;
+                    } finally {
+                        // the target is only still open if the entry has already failed
+                        close(targetStream);
+                        close(sourceStream);
+                    }
+                    if (entry.getCrc() != -1 && crc.getValue() != entry.getCrc()) {
+                        throw new ZipException("Invalid CRC-32 for " + name + " in " + source);
+                    }
+                }
+            } finally {
+                close(zipFile);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,235 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.plugins.common;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests reading the central directory of an archive and extracting its entries through a mapping.
+ */
+public class MappedZipTestCase extends TestCase {
+    private static final byte[] STORED = "stored contents".getBytes();
+
+    private File directory;
+    private File archive;
+    private byte[] deflated;
+
+    public void testReadDirectory() throws Exception {
+        MappedZip zip = MappedZip.open(archive);
+        try {
+            List<MappedZip.Entry> entries = zip.getEntries();
+            assertEquals(2, entries.size());
+
+            MappedZip.Entry stored = entries.get(0);
+            assertEquals("a/stored.txt", stored.getName());
+            assertEquals(ZipEntry.STORED, stored.getMethod());
+            assertEquals(STORED.length, stored.getSize());
+            assertEquals(checksum(STORED), stored.getCrc());
+
+            MappedZip.Entry entry = entries.get(1);
+            assertEquals("b/deflated.bin", entry.getName());
+            assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+            assertEquals(deflated.length, entry.getSize());
+            assertTrue(entry.getCompressedSize() < entry.getSize());
+        } finally {
+            zip.close();
+        }
+    }
+
+    public void testExtract() throws Exception {
+        MappedZip zip = MappedZip.open(archive);
+        try {
+            Inflater inflater = new Inflater(true);
+            // buffers smaller than the entries so both are read in several passes
+            byte[] input = new byte[64];
+            byte[] output = new byte[128];
+            File stored = new File(directory, "stored.txt");
+            zip.extract(zip.getEntries().get(0), stored, inflater, input, output);
+            assertTrue(Arrays.equals(STORED, Files.readAllBytes(stored.toPath())));
+            File entry = new File(directory, "deflated.bin");
+            zip.extract(zip.getEntries().get(1), entry, inflater, input, output);
+            assertTrue(Arrays.equals(deflated, Files.readAllBytes(entry.toPath())));
+            inflater.end();
+        } finally {
+            zip.close();
+        }
+    }
+
+    public void testArchiveComment() throws Exception {
+        File commented = new File(directory, "commented.zip");
+        ZipOutputStream stream = new ZipOutputStream(new FileOutputStream(commented));
+        try {
+            stream.setComment("an archive comment");
+            stream.putNextEntry(new ZipEntry("entry.txt"));
+            stream.write(STORED);
+            stream.closeEntry();
+        } finally {
+            stream.close();
+        }
+        MappedZip zip = MappedZip.open(commented);
+        try {
+            assertEquals(1, zip.getEntries().size());
+            assertEquals("entry.txt", zip.getEntries().get(0).getName());
+        } finally {
+            zip.close();
+        }
+    }
+
+    public void testNotAZipFile() throws Exception {
+        File file = new File(directory, "invalid.zip");
+        Files.write(file.toPath(), new byte[100]);
+        try {
+            MappedZip.open(file);
+            fail();
+        } catch (ZipException e) {
+            // expected
+        }
+    }
+
+    public void testZip64ReturnsNull() throws Exception {
+        byte[] bytes = Files.readAllBytes(archive.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int eocd = findEndOfCentralDirectory(bytes);
+        // a zip64 archive records the maximum values and keeps the real ones in the zip64 end of central directory record
+        buffer.putShort(eocd + 8, (short) 0xffff);
+        buffer.putShort(eocd + 10, (short) 0xffff);
+        Files.write(archive.toPath(), bytes);
+        assertNull(MappedZip.open(archive));
+    }
+
+    public void testEncryptedEntryReturnsNull() throws Exception {
+        byte[] bytes = Files.readAllBytes(archive.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int offset = buffer.getInt(findEndOfCentralDirectory(bytes) + 16);
+        buffer.putShort(offset + 8, (short) (buffer.getShort(offset + 8) | 1));
+        Files.write(archive.toPath(), bytes);
+        assertNull(MappedZip.open(archive));
+    }
+
+    public void testInvalidNameLength() throws Exception {
+        byte[] bytes = Files.readAllBytes(archive.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int offset = buffer.getInt(findEndOfCentralDirectory(bytes) + 16);
+        // the name extends past the end of the archive
+        buffer.putShort(offset + 28, (short) 0xffff);
+        Files.write(archive.toPath(), bytes);
+        try {
+            MappedZip.open(archive);
+            fail();
+        } catch (ZipException e) {
+            // expected
+        }
+    }
+
+    public void testInvalidCrc() throws Exception {
+        byte[] bytes = Files.readAllBytes(archive.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int offset = buffer.getInt(findEndOfCentralDirectory(bytes) + 16);
+        buffer.putInt(offset + 16, buffer.getInt(offset + 16) + 1);
+        Files.write(archive.toPath(), bytes);
+        MappedZip zip = MappedZip.open(archive);
+        try {
+            zip.extract(zip.getEntries().get(0), new File(directory, "invalid.txt"), new Inflater(true), new byte[64], new byte[64]);
+            fail();
+        } catch (ZipException e) {
+            // expected
+        } finally {
+            zip.close();
+        }
+    }
+
+    public void testExtractAfterClose() throws Exception {
+        MappedZip zip = MappedZip.open(archive);
+        zip.close();
+        try {
+            zip.extract(zip.getEntries().get(0), new File(directory, "closed.txt"), new Inflater(true), new byte[64], new byte[64]);
+            fail();
+        } catch (ZipException e) {
+            // expected
+        }
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = Files.createTempDirectory("mappedzip").toFile();
+        archive = new File(directory, "archive.zip");
+        deflated = new byte[10000];
+        for (int i = 0; i < deflated.length; i++) {
+            deflated[i] = (byte) (i % 31);
+        }
+        ZipOutputStream stream = new ZipOutputStream(new FileOutputStream(archive));
+        try {
+            ZipEntry stored = new ZipEntry("a/stored.txt");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(STORED.length);
+            stored.setCrc(checksum(STORED));
+            stream.putNextEntry(stored);
+            stream.write(STORED);
+            stream.closeEntry();
+            stream.putNextEntry(new ZipEntry("b/deflated.bin"));
+            stream.write(deflated);
+            stream.closeEntry();
+        } finally {
+            stream.close();
+        }
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        delete(directory);
+    }
+
+    private long checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    private int findEndOfCentralDirectory(byte[] bytes) {
+        for (int i = bytes.length - 22; i >= 0; i--) {
+            if (bytes[i] == 0x50 && bytes[i + 1] == 0x4b && bytes[i + 2] == 0x05 && bytes[i + 3] == 0x06) {
+                return i;
+            }
+        }
+        throw new AssertionError("End of central directory not found");
+    }
+
+    private void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+}
@@ -0,0 +1,304 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.plugins.common;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that archives written by the parallel archive writer are read back by {@link ZipFile}, which uses the central directory, and by
+ * {@link ZipInputStream}, which relies on the local headers.
+ */
+public class ParallelArchiveWriterTestCase extends TestCase {
+    private static final long TIME = 1420070400000L;
+
+    private File directory;
+    private File archive;
+
+    public void testReadBack() throws Exception {
+        byte[] text = createText(100000);
+        byte[] random = createRandom(5000);
+        ParallelArchiveWriter writer = new ParallelArchiveWriter(archive, 4);
+        try {
+            writer.addDirectory("META-INF");
+            writer.addBytes("META-INF/text.txt", text);
+            writer.addBytes("random.bin", random);
+            writer.addBytes("empty.txt", new byte[0]);
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+
+        ZipFile zipFile = new ZipFile(archive);
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            assertEquals("META-INF/", entries.nextElement().getName());
+            assertEquals("META-INF/text.txt", entries.nextElement().getName());
+            assertEquals("random.bin", entries.nextElement().getName());
+            assertEquals("empty.txt", entries.nextElement().getName());
+            assertFalse(entries.hasMoreElements());
+
+            assertTrue(zipFile.getEntry("META-INF/").isDirectory());
+            ZipEntry textEntry = zipFile.getEntry("META-INF/text.txt");
+            assertEquals(ZipEntry.DEFLATED, textEntry.getMethod());
+            assertTrue(Arrays.equals(text, read(zipFile.getInputStream(textEntry))));
+            // random data does not shrink and is stored
+            ZipEntry randomEntry = zipFile.getEntry("random.bin");
+            assertEquals(ZipEntry.STORED, randomEntry.getMethod());
+            assertTrue(Arrays.equals(random, read(zipFile.getInputStream(randomEntry))));
+            assertEquals(0, read(zipFile.getInputStream(zipFile.getEntry("empty.txt"))).length);
+        } finally {
+            zipFile.close();
+        }
+        assertLocalHeaders(archive);
+    }
+
+    public void testStreamedEntries() throws Exception {
+        // entries larger than 16 MB are written as they are read and their local headers are completed afterwards
+        File deflated = createFile("deflated.txt", createText(17 * 1024 * 1024));
+        File stored = createFile("stored.dat", createText(17 * 1024 * 1024 + 1));
+        ParallelArchiveWriter writer = new ParallelArchiveWriter(archive, 2);
+        try {
+            writer.addRule("*.dat=stored");
+            writer.addBytes("first.txt", createText(1000));
+            ParallelArchiveWriter.Entry deflatedEntry = writer.addFile("deflated.txt", deflated);
+            ParallelArchiveWriter.Entry storedEntry = writer.addFile("stored.dat", stored);
+            writer.addBytes("last.txt", createText(1000));
+            writer.finish();
+            assertEquals(ZipEntry.DEFLATED, deflatedEntry.getMethod());
+            assertEquals(deflated.length(), deflatedEntry.getSize());
+            assertEquals(ZipEntry.STORED, storedEntry.getMethod());
+            assertEquals(stored.length(), storedEntry.getCompressedSize());
+            assertTrue(Arrays.equals(Files.readAllBytes(stored.toPath()), readRange(archive, storedEntry.getOffset(), (int) stored.length())));
+        } finally {
+            writer.close();
+        }
+
+        ZipFile zipFile = new ZipFile(archive);
+        try {
+            assertTrue(Arrays.equals(Files.readAllBytes(deflated.toPath()), read(zipFile.getInputStream(zipFile.getEntry("deflated.txt")))));
+            assertTrue(Arrays.equals(Files.readAllBytes(stored.toPath()), read(zipFile.getInputStream(zipFile.getEntry("stored.dat")))));
+        } finally {
+            zipFile.close();
+        }
+        assertLocalHeaders(archive);
+    }
+
+    public void testCopyEntries() throws Exception {
+        File source = new File(directory, "source.zip");
+        ParallelArchiveWriter writer = new ParallelArchiveWriter(source, 1);
+        try {
+            writer.addDirectory("lib");
+            writer.addBytes("lib/a.txt", createText(2000));
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+
+        ZipFile sourceFile = new ZipFile(source);
+        writer = new ParallelArchiveWriter(archive, 2);
+        try {
+            Enumeration<? extends ZipEntry> entries = sourceFile.entries();
+            while (entries.hasMoreElements()) {
+                writer.addEntry(sourceFile, entries.nextElement());
+            }
+            writer.finish();
+        } finally {
+            writer.close();
+            sourceFile.close();
+        }
+
+        ZipFile zipFile = new ZipFile(archive);
+        try {
+            assertTrue(zipFile.getEntry("lib/").isDirectory());
+            assertTrue(Arrays.equals(createText(2000), read(zipFile.getInputStream(zipFile.getEntry("lib/a.txt")))));
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    public void testReproducible() throws Exception {
+        File first = new File(directory, "first.zip");
+        File second = new File(directory, "second.zip");
+        write(first, 1);
+        write(second, 4);
+        assertTrue(Arrays.equals(Files.readAllBytes(first.toPath()), Files.readAllBytes(second.toPath())));
+
+        ZipFile zipFile = new ZipFile(first);
+        try {
+            assertEquals(TIME, zipFile.getEntry("entry0.txt").getTime());
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    public void testCompressionRules() throws Exception {
+        ParallelArchiveWriter writer = new ParallelArchiveWriter(archive, 2);
+        try {
+            writer.addRule("lib/*.jar=stored");
+            writer.addRule("**/*.txt=0");
+            writer.addBytes("lib/a.jar", createText(1000));
+            writer.addBytes("other/lib/a.jar", createText(1000));
+            writer.addBytes("docs/readme.txt", createText(1000));
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+        ZipFile zipFile = new ZipFile(archive);
+        try {
+            assertEquals(ZipEntry.STORED, zipFile.getEntry("lib/a.jar").getMethod());
+            assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("other/lib/a.jar").getMethod());
+            // level 0 does not shrink the contents, so the entry is stored
+            assertEquals(ZipEntry.STORED, zipFile.getEntry("docs/readme.txt").getMethod());
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    public void testInvalidRule() throws Exception {
+        ParallelArchiveWriter writer = new ParallelArchiveWriter(archive, 1);
+        try {
+            writer.addRule("*.jar=zip");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        } finally {
+            writer.close();
+        }
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = Files.createTempDirectory("archivewriter").toFile();
+        archive = new File(directory, "archive.zip");
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.delete(file.toPath());
+            }
+        }
+        Files.delete(directory.toPath());
+    }
+
+    private void write(File file, int threads) throws IOException {
+        ParallelArchiveWriter writer = new ParallelArchiveWriter(file, threads);
+        try {
+            writer.setTimestamp(TIME);
+            for (int i = 0; i < 50; i++) {
+                writer.addBytes("entry" + i + ".txt", createText(1000 + i * 100));
+            }
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Reads an archive through its local headers, which checks the CRC and sizes recorded in each header against the entry data.
+     */
+    private void assertLocalHeaders(File file) throws IOException {
+        ZipFile zipFile = new ZipFile(file);
+        ZipInputStream stream = new ZipInputStream(new FileInputStream(file));
+        try {
+            ZipEntry entry;
+            int count = 0;
+            while ((entry = stream.getNextEntry()) != null) {
+                ZipEntry expected = zipFile.getEntry(entry.getName());
+                assertEquals(expected.getCrc(), entry.getCrc());
+                assertEquals(expected.getSize(), entry.getSize());
+                assertEquals(expected.getCompressedSize(), entry.getCompressedSize());
+                assertTrue(Arrays.equals(read(zipFile.getInputStream(expected)), read(stream)));
+                count++;
+            }
+            assertEquals(zipFile.size(), count);
+        } finally {
+            stream.close();
+            zipFile.close();
+        }
+    }
+
+    private File createFile(String name, byte[] contents) throws IOException {
+        File file = new File(directory, name);
+        OutputStream stream = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            stream.write(contents);
+        } finally {
+            stream.close();
+        }
+        return file;
+    }
+
+    private byte[] createText(int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) ('a' + (i * 7 + i / 13) % 26);
+        }
+        return bytes;
+    }
+
+    private byte[] createRandom(int size) {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    private byte[] readRange(File file, long offset, int length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[length];
+            randomAccessFile.seek(offset);
+            randomAccessFile.readFully(bytes);
+            return bytes;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Reads a stream to its end. The stream is not closed so that the entries of a {@link ZipInputStream} can be read in turn.
+     */
+    private byte[] read(InputStream stream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = stream.read(buffer)) != -1) {
+            bytes.write(buffer, 0, n);
+        }
+        return bytes.toByteArray();
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.plugins.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import junit.framework.TestCase;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.eclipse.aether.DefaultRepositorySystemSession;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.repository.LocalRepository;
+import org.eclipse.aether.repository.LocalRepositoryManager;
+
+/**
+ * Tests locking resolved versions, reading and writing the lock file and checking resolved files against locked checksums.
+ */
+public class VersionLockTestCase extends TestCase {
+    private static final String HEADER = "# Fabric3 version lock 1";
+
+    private File directory;
+    private File repository;
+    private File lockFile;
+    private File jar;
+    private Artifact artifact = new DefaultArtifact("org.fabric3:library:jar:RELEASE");
+
+    public void testLockResolvedVersion() throws Exception {
+        VersionLock lock = createLock(false);
+        lock.load();
+        assertSame(artifact, lock.lock(artifact));
+        lock.verify(artifact, jar);
+        assertTrue(lock.save());
+
+        List<String> lines = Files.readAllLines(lockFile.toPath(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertEquals(HEADER, lines.get(0));
+        assertEquals("org.fabric3:library:jar:RELEASE\t1.2\t" + sha256(jar), lines.get(1));
+        // unchanged entries are not written again
+        assertFalse(lock.save());
+    }
+
+    public void testLockedVersionIsResolved() throws Exception {
+        writeLock("org.fabric3:library:jar:RELEASE\t1.2\t" + sha256(jar));
+        VersionLock lock = createLock(false);
+        lock.load();
+        assertEquals("1.2", lock.lock(artifact).getVersion());
+        lock.verify(artifact, jar);
+        assertFalse(lock.save());
+    }
+
+    public void testChecksumMismatch() throws Exception {
+        writeLock("org.fabric3:library:jar:RELEASE\t1.2\t" + sha256(jar));
+        Files.write(jar.toPath(), "changed contents".getBytes(StandardCharsets.UTF_8));
+        VersionLock lock = createLock(false);
+        lock.load();
+        try {
+            lock.verify(artifact, jar);
+            fail();
+        } catch (MojoExecutionException e) {
+            // expected
+        }
+    }
+
+    public void testUpdateReplacesEntry() throws Exception {
+        writeLock("org.fabric3:library:jar:RELEASE\t1.1\t" + sha256(jar), "org.fabric3:other:jar:1.0\t1.0\t" + sha256(jar));
+        Files.write(jar.toPath(), "changed contents".getBytes(StandardCharsets.UTF_8));
+        VersionLock lock = createLock(true);
+        lock.load();
+        assertSame(artifact, lock.lock(artifact));
+        lock.verify(artifact, jar);
+        assertTrue(lock.save());
+
+        List<String> lines = Files.readAllLines(lockFile.toPath(), StandardCharsets.UTF_8);
+        assertEquals(3, lines.size());
+        assertEquals("org.fabric3:library:jar:RELEASE\t1.2\t" + sha256(jar), lines.get(1));
+        // entries for requests not made by this build are kept
+        assertTrue(lines.get(2).startsWith("org.fabric3:other:jar:1.0\t1.0\t"));
+    }
+
+    public void testSnapshotNotLocked() throws Exception {
+        File snapshot = createJar("library", "1.3-SNAPSHOT");
+        VersionLock lock = createLock(false);
+        lock.load();
+        lock.verify(new DefaultArtifact("org.fabric3:library:jar:1.3-SNAPSHOT"), snapshot);
+        assertFalse(lock.save());
+    }
+
+    public void testFileOutsideRepositoryNotLocked() throws Exception {
+        File file = new File(directory, "library-1.2.jar");
+        Files.write(file.toPath(), "contents".getBytes(StandardCharsets.UTF_8));
+        VersionLock lock = createLock(false);
+        lock.load();
+        lock.verify(artifact, file);
+        assertFalse(lock.save());
+    }
+
+    public void testInvalidHeader() throws Exception {
+        Files.write(lockFile.toPath(), "org.fabric3:library:jar:RELEASE\t1.2\tabc\n".getBytes(StandardCharsets.UTF_8));
+        try {
+            createLock(false).load();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testInvalidEntry() throws Exception {
+        writeLock("org.fabric3:library:jar:RELEASE\t1.2\tabc");
+        try {
+            createLock(false).load();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = Files.createTempDirectory("versionlock").toFile();
+        repository = new File(directory, "repository");
+        lockFile = new File(directory, "fabric3.lock");
+        jar = createJar("library", "1.2");
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        delete(directory);
+    }
+
+    /**
+     * Creates a lock with a new session so that checksums are not cached between lock instances.
+     */
+    private VersionLock createLock(boolean update) {
+        return new VersionLock(lockFile, update, createSession());
+    }
+
+    private RepositorySystemSession createSession() {
+        final LocalRepository localRepository = new LocalRepository(repository);
+        InvocationHandler handler = new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("getRepository".equals(method.getName())) {
+                    return localRepository;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        };
+        ClassLoader loader = getClass().getClassLoader();
+        LocalRepositoryManager manager = (LocalRepositoryManager) Proxy.newProxyInstance(loader, new Class<?>[]{LocalRepositoryManager.class}, handler);
+        DefaultRepositorySystemSession session = new DefaultRepositorySystemSession();
+        session.setLocalRepositoryManager(manager);
+        return session;
+    }
+
+    private File createJar(String artifactId, String version) throws IOException {
+        File artifactDirectory = new File(repository, "org/fabric3/" + artifactId + "/" + version);
+        artifactDirectory.mkdirs();
+        File file = new File(artifactDirectory, artifactId + "-" + version + ".jar");
+        Files.write(file.toPath(), ("contents of " + artifactId + " " + version).getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private void writeLock(String... entries) throws IOException {
+        StringBuilder builder = new StringBuilder(HEADER).append('\n');
+        for (String entry : entries) {
+            builder.append(entry).append('\n');
+        }
+        Files.write(lockFile.toPath(), builder.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String sha256(File file) throws IOException {
+        return ChecksumCache.toHex(ChecksumCache.createDigest().digest(Files.readAllBytes(file.toPath())));
+    }
+
+    private void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+}
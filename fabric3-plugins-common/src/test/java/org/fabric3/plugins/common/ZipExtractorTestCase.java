@@ -0,0 +1,197 @@
+/*
+ * Fabric3
+ * Copyright (c) 2009-2015 Metaform Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fabric3.plugins.common;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests extracting archives in parallel through a mapping and through the {@link java.util.zip.ZipFile} fallback.
+ */
+public class ZipExtractorTestCase extends TestCase {
+    private static final int ENTRIES = 100;
+
+    private File directory;
+    private File archive;
+    private File destination;
+    private ZipExtractor extractor;
+
+    public void testExtract() throws Exception {
+        createArchive(archive, ENTRIES);
+        extractor.extract(archive, destination);
+        for (int i = 0; i < ENTRIES; i++) {
+            assertTrue(Arrays.equals(createContents(i), Files.readAllBytes(new File(destination, getName(i)).toPath())));
+        }
+        assertTrue(new File(destination, "empty").isDirectory());
+        // manifests are not extracted
+        assertFalse(new File(destination, "META-INF/MANIFEST.MF").exists());
+    }
+
+    public void testFilter() throws Exception {
+        createArchive(archive, ENTRIES);
+        extractor.extract(archive, destination, new ZipExtractor.EntryFilter() {
+            public boolean include(ZipEntry entry) {
+                return !entry.getName().startsWith("lib/1") && !entry.getName().equals("empty/");
+            }
+        });
+        assertFalse(new File(destination, getName(1)).exists());
+        assertFalse(new File(destination, getName(10)).exists());
+        assertTrue(new File(destination, getName(2)).isFile());
+        assertFalse(new File(destination, "empty").exists());
+    }
+
+    public void testFilterFailure() throws Exception {
+        createArchive(archive, ENTRIES);
+        try {
+            extractor.extract(archive, destination, new ZipExtractor.EntryFilter() {
+                public boolean include(ZipEntry entry) {
+                    throw new IllegalStateException("filter failed");
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        extractor.extract(archive, destination);
+        assertTrue(new File(destination, getName(0)).exists());
+    }
+
+    public void testReplacesLinkedFile() throws Exception {
+        createArchive(archive, ENTRIES);
+        File original = new File(directory, "original.txt");
+        Files.write(original.toPath(), "original".getBytes(StandardCharsets.UTF_8));
+        File target = new File(destination, getName(0));
+        target.getParentFile().mkdirs();
+        Files.createLink(target.toPath(), original.toPath());
+
+        extractor.extract(archive, destination);
+        assertTrue(Arrays.equals(createContents(0), Files.readAllBytes(target.toPath())));
+        // the extracted file replaces the link rather than writing through it
+        assertEquals("original", new String(Files.readAllBytes(original.toPath()), StandardCharsets.UTF_8));
+    }
+
+    public void testInvalidCrc() throws Exception {
+        createArchive(archive, ENTRIES);
+        byte[] bytes = Files.readAllBytes(archive.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int offset = buffer.getInt(findEndOfCentralDirectory(bytes) + 16);
+        // skip the manifest and directory entries, which are not extracted
+        for (int i = 0; i < 2; i++) {
+            offset += 46 + (buffer.getShort(offset + 28) & 0xffff) + (buffer.getShort(offset + 30) & 0xffff) + (buffer.getShort(offset + 32) & 0xffff);
+        }
+        buffer.putInt(offset + 16, buffer.getInt(offset + 16) + 1);
+        Files.write(archive.toPath(), bytes);
+        try {
+            extractor.extract(archive, destination);
+            fail();
+        } catch (ZipException e) {
+            // expected
+        }
+    }
+
+    public void testZip64Fallback() throws Exception {
+        // more than 65535 entries require zip64 extensions, which the mapped reader does not support
+        createArchive(archive, 0xffff + 1);
+        assertNull(MappedZip.open(archive));
+        extractor.extract(archive, destination, new ZipExtractor.EntryFilter() {
+            public boolean include(ZipEntry entry) {
+                return entry.isDirectory() || entry.getName().startsWith("lib/1000");
+            }
+        });
+        for (int i = 10000; i < 10010; i++) {
+            assertTrue(Arrays.equals(createContents(i), Files.readAllBytes(new File(destination, getName(i)).toPath())));
+        }
+        assertTrue(Arrays.equals(createContents(1000), Files.readAllBytes(new File(destination, getName(1000)).toPath())));
+        assertFalse(new File(destination, getName(1001)).exists());
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = Files.createTempDirectory("zipextractor").toFile();
+        archive = new File(directory, "archive.zip");
+        destination = new File(directory, "extracted");
+        extractor = new ZipExtractor(4);
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        extractor.shutdown();
+        delete(directory);
+    }
+
+    private void createArchive(File file, int count) throws IOException {
+        ZipOutputStream stream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            stream.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+            stream.write("Manifest-Version: 1.0\n".getBytes(StandardCharsets.UTF_8));
+            stream.closeEntry();
+            stream.putNextEntry(new ZipEntry("empty/"));
+            stream.closeEntry();
+            for (int i = 0; i < count; i++) {
+                stream.putNextEntry(new ZipEntry(getName(i)));
+                stream.write(createContents(i));
+                stream.closeEntry();
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    private String getName(int i) {
+        return "lib/" + i + "/entry" + i + ".txt";
+    }
+
+    private byte[] createContents(int i) {
+        StringBuilder builder = new StringBuilder();
+        for (int j = 0; j <= i % 50; j++) {
+            builder.append("contents of entry ").append(i).append('\n');
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private int findEndOfCentralDirectory(byte[] bytes) {
+        for (int i = bytes.length - 22; i >= 0; i--) {
+            if (bytes[i] == 0x50 && bytes[i + 1] == 0x4b && bytes[i + 2] == 0x05 && bytes[i + 3] == 0x06) {
+                return i;
+            }
+        }
+        throw new AssertionError("End of central directory not found");
+    }
+
+    private void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+}